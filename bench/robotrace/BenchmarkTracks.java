@@ -0,0 +1,53 @@
+package robotrace;
+
+/**
+ * Race tracks of representative sizes for the benchmarks.
+ */
+final class BenchmarkTracks {
+
+    private BenchmarkTracks() {
+    }
+
+    /**
+     * Creates a closed track of the given number of Bezier segments
+     * that winds around the origin, or the test track for 0 segments.
+     */
+    static RaceTrack create(int segments) {
+        if (0 == segments) {
+            return new RaceTrack();
+        }
+        return new RaceTrack(controlPoints(segments));
+    }
+
+    /**
+     * Returns 3N control points of N segments that join smoothly, on a
+     * circle whose radius wobbles so that the curvature varies.
+     */
+    static Vector[] controlPoints(int segments) {
+        double radius = Math.max(20, segments / 2.0);
+        Vector[] points = new Vector[3 * segments];
+
+        for (int k = 0; k < segments; k++) {
+            double a0 = 2 * Math.PI * k / segments;
+            double a1 = 2 * Math.PI * (k + 1) / segments;
+            Vector p0 = pointAt(radius, a0);
+            Vector p3 = pointAt(radius, a1);
+            double handle = p3.subtract(p0).length() / 3;
+
+            points[3 * k] = p0;
+            points[3 * k + 1] = p0.add(tangentAt(radius, a0).scale(handle));
+            points[3 * k + 2] = p3.subtract(tangentAt(radius, a1).scale(handle));
+        }
+        return points;
+    }
+
+    private static Vector pointAt(double radius, double a) {
+        double r = radius + 2 * Math.sin(5 * a);
+        return new Vector(r * Math.cos(a), r * Math.sin(a), 1);
+    }
+
+    private static Vector tangentAt(double radius, double a) {
+        double h = 1e-6;
+        return pointAt(radius, a + h).subtract(pointAt(radius, a - h)).normalized();
+    }
+}
@@ -0,0 +1,45 @@
+package robotrace;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the per-frame camera update in every camera mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CameraBenchmark {
+
+    /** The camera mode, see GlobalState.camMode. */
+    @Param({"0", "1", "2", "3", "4"})
+    public int camMode;
+
+    private final GlobalState gs = new GlobalState();
+
+    private final Camera camera = new Camera();
+
+    private Robot focus;
+
+    @Setup
+    public void setUp() {
+        gs.camMode = camMode;
+        focus = new Robot(Material.GOLD);
+        focus.position.set(10, 0, 1);
+        focus.direction.set(0, 1, 0);
+    }
+
+    @Benchmark
+    public MutableVec3 update() {
+        gs.theta += 0.001f;
+        camera.update(gs, focus);
+        return camera.eye;
+    }
+}
@@ -0,0 +1,66 @@
+package robotrace;
+
+import java.util.concurrent.TimeUnit;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures setting a material, against a small offscreen OpenGL
+ * context so no window is needed. On machines without a GPU the
+ * context is provided by a software renderer such as Mesa.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MaterialBenchmark {
+
+    private final Material[] materials = Material.values();
+
+    /** The index of the next material, cycling so the cache misses. */
+    private int next = 0;
+
+    private GLOffscreenAutoDrawable drawable;
+
+    private RobotRace robotRace;
+
+    @Setup
+    public void setUp() {
+        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+
+        drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, capabilities, null, 64, 64);
+        drawable.display();
+        drawable.getContext().makeCurrent();
+
+        robotRace = new RobotRace();
+        robotRace.gl = drawable.getGL().getGL2();
+    }
+
+    @TearDown
+    public void tearDown() {
+        drawable.getContext().release();
+        drawable.destroy();
+    }
+
+    @Benchmark
+    public void setMaterial() {
+        robotRace.setMaterial(materials[next++ % materials.length]);
+    }
+
+    @Benchmark
+    public void setCurrentMaterial() {
+        robotRace.setMaterial(Material.TRACK);
+    }
+}
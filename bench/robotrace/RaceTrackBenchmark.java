@@ -0,0 +1,73 @@
+package robotrace;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the lane queries that place the robots every frame, and the
+ * Bezier evaluation the lane tables are sampled from.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RaceTrackBenchmark {
+
+    /** The number of Bezier segments, 0 for the test track. */
+    @Param({"0", "4", "12", "1024"})
+    public int segments;
+
+    private RaceTrack track;
+
+    private Vector P0, P1, P2, P3;
+
+    private final MutableVec3 out = new MutableVec3();
+
+    /** The parameter of the next query, stepped by the golden ratio. */
+    private double t = 0;
+
+    @Setup
+    public void setUp() {
+        track = BenchmarkTracks.create(segments);
+
+        Vector[] points = BenchmarkTracks.controlPoints(Math.max(1, segments));
+        P0 = points[0];
+        P1 = points[1];
+        P2 = points[2];
+        P3 = points[3 % points.length];
+    }
+
+    private double nextT() {
+        t += 0.6180339887498949;
+        if (t >= 1) {
+            t -= 1;
+        }
+        return t;
+    }
+
+    @Benchmark
+    public MutableVec3 lanePoint() {
+        return track.getLanePoint(2, nextT(), out);
+    }
+
+    @Benchmark
+    public MutableVec3 laneTangent() {
+        return track.getLaneTangent(2, nextT(), out);
+    }
+
+    @Benchmark
+    public Vector lanePointVector() {
+        return track.getLanePoint(2, nextT());
+    }
+
+    @Benchmark
+    public Vector cubicBezierPoint() {
+        return track.getCubicBezierPoint(nextT(), P0, P1, P2, P3);
+    }
+}
@@ -0,0 +1,49 @@
+package robotrace;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the terrain height lookup used to place robots and the camera,
+ * around tracks of several lengths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TerrainBenchmark {
+
+    /** The number of Bezier segments of the track, 0 for the test track. */
+    @Param({"0", "64", "1024"})
+    public int segments;
+
+    private Terrain terrain;
+
+    /** The position of the next query, walking a diagonal across the terrain. */
+    private float x = 0, y = 0;
+
+    @Setup
+    public void setUp() {
+        terrain = new Terrain();
+        terrain.setTrack(BenchmarkTracks.create(segments));
+    }
+
+    @Benchmark
+    public float heightAt() {
+        x += 0.731f;
+        y += 0.419f;
+        if (x > 200) {
+            x -= 400;
+        }
+        if (y > 200) {
+            y -= 400;
+        }
+        return terrain.heightAt(x, y);
+    }
+}
@@ -0,0 +1,226 @@
+package robotrace;
+
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over a fixed set of axis aligned boxes.
+ *
+ * The tree is built once by recursively splitting the items at the
+ * median along the longest axis of their bounds, and is stored in flat
+ * arrays. A frustum query walks the tree without allocating and skips
+ * every subtree whose box lies outside the frustum, so its cost grows
+ * with the number of visible items rather than the total number.
+ */
+class BoundsTree {
+
+    /** The largest number of items in a leaf. */
+    private final static int LEAF_SIZE = 2;
+
+    /** The item bounds, as minX, minY, minZ, maxX, maxY, maxZ per item. */
+    private final float[] itemBounds;
+
+    /** The items, ordered so that every node covers a contiguous range. */
+    private final int[] items;
+
+    /** The bounds of every node, laid out like the item bounds. */
+    private final float[] nodeBounds;
+
+    /** The first item of every node, in {@link #items}. */
+    private final int[] nodeStart;
+
+    /** The number of items of every node. */
+    private final int[] nodeCount;
+
+    /** The second child of every inner node, -1 for leaves. The first child directly follows its parent. */
+    private final int[] nodeRight;
+
+    /** The number of nodes in use. */
+    private int nodes = 0;
+
+    /** The nodes still to visit during a query. */
+    private final int[] stack;
+
+    /**
+     * Builds the tree over the given boxes, six floats per item.
+     */
+    public BoundsTree(float[] bounds) {
+        int count = bounds.length / 6;
+        itemBounds = bounds;
+        items = new int[count];
+        for (int i = 0; i < count; i++) {
+            items[i] = i;
+        }
+
+        int capacity = Math.max(1, 2 * count);
+        nodeBounds = new float[6 * capacity];
+        nodeStart = new int[capacity];
+        nodeCount = new int[capacity];
+        nodeRight = new int[capacity];
+        stack = new int[capacity];
+
+        if (count > 0) {
+            build(0, count);
+        }
+    }
+
+    /**
+     * Returns the number of items in this tree.
+     */
+    public int size() {
+        return items.length;
+    }
+
+    /**
+     * Copies the box around all items into out, as minX, minY, minZ,
+     * maxX, maxY, maxZ, and returns whether the tree holds any item.
+     */
+    public boolean getBounds(float[] out) {
+        if (0 == nodes) {
+            return false;
+        }
+        System.arraycopy(nodeBounds, 0, out, 0, 6);
+        return true;
+    }
+
+    /**
+     * Sets visible[i] to whether item i may be visible in the frustum,
+     * and returns the number of visible items.
+     */
+    public int query(Frustum frustum, boolean[] visible) {
+        Arrays.fill(visible, false);
+        if (0 == nodes) {
+            return 0;
+        }
+
+        int found = 0;
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            if (!intersects(frustum, nodeBounds, node)) {
+                continue;
+            }
+
+            if (nodeRight[node] < 0) {
+                int end = nodeStart[node] + nodeCount[node];
+                for (int k = nodeStart[node]; k < end; k++) {
+                    if (intersects(frustum, itemBounds, items[k])) {
+                        visible[items[k]] = true;
+                        found++;
+                    }
+                }
+            } else {
+                stack[top++] = nodeRight[node];
+                stack[top++] = node + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Builds the node over items[start, end) and returns its index.
+     */
+    private int build(int start, int end) {
+        int node = nodes++;
+        nodeStart[node] = start;
+        nodeCount[node] = end - start;
+        nodeRight[node] = -1;
+
+        // The node bounds enclose the bounds of all its items.
+        for (int a = 0; a < 3; a++) {
+            nodeBounds[6 * node + a] = Float.POSITIVE_INFINITY;
+            nodeBounds[6 * node + 3 + a] = Float.NEGATIVE_INFINITY;
+        }
+        for (int k = start; k < end; k++) {
+            int item = items[k];
+            for (int a = 0; a < 3; a++) {
+                nodeBounds[6 * node + a] = Math.min(nodeBounds[6 * node + a],
+                                                    itemBounds[6 * item + a]);
+                nodeBounds[6 * node + 3 + a] = Math.max(nodeBounds[6 * node + 3 + a],
+                                                        itemBounds[6 * item + 3 + a]);
+            }
+        }
+
+        if (end - start <= LEAF_SIZE) {
+            return node;
+        }
+
+        // Split at the median of the box centers along the longest axis.
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (extent(node, a) > extent(node, axis)) {
+                axis = a;
+            }
+        }
+        int middle = (start + end) >>> 1;
+        selectByCenter(start, end, middle, axis);
+        build(start, middle);
+        nodeRight[node] = build(middle, end);
+        return node;
+    }
+
+    /**
+     * Returns the size of a node along an axis.
+     */
+    private float extent(int node, int axis) {
+        return nodeBounds[6 * node + 3 + axis] - nodeBounds[6 * node + axis];
+    }
+
+    /**
+     * Reorders items[start, end) so that the item at middle is the one
+     * that belongs there by the center of its bounds along an axis, with
+     * no item before it having a larger center and none after it a
+     * smaller one. Uses a quickselect with a median of three pivot, which
+     * takes linear time on average, also for items that are reversed.
+     */
+    private void selectByCenter(int start, int end, int middle, int axis) {
+        int low = start;
+        int high = end - 1;
+        while (low < high) {
+            float first = center(items[low], axis);
+            float last = center(items[high], axis);
+            float mid = center(items[(low + high) >>> 1], axis);
+            float pivot = Math.max(Math.min(first, last), Math.min(Math.max(first, last), mid));
+
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (center(items[i], axis) < pivot) {
+                    i++;
+                }
+                while (center(items[j], axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int item = items[i];
+                    items[i++] = items[j];
+                    items[j--] = item;
+                }
+            }
+
+            // Continue in the part that holds the middle, if any.
+            if (middle <= j) {
+                high = j;
+            } else if (middle >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns twice the center of the bounds of an item along an axis.
+     */
+    private float center(int item, int axis) {
+        return itemBounds[6 * item + axis] + itemBounds[6 * item + 3 + axis];
+    }
+
+    /**
+     * Returns whether box i of the given bounds may be visible.
+     */
+    private static boolean intersects(Frustum frustum, float[] bounds, int i) {
+        return frustum.intersectsBox(bounds[6 * i], bounds[6 * i + 1], bounds[6 * i + 2],
+                                     bounds[6 * i + 3], bounds[6 * i + 4], bounds[6 * i + 5]);
+    }
+}
@@ -1,50 +1,195 @@
 package robotrace;
 
 /**
- * Implementation of a camera with a position and orientation. 
+ * Implementation of a camera with a position and orientation.
+ *
+ * The eye, center and up vectors are updated in place every frame,
+ * so updating the camera does not allocate. In the modes that follow a
+ * robot, they chase their targets with critically damped springs, so
+ * the camera moves smoothly and glides from one shot to the next
+ * without overshooting. The eye never sinks into the terrain.
  */
 class Camera {
 
+    /** How high above the robot the helicopter flies. */
+    private final static double HELICOPTER_HEIGHT = 12;
+
+    /** How far beside the robot the motorcycle rides. */
+    private final static double MOTORCYCLE_DISTANCE = 4;
+
+    /** The height of the eyes of a robot. */
+    private final static double EYE_HEIGHT = 1.6;
+
+    /** The height of the middle of a robot, at which the camera looks. */
+    private final static double ROBOT_HEIGHT = 1;
+
+    /** How far ahead a robot looks in first person mode. */
+    private final static double LOOK_AHEAD = 10;
+
+    /** The time in which the springs of the eye and center roughly settle, in seconds. */
+    private final static double SMOOTH_TIME = 0.25;
+
+    /** The largest time step of the springs, so a stalled frame does not overshoot. */
+    private final static double MAX_TIME_STEP = 0.1;
+
+    /** The least height of the eye above the terrain. */
+    private final static double GROUND_CLEARANCE = 0.5;
+
     /** The position of the camera. */
-    public Vector eye = new Vector(3f, 5f, 4f);
+    public final MutableVec3 eye = new MutableVec3(3f, 5f, 4f);
 
     /** The point to which the camera is looking. */
-    public Vector center = Vector.O;
+    public final MutableVec3 center = new MutableVec3();
 
     /** The up vector. */
-    public Vector up = Vector.Z;
-    
+    public final MutableVec3 up = new MutableVec3(0, 0, 1);
+
+    /** The springs that move the eye, center and up towards their targets. */
+    private final Spring eyeSpring = new Spring();
+    private final Spring centerSpring = new Spring();
+    private final Spring upSpring = new Spring();
+
+    /** Scratch vectors. */
+    private final MutableVec3 side = new MutableVec3();
+    private final MutableVec3 zAxis = new MutableVec3(0, 0, 1);
+
+    /** The shots of the auto mode on the current track, null if none. */
+    private CameraShots shots = null;
+
+    /** The track the shots were planned on. */
+    private RaceTrack shotsTrack = null;
+
+    /** The animation time of the previous update, NaN before the first. */
+    private double lastTime = Double.NaN;
+
+    /** The terrain the eye stays above, null if the ground is flat. */
+    private Terrain terrain = null;
+
+    /**
+     * Keeps the eye above the given terrain from now on.
+     */
+    public void setTerrain(Terrain terrain) {
+        this.terrain = terrain;
+    }
+
+    /**
+     * Plans the shots of the auto mode on the given track, unless they
+     * are planned already.
+     */
+    public void setTrack(RaceTrack track) {
+        if (track != shotsTrack) {
+            shots = new CameraShots(track);
+            shotsTrack = track;
+        }
+    }
+
+    /**
+     * Updates the camera viewpoint and direction based on the selected
+     * camera mode. The robot modes follow the leader of the race in the
+     * given snapshot, and the auto mode cuts between the leader and the
+     * last robot. Without a snapshot, the first robot is followed.
+     */
+    public void update(GlobalState gs, Robot[] robots, RaceSnapshot snapshot) {
+        update(gs, gs.camMode, robots, snapshot, 0);
+    }
+
+    /**
+     * Updates the camera viewpoint and direction in the given camera
+     * mode, following the robot at the given place in the standings,
+     * from 0 for the leader or negative from -1 for the last. The auto
+     * mode cuts between the leader and the last robot instead. Without
+     * a snapshot, the place is taken as the index of the robot.
+     */
+    public void update(GlobalState gs, int mode, Robot[] robots, RaceSnapshot snapshot, int rank) {
+        rank = Math.max(0, Math.min(robots.length - 1, rank >= 0 ? rank : robots.length + rank));
+
+        if (4 == mode && null != shots && null != snapshot) {
+            // The shot depends on where the leader is on the track.
+            int leader = snapshot.getRobotAtRank(0);
+            double t = snapshot.getProgress(leader, 1);
+            Robot focus = robots[shots.followsLast(t)
+                    ? snapshot.getRobotAtRank(robots.length - 1) : leader];
+            update(gs, shots.getMode(t), focus);
+        } else {
+            updateAlternating(gs, mode,
+                    robots[null == snapshot ? rank : snapshot.getRobotAtRank(rank)]);
+        }
+    }
+
     /**
      * Updates the camera viewpoint and direction based on the
      * selected camera mode.
      */
     public void update(GlobalState gs, Robot focus) {
-        
-        switch (gs.camMode) {
-            
+        updateAlternating(gs, gs.camMode, focus);
+    }
+
+    /**
+     * Updates the camera in the given mode, in which the auto mode
+     * alternates the robot modes every few seconds, as without a race.
+     */
+    private void updateAlternating(GlobalState gs, int mode, Robot focus) {
+        if (4 == mode) {
+            mode = 1 + (int) (gs.tAnim / 5) % 3;
+        }
+        update(gs, mode, focus);
+    }
+
+    /**
+     * Moves the camera towards the view of the given mode.
+     */
+    private void update(GlobalState gs, int mode, Robot focus) {
+        double dt = Double.isNaN(lastTime) ? 0
+                  : Math.max(0, Math.min(MAX_TIME_STEP, gs.tAnim - lastTime));
+        lastTime = gs.tAnim;
+
+        switch (mode) {
+
             // Helicopter mode
             case 1:
                 setHelicopterMode(gs, focus);
                 break;
-                
-            // Motor cycle mode    
+
+            // Motor cycle mode
             case 2:
                 setMotorCycleMode(gs, focus);
                 break;
-                
-            // First person mode    
+
+            // First person mode
             case 3:
                 setFirstPersonMode(gs, focus);
                 break;
-                
-            // Auto mode    
-            case 4:
-                setAutoMode(gs, focus);
-                break;
-                
-            // Default mode    
+
+            // Default mode
             default:
                 setDefaultMode(gs);
+
+                // The user steers directly, so the springs only follow.
+                keepAboveGround();
+                eyeSpring.snap(eye);
+                centerSpring.snap(center);
+                upSpring.snap(up);
+                return;
+        }
+
+        // The targets are in eye, center and up, replace them by the
+        // smoothed values.
+        eyeSpring.update(eye, SMOOTH_TIME, dt);
+        centerSpring.update(center, SMOOTH_TIME, dt);
+        upSpring.update(up, SMOOTH_TIME, dt);
+        eye.set(eyeSpring.value);
+        center.set(centerSpring.value);
+        up.set(upSpring.value).normalize();
+        keepAboveGround();
+    }
+
+    /**
+     * Raises the eye to the clearance above the terrain if it is lower.
+     */
+    private void keepAboveGround() {
+        if (null != terrain) {
+            double ground = terrain.heightAt((float) eye.x, (float) eye.y) + GROUND_CLEARANCE;
+            eye.z = Math.max(eye.z, ground);
         }
     }
 
@@ -52,55 +197,120 @@ class Camera {
      * Computes eye, center, and up, based on the camera's default mode.
      */
     private void setDefaultMode(GlobalState gs) {
-        // code goes here ...
-        
         // Set the center of the camera.
-        center = gs.cnt;
-        
-        // Calculate the direction in which the camera is pointing.
-        Vector lookDirection = new Vector(
-                Math.cos(gs.theta) * Math.cos(gs.phi),
+        center.set(gs.cnt);
+
+        // Place the eye at distance vDist in the direction given by
+        // the viewing angles.
+        eye.set(Math.cos(gs.theta) * Math.cos(gs.phi),
                 Math.sin(gs.theta) * Math.cos(gs.phi),
-                Math.sin(gs.phi)
-        );
-        Vector V = lookDirection.scale(gs.vDist);
-        
-        eye = center.add(V);
+                Math.sin(gs.phi))
+           .scale(gs.vDist)
+           .add(center);
+
+        up.set(0, 0, 1);
     }
 
     /**
      * Computes eye, center, and up, based on the helicopter mode.
-     * The camera should focus on the robot.
+     * The camera looks down on the robot, with the direction in which
+     * the robot runs pointing up on the screen.
      */
     private void setHelicopterMode(GlobalState gs, Robot focus) {
-        // code goes here ...
+        center.set(focus.position);
+        eye.set(focus.position).scaleAdd(HELICOPTER_HEIGHT, zAxis);
+        up.set(focus.direction);
     }
 
     /**
      * Computes eye, center, and up, based on the motorcycle mode.
-     * The camera should focus on the robot.
+     * The camera rides beside the robot, looking at it from the side.
      */
     private void setMotorCycleMode(GlobalState gs, Robot focus) {
-        // code goes here ...
+        center.set(focus.position).scaleAdd(ROBOT_HEIGHT, zAxis);
+        side.cross(focus.direction, zAxis).normalize();
+        eye.set(center).scaleAdd(MOTORCYCLE_DISTANCE, side);
+        up.set(zAxis);
     }
 
     /**
      * Computes eye, center, and up, based on the first person mode.
-     * The camera should view from the perspective of the robot.
+     * The camera looks from the head of the robot along its direction.
      */
     private void setFirstPersonMode(GlobalState gs, Robot focus) {
-        // code goes here ...
-    }
-    
-    /**
-     * Computes eye, center, and up, based on the auto mode.
-     * The above modes are alternated.
-     */
-    private void setAutoMode(GlobalState gs, Robot focus) {
-        // code goes here ...
+        eye.set(focus.position).scaleAdd(EYE_HEIGHT, zAxis);
+        center.set(eye).scaleAdd(LOOK_AHEAD, focus.direction);
+        up.set(zAxis);
     }
-    
+
     double toRadians(double angle) {
         return angle * (Math.PI / 180);
     }
+
+    /**
+     * A critically damped spring that moves a vector towards a target,
+     * as fast as possible without overshooting. The update is the
+     * closed form approximation of Game Programming Gems 4, 1.10, which
+     * is stable for any time step.
+     */
+    private static class Spring {
+
+        /** The distance and speed below which a component is at rest. */
+        private final static double SETTLED = 1e-6;
+
+        /** The current value. */
+        final MutableVec3 value = new MutableVec3();
+
+        /** The velocity of every component of the value. */
+        private final double[] velocity = new double[3];
+
+        /** Whether the spring holds a value yet. */
+        private boolean started = false;
+
+        /**
+         * Jumps to the given value, at rest.
+         */
+        void snap(MutableVec3 target) {
+            value.set(target);
+            velocity[0] = velocity[1] = velocity[2] = 0;
+            started = true;
+        }
+
+        /**
+         * Moves the value towards the target during dt seconds, settling
+         * in about smoothTime seconds.
+         */
+        void update(MutableVec3 target, double smoothTime, double dt) {
+            if (!started) {
+                snap(target);
+                return;
+            }
+
+            double omega = 2 / smoothTime;
+            double x = omega * dt;
+            double decay = 1 / (1 + x + 0.48 * x * x + 0.235 * x * x * x);
+
+            value.set(follow(0, value.x, target.x, omega, dt, decay),
+                      follow(1, value.y, target.y, omega, dt, decay),
+                      follow(2, value.z, target.z, omega, dt, decay));
+        }
+
+        /**
+         * Returns the next value of one component.
+         */
+        private double follow(int axis, double current, double target,
+                              double omega, double dt, double decay) {
+            double change = current - target;
+
+            // Settle at rest, before the velocity decays into slow denormal numbers.
+            if (Math.abs(change) < SETTLED && Math.abs(velocity[axis]) < SETTLED) {
+                velocity[axis] = 0;
+                return target;
+            }
+
+            double temp = (velocity[axis] + omega * change) * dt;
+            velocity[axis] = (velocity[axis] - omega * temp) * decay;
+            return target + (change + temp) * decay;
+        }
+    }
 }
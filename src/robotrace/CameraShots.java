@@ -0,0 +1,101 @@
+package robotrace;
+
+/**
+ * The shots of the auto camera along a race track, precomputed once.
+ *
+ * The center line is split into BINS bins of equal arc length. Bins in
+ * which the track bends are filmed from the helicopter, straights
+ * alternately from the motorcycle and in first person. Shots shorter
+ * than MIN_SHOT_BINS are merged into the shot before them, so the
+ * camera does not cut back and forth. Every other shot follows the last
+ * robot instead of the leader. Looking up the shot at a point on the
+ * track is a single array access.
+ */
+class CameraShots {
+
+    /** The camera modes of the shots, as in GlobalState.camMode. */
+    final static int HELICOPTER = 1, MOTORCYCLE = 2, FIRST_PERSON = 3;
+
+    /** The number of bins along the track. */
+    private final static int BINS = 256;
+
+    /** The smallest number of bins of a shot. */
+    private final static int MIN_SHOT_BINS = 12;
+
+    /** The turn per unit of length above which a bin is a bend, in radians. */
+    private final static double BEND_CURVATURE = 0.04;
+
+    /** The camera mode of every bin. */
+    private final byte[] modes = new byte[BINS];
+
+    /** Whether every bin follows the last robot instead of the leader. */
+    private final boolean[] followsLast = new boolean[BINS];
+
+    /**
+     * Plans the shots along the given track.
+     */
+    public CameraShots(RaceTrack track) {
+        MutableVec3 tangent = new MutableVec3();
+        MutableVec3 next = new MutableVec3();
+        double binLength = track.getLength() / BINS;
+
+        // Classify every bin by how much the center line turns in it.
+        boolean[] bends = new boolean[BINS];
+        track.getLaneTangent(0, 0, tangent);
+        for (int b = 0; b < BINS; b++) {
+            track.getLaneTangent(0, (double) (b + 1) / BINS, next);
+            double turn = Math.acos(Math.max(-1, Math.min(1, tangent.dot(next))));
+            bends[b] = turn / binLength > BEND_CURVATURE;
+            tangent.set(next);
+        }
+
+        // Start every shot where a bend begins or ends, unless too short.
+        int[] shotStarts = new int[BINS];
+        int shots = 0;
+        for (int b = 0; b < BINS; b++) {
+            boolean changes = 0 == b || bends[b] != bends[b - 1];
+            if (changes && (0 == shots || b - shotStarts[shots - 1] >= MIN_SHOT_BINS)) {
+                shotStarts[shots++] = b;
+            }
+        }
+
+        int straights = 0;
+        for (int s = 0; s < shots; s++) {
+            int start = shotStarts[s];
+            int end = s + 1 < shots ? shotStarts[s + 1] : BINS;
+            int mode;
+            if (bends[start]) {
+                mode = HELICOPTER;
+            } else {
+                mode = 0 == straights++ % 2 ? MOTORCYCLE : FIRST_PERSON;
+            }
+            for (int b = start; b < end; b++) {
+                modes[b] = (byte) mode;
+                followsLast[b] = 1 == s % 2;
+            }
+        }
+    }
+
+    /**
+     * Returns the camera mode at the given progress along the track,
+     * in laps.
+     */
+    public int getMode(double t) {
+        return modes[bin(t)];
+    }
+
+    /**
+     * Returns whether the camera follows the last robot instead of the
+     * leader at the given progress along the track, in laps.
+     */
+    public boolean followsLast(double t) {
+        return followsLast[bin(t)];
+    }
+
+    /**
+     * Returns the bin that contains the given progress in laps.
+     */
+    private static int bin(double t) {
+        return Math.min(BINS - 1, (int) ((t - Math.floor(t)) * BINS));
+    }
+}
@@ -0,0 +1,217 @@
+package robotrace;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.media.opengl.GL2;
+
+/**
+ * Records how long every phase of every frame takes.
+ *
+ * Phases may nest; the material phase, for instance, is also counted
+ * in the phase that sets the material. In synchronous mode every phase
+ * ends with glFinish, so its time includes the GPU work it submitted.
+ * A disabled profiler ignores all calls. Storage for all frames is
+ * allocated up front, so profiling does not allocate per frame.
+ */
+class FrameProfiler {
+
+    /** The phases of a frame that are timed. */
+    enum Phase {
+        SET_VIEW("setView"),
+        SHADOWS("shadows"),
+        ROBOTS("robots"),
+        TRACK("track"),
+        TERRAIN("terrain"),
+        MATERIALS("materials");
+
+        /** The name of the phase in the output. */
+        final String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    /** The number of phases. */
+    private final static int PHASES = Phase.values().length;
+
+    /** Whether calls are recorded at all. */
+    private final boolean enabled;
+
+    /** Whether every phase waits for the GPU with glFinish. */
+    private final boolean synchronous;
+
+    /** The total time of every recorded frame, in nanoseconds. */
+    private final long[] frameTimes;
+
+    /** The time of every phase of every recorded frame, in nanoseconds. */
+    private final long[] phaseTimes;
+
+    /** The number of GL errors reported in every recorded frame. */
+    private final int[] glErrors;
+
+    /** The start time of the running phases of the current frame. */
+    private final long[] phaseStarts = new long[PHASES];
+
+    /** The number of frames recorded so far. */
+    private int frameCount = 0;
+
+    /** The start time of the current frame. */
+    private long frameStart;
+
+    /** The OpenGL reference of the current frame. */
+    private GL2 gl;
+
+    /**
+     * Constructs a profiler that records up to capacity frames, or a
+     * disabled profiler if capacity is 0.
+     */
+    public FrameProfiler(int capacity, boolean synchronous) {
+        this.enabled = capacity > 0;
+        this.synchronous = synchronous;
+        this.frameTimes = new long[capacity];
+        this.phaseTimes = new long[capacity * PHASES];
+        this.glErrors = new int[capacity];
+    }
+
+    /**
+     * Returns whether this profiler records frames.
+     */
+    public boolean isEnabled() {
+        return enabled && frameCount < frameTimes.length;
+    }
+
+    /**
+     * Starts a new frame that issues its commands through gl.
+     */
+    public void beginFrame(GL2 gl) {
+        if (!isEnabled()) {
+            return;
+        }
+        this.gl = gl;
+        frameStart = System.nanoTime();
+    }
+
+    /**
+     * Starts timing a phase of the current frame.
+     */
+    public void start(Phase phase) {
+        if (!isEnabled()) {
+            return;
+        }
+        phaseStarts[phase.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Stops timing a phase, adding its time to the current frame.
+     */
+    public void stop(Phase phase) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (synchronous) {
+            gl.glFinish();
+        }
+        phaseTimes[frameCount * PHASES + phase.ordinal()] +=
+                System.nanoTime() - phaseStarts[phase.ordinal()];
+    }
+
+    /**
+     * Ends the current frame, in which errors GL errors were reported.
+     */
+    public void endFrame(int errors) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (synchronous) {
+            gl.glFinish();
+        }
+        frameTimes[frameCount] = System.nanoTime() - frameStart;
+        glErrors[frameCount] = errors;
+        frameCount++;
+    }
+
+    /**
+     * Writes the recorded frames to a CSV file, one row per frame,
+     * with all times in milliseconds.
+     */
+    public void writeCsv(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.print("frame,total");
+            for (Phase phase : Phase.values()) {
+                out.print("," + phase.label);
+            }
+            out.println(",glErrors");
+
+            for (int f = 0; f < frameCount; f++) {
+                out.print(f + "," + millis(frameTimes[f]));
+                for (int p = 0; p < PHASES; p++) {
+                    out.print("," + millis(phaseTimes[f * PHASES + p]));
+                }
+                out.println("," + glErrors[f]);
+            }
+        }
+    }
+
+    /**
+     * Writes summary statistics of the recorded frames to a JSON file,
+     * with all times in milliseconds.
+     */
+    public void writeJson(File file) throws FileNotFoundException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            long errors = 0;
+            for (int f = 0; f < frameCount; f++) {
+                errors += glErrors[f];
+            }
+
+            out.println("{");
+            out.println("  \"frames\": " + frameCount + ",");
+            out.println("  \"synchronous\": " + synchronous + ",");
+            out.println("  \"glErrors\": " + errors + ",");
+            out.println("  \"total\": " + statistics(frameTimes, 0, 1) + ",");
+            out.println("  \"phases\": {");
+            for (Phase phase : Phase.values()) {
+                out.print("    \"" + phase.label + "\": "
+                        + statistics(phaseTimes, phase.ordinal(), PHASES));
+                out.println(phase.ordinal() < PHASES - 1 ? "," : "");
+            }
+            out.println("  }");
+            out.println("}");
+        }
+    }
+
+    /**
+     * Returns the mean, median, 95th percentile and maximum of every
+     * stride-th value from offset, as a JSON object.
+     */
+    private String statistics(long[] values, int offset, int stride) {
+        if (0 == frameCount) {
+            return "{}";
+        }
+
+        long[] sorted = new long[frameCount];
+        long sum = 0;
+        for (int f = 0; f < frameCount; f++) {
+            sorted[f] = values[f * stride + offset];
+            sum += sorted[f];
+        }
+        Arrays.sort(sorted);
+
+        return String.format(Locale.ROOT,
+                "{\"mean\": %s, \"p50\": %s, \"p95\": %s, \"max\": %s}",
+                millis(sum / frameCount),
+                millis(sorted[frameCount / 2]),
+                millis(sorted[Math.min(frameCount - 1, frameCount * 95 / 100)]),
+                millis(sorted[frameCount - 1]));
+    }
+
+    /**
+     * Formats a duration in nanoseconds as milliseconds.
+     */
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.4f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,97 @@
+package robotrace;
+
+/**
+ * The view frustum of the camera, as six planes in world coordinates.
+ *
+ * The planes are extracted from the product of the projection and the
+ * viewing matrix, and point inwards. A volume is considered visible
+ * unless it lies entirely outside one of the planes, which may keep a
+ * few volumes near the corners of the frustum but never drops one that
+ * can be seen.
+ */
+class Frustum {
+
+    /** The number of planes. */
+    private final static int PLANES = 6;
+
+    /** The planes as a, b, c, d with ax + by + cz + d >= 0 inside. */
+    private final double[] planes = new double[4 * PLANES];
+
+    /** Scratch matrix holding projection times view. */
+    private final Matrix4 viewProjection = new Matrix4();
+
+    /** Whether this frustum culls at all, false until first set. */
+    private boolean enabled = false;
+
+    /**
+     * Sets the planes from a projection and a viewing matrix.
+     */
+    public Frustum set(Matrix4 projection, Matrix4 view) {
+        viewProjection.multiply(projection, view);
+
+        // Every plane is the fourth row plus or minus one of the others.
+        for (int p = 0; p < PLANES; p++) {
+            int row = p / 2;
+            double sign = (p % 2 == 0) ? 1 : -1;
+            double a = viewProjection.get(3, 0) + sign * viewProjection.get(row, 0);
+            double b = viewProjection.get(3, 1) + sign * viewProjection.get(row, 1);
+            double c = viewProjection.get(3, 2) + sign * viewProjection.get(row, 2);
+            double d = viewProjection.get(3, 3) + sign * viewProjection.get(row, 3);
+
+            double length = Math.sqrt(a * a + b * b + c * c);
+            planes[4 * p] = a / length;
+            planes[4 * p + 1] = b / length;
+            planes[4 * p + 2] = c / length;
+            planes[4 * p + 3] = d / length;
+        }
+
+        enabled = true;
+        return this;
+    }
+
+    /**
+     * Turns culling off, so that everything is considered visible.
+     */
+    public Frustum disable() {
+        enabled = false;
+        return this;
+    }
+
+    /**
+     * Returns whether the axis aligned box may be visible.
+     */
+    public boolean intersectsBox(double minX, double minY, double minZ,
+                                 double maxX, double maxY, double maxZ) {
+        if (!enabled) {
+            return true;
+        }
+
+        for (int p = 0; p < 4 * PLANES; p += 4) {
+            // Test the corner of the box that lies furthest along the normal.
+            double x = planes[p] >= 0 ? maxX : minX;
+            double y = planes[p + 1] >= 0 ? maxY : minY;
+            double z = planes[p + 2] >= 0 ? maxZ : minZ;
+
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the sphere may be visible.
+     */
+    public boolean intersectsSphere(double x, double y, double z, double radius) {
+        if (!enabled) {
+            return true;
+        }
+
+        for (int p = 0; p < 4 * PLANES; p += 4) {
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
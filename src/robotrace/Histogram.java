@@ -0,0 +1,133 @@
+package robotrace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in buckets whose width grows with the value,
+ * like an HDR histogram, so every percentile is known to within about
+ * 3% over the whole range of a long in about two thousand buckets.
+ *
+ * Values below SUB_BUCKETS have a bucket each; above that, every power
+ * of two is split into SUB_BUCKETS / 2 buckets of equal width. Recording
+ * takes a few atomic updates, without locks or allocation, so the render
+ * and simulation threads record while exporters read on other threads.
+ * A read may miss the values recorded during it, but is never torn.
+ */
+final class Histogram {
+
+    /** The number of bits of the exactly counted values. */
+    private final static int SUB_BUCKET_BITS = 6;
+
+    /** The number of exactly counted values, twice the buckets per power of two. */
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The number of buckets per power of two above the exact values. */
+    private final static int HALF = SUB_BUCKETS / 2;
+
+    /** The number of buckets, enough for any non-negative long. */
+    private final static int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+    /** The number of values in every bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The number of values. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of all values. */
+    private final LongAdder sum = new LongAdder();
+
+    /** The largest value. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded values, 0 if there are none.
+     */
+    public double getMean() {
+        long n = count.sum();
+        return 0 == n ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the largest recorded value, 0 if there are none.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below or at which the given percentage of the
+     * recorded values lie, rounded up to the end of its bucket, or 0 if
+     * there are none.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (0 == total) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the bucket of a non-negative value.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the SUB_BUCKET_BITS highest bits, of which the top one is set.
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF + top - HALF;
+    }
+
+    /**
+     * Returns the largest value in the given bucket.
+     */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long top = (index - SUB_BUCKETS) % HALF + HALF;
+        long end = (top + 1) << shift;
+        return end > 0 ? end - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,139 @@
+package robotrace;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the metrics as an MXBean on the platform MBean server. The
+ * values are read on the threads of the JMX clients, when they ask.
+ */
+class JmxMetricsExporter implements MetricsExporter, MetricsMXBean {
+
+    /** The name under which the metrics are published. */
+    private final static String NAME = "robotrace:type=RaceMetrics";
+
+    /** The metrics being exported. */
+    private RaceMetrics metrics;
+
+    /** The name of the registered bean, null when stopped. */
+    private ObjectName name = null;
+
+    @Override
+    public void start(RaceMetrics metrics) {
+        this.metrics = metrics;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName(NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            System.err.println("Publishing metrics failed: " + ex.getMessage());
+            name = null;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (null != name) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) {
+                System.err.println("Unpublishing metrics failed: " + ex.getMessage());
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public long getFrameCount() {
+        return metrics.frameTimes.getCount();
+    }
+
+    @Override
+    public double getFrameTimeMean() {
+        return metrics.frameTimes.getMean() / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP50() {
+        return metrics.frameTimes.getValueAtPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP99() {
+        return metrics.frameTimes.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeMax() {
+        return metrics.frameTimes.getMax() / 1e6;
+    }
+
+    @Override
+    public double getTickTimeP99() {
+        return metrics.tickTimes.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getTickTimeMax() {
+        return metrics.tickTimes.getMax() / 1e6;
+    }
+
+    @Override
+    public long getDrawCallsP50() {
+        return metrics.drawCalls.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getAllocatedBytesP50() {
+        return metrics.allocations.getValueAtPercentile(50);
+    }
+
+    @Override
+    public int[] getStandings() {
+        RaceSimulation race = metrics.getRace();
+        if (null == race) {
+            return new int[0];
+        }
+        RaceSnapshot snapshot = race.getSnapshot();
+        int[] standings = new int[snapshot.getRobotCount()];
+        for (int rank = 0; rank < standings.length; rank++) {
+            standings[rank] = snapshot.getRobotAtRank(rank);
+        }
+        return standings;
+    }
+
+    @Override
+    public double[] getBestLapTimes() {
+        RaceSimulation race = metrics.getRace();
+        if (null == race) {
+            return new double[0];
+        }
+        LapTimes laps = race.getLapTimes();
+        double[] best = new double[laps.getRobotCount()];
+        for (int robot = 0; robot < best.length; robot++) {
+            best[robot] = laps.getBestLapTime(robot);
+        }
+        return best;
+    }
+
+    @Override
+    public double[][] getLapTimes() {
+        RaceSimulation race = metrics.getRace();
+        if (null == race) {
+            return new double[0][];
+        }
+        LapTimes laps = race.getLapTimes();
+        double[][] times = new double[laps.getRobotCount()][laps.getLaps()];
+        for (int robot = 0; robot < times.length; robot++) {
+            for (int lap = 0; lap < laps.getLaps(); lap++) {
+                times[robot][lap] = laps.getLapTime(robot, lap);
+            }
+        }
+        return times;
+    }
+}
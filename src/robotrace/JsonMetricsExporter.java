@@ -0,0 +1,91 @@
+package robotrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the metrics to a JSON file, on its own thread.
+ *
+ * Every export is written to a temporary file next to the target, which
+ * then replaces the target, so a reader never sees a partial file.
+ */
+class JsonMetricsExporter implements MetricsExporter {
+
+    /** The file to write to. */
+    private final File file;
+
+    /** The time between two exports, in milliseconds. */
+    private final long period;
+
+    /** The thread that exports, null when stopped. */
+    private ScheduledExecutorService executor = null;
+
+    /** The metrics being exported. */
+    private RaceMetrics metrics;
+
+    /**
+     * Constructs an exporter that writes to the given file every period
+     * milliseconds.
+     */
+    public JsonMetricsExporter(File file, long period) {
+        this.file = file;
+        this.period = period;
+    }
+
+    @Override
+    public void start(RaceMetrics metrics) {
+        this.metrics = metrics;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "metrics-json");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        if (null == executor) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(period, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        export();
+    }
+
+    /**
+     * Writes the current metrics to the file.
+     */
+    private void export() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            try (PrintWriter out = new PrintWriter(temporary, "UTF-8")) {
+                metrics.writeJson(out);
+            }
+            Files.move(temporary.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("Exporting metrics failed: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package robotrace;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The lap and split times of every robot in a race.
+ *
+ * Every lap is split into SPLITS sectors of equal arc length, so a split
+ * is timed whenever the progress of a robot passes a multiple of
+ * 1 / SPLITS laps, interpolated within the tick like the finish time.
+ * Every passing time is written once by the simulation thread into an
+ * atomic array, so the times can be read from any thread while the race
+ * runs. Times that are not known yet are NaN.
+ */
+final class LapTimes {
+
+    /** The number of splits per lap. */
+    final static int SPLITS = 4;
+
+    /** The number of robots. */
+    private final int robotCount;
+
+    /** The number of laps of the race. */
+    private final int laps;
+
+    /** The number of split lines per robot, including the start line. */
+    private final int lines;
+
+    /** The time at which every robot passed every split line, as raw long bits. */
+    private final AtomicLongArray passings;
+
+    /**
+     * Constructs the times of a race of robotCount robots over the
+     * given number of laps, with robots at or beyond the start line
+     * starting their first lap at time 0.
+     */
+    LapTimes(int robotCount, int laps, double[] progress) {
+        this.robotCount = robotCount;
+        this.laps = laps;
+        lines = laps * SPLITS + 1;
+        passings = new AtomicLongArray(robotCount * lines);
+        for (int i = 0; i < passings.length(); i++) {
+            passings.set(i, Double.doubleToRawLongBits(Double.NaN));
+        }
+        for (int robot = 0; robot < robotCount; robot++) {
+            if (progress[robot] >= 0) {
+                passings.set(robot * lines, Double.doubleToRawLongBits(0));
+            }
+        }
+    }
+
+    /**
+     * Times the split lines that a robot passed while its progress went
+     * from previous at the given previous time to current at time.
+     */
+    void update(int robot, double previous, double current,
+                double previousTime, double time) {
+        int first = Math.max(0, (int) Math.floor(previous * SPLITS) + 1);
+        int last = Math.min(lines - 1, (int) Math.floor(current * SPLITS));
+        for (int line = first; line <= last; line++) {
+            double f = ((double) line / SPLITS - previous) / (current - previous);
+            double passed = previousTime + f * (time - previousTime);
+            passings.set(robot * lines + line, Double.doubleToRawLongBits(passed));
+        }
+    }
+
+    /**
+     * Returns the number of robots.
+     */
+    public int getRobotCount() {
+        return robotCount;
+    }
+
+    /**
+     * Returns the number of laps of the race.
+     */
+    public int getLaps() {
+        return laps;
+    }
+
+    /**
+     * Returns the duration of the given lap of a robot, counting from 0.
+     */
+    public double getLapTime(int robot, int lap) {
+        return passing(robot, (lap + 1) * SPLITS) - passing(robot, lap * SPLITS);
+    }
+
+    /**
+     * Returns the duration of the given split of the given lap of a robot.
+     */
+    public double getSplitTime(int robot, int lap, int split) {
+        int line = lap * SPLITS + split;
+        return passing(robot, line + 1) - passing(robot, line);
+    }
+
+    /**
+     * Returns the shortest completed lap of a robot.
+     */
+    public double getBestLapTime(int robot) {
+        double best = Double.NaN;
+        for (int lap = 0; lap < laps; lap++) {
+            double time = getLapTime(robot, lap);
+            if (!Double.isNaN(time) && !(time >= best)) {
+                best = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the time at which a robot passed a split line.
+     */
+    private double passing(int robot, int line) {
+        return Double.longBitsToDouble(passings.get(robot * lines + line));
+    }
+}
@@ -0,0 +1,344 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.ByteBuffer;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLException;
+
+/**
+ * Lights the scene with a GLSL program instead of the fixed pipeline.
+ *
+ * The lights are uploaded once per frame into a uniform buffer, in eye
+ * coordinates, and the material is a range of another uniform buffer
+ * that holds all materials (see {@link MaterialCache}). Both buffers are
+ * shared by every program that includes the lighting fragment shader,
+ * like the one of the robots. Lighting is computed per pixel from the
+ * interpolated normal, so scaled geometry needs no GL_NORMALIZE, and up
+ * to MAX_LIGHTS lights are supported.
+ *
+ * One light may cast shadows: the fragments it lights are looked up in
+ * a shadow map (see {@link ShadowMap}) bound to SHADOW_UNIT, through the
+ * shadow matrix from eye coordinates to its texture coordinates.
+ *
+ * When the OpenGL implementation lacks uniform buffers, the first eight
+ * lights are set up in the fixed pipeline instead, without shadows.
+ */
+class Lighting {
+
+    /** The maximum number of lights. */
+    final static int MAX_LIGHTS = 16;
+
+    /** The binding point of the per frame uniform buffer. */
+    final static int FRAME_BINDING = 0;
+
+    /** The binding point of the material uniform buffer. */
+    final static int MATERIAL_BINDING = 1;
+
+    /** The texture unit of the shadow map. */
+    final static int SHADOW_UNIT = 1;
+
+    /** The maximum number of lights of the fixed pipeline. */
+    private final static int MAX_FIXED_LIGHTS = 8;
+
+    /** The byte offsets of the members of the Frame block, in std140 layout. */
+    private final static int AMBIENT_OFFSET = 0, COUNT_OFFSET = 16,
+                             POSITIONS_OFFSET = 32,
+                             AMBIENTS_OFFSET = POSITIONS_OFFSET + 16 * MAX_LIGHTS,
+                             DIFFUSES_OFFSET = AMBIENTS_OFFSET + 16 * MAX_LIGHTS,
+                             SPECULARS_OFFSET = DIFFUSES_OFFSET + 16 * MAX_LIGHTS,
+                             SHADOW_MATRIX_OFFSET = SPECULARS_OFFSET + 16 * MAX_LIGHTS,
+                             SHADOW_LIGHT_OFFSET = SHADOW_MATRIX_OFFSET + 64,
+                             FRAME_SIZE = SHADOW_LIGHT_OFFSET + 16;
+
+    /** The vertex shader of untextured and textured scene geometry. */
+    final static String VERTEX_SHADER =
+          "#version 120\n"
+        + "varying vec3 eyePosition;\n"
+        + "varying vec3 eyeNormal;\n"
+        + "varying vec2 texCoord;\n"
+        + "void main() {\n"
+        + "    vec4 position = gl_ModelViewMatrix * gl_Vertex;\n"
+        + "    eyePosition = position.xyz;\n"
+        + "    eyeNormal = gl_NormalMatrix * gl_Normal;\n"
+        + "    texCoord = gl_MultiTexCoord0.xy;\n"
+        + "    gl_Position = gl_ProjectionMatrix * position;\n"
+        + "}\n";
+
+    /** The fragment shader, which applies the lights, the material and the texture. */
+    final static String FRAGMENT_SHADER =
+          "#version 120\n"
+        + "#extension GL_ARB_uniform_buffer_object : enable\n"
+        + "layout(std140) uniform Frame {\n"
+        + "    vec4 sceneAmbient;\n"
+        + "    int lightCount;\n"
+        + "    vec4 lightPositions[" + MAX_LIGHTS + "];\n"
+        + "    vec4 lightAmbients[" + MAX_LIGHTS + "];\n"
+        + "    vec4 lightDiffuses[" + MAX_LIGHTS + "];\n"
+        + "    vec4 lightSpeculars[" + MAX_LIGHTS + "];\n"
+        + "    mat4 shadowMatrix;\n"
+        + "    int shadowLight;\n"
+        + "};\n"
+        + "layout(std140) uniform Material {\n"
+        + "    vec4 materialAmbient;\n"
+        + "    vec4 materialDiffuse;\n"
+        + "    vec4 materialSpecular;\n"
+        + "    float materialShininess;\n"
+        + "};\n"
+        + "uniform sampler2D colorMap;\n"
+        + "uniform sampler2DShadow shadowMap;\n"
+        + "uniform float textured;\n"
+        + "varying vec3 eyePosition;\n"
+        + "varying vec3 eyeNormal;\n"
+        + "varying vec2 texCoord;\n"
+        + "void main() {\n"
+        + "    vec3 normal = normalize(eyeNormal);\n"
+        + "    vec3 toEye = normalize(-eyePosition);\n"
+        + "    vec4 color = sceneAmbient * materialAmbient;\n"
+        + "    for (int i = 0; i < " + MAX_LIGHTS + "; i++) {\n"
+        + "        if (i >= lightCount) {\n"
+        + "            break;\n"
+        + "        }\n"
+        + "        vec3 toLight = normalize(lightPositions[i].xyz\n"
+        + "                - eyePosition * lightPositions[i].w);\n"
+        + "        float diffuse = max(dot(normal, toLight), 0.0);\n"
+        + "        float specular = 0.0;\n"
+        + "        if (diffuse > 0.0) {\n"
+        + "            float h = max(dot(normal, normalize(toLight + toEye)), 0.0);\n"
+        + "            specular = materialShininess > 0.0 ? pow(h, materialShininess) : 1.0;\n"
+        + "        }\n"
+        + "        if (i == shadowLight) {\n"
+        + "            float lit = shadow2DProj(shadowMap,\n"
+        + "                    shadowMatrix * vec4(eyePosition, 1.0)).r;\n"
+        + "            diffuse *= lit;\n"
+        + "            specular *= lit;\n"
+        + "        }\n"
+        + "        color += lightAmbients[i] * materialAmbient\n"
+        + "               + diffuse * lightDiffuses[i] * materialDiffuse\n"
+        + "               + specular * lightSpeculars[i] * materialSpecular;\n"
+        + "    }\n"
+        + "    color.a = materialDiffuse.a;\n"
+        + "    gl_FragColor = color * mix(vec4(1.0), texture2D(colorMap, texCoord), textured);\n"
+        + "}\n";
+
+    /** The ambient light of the whole scene, the default of the fixed function light model. */
+    private final float[] sceneAmbient = {0.2f, 0.2f, 0.2f, 1f};
+
+    /** The position of every light, in world or eye coordinates. */
+    private final float[][] positions = new float[MAX_LIGHTS][];
+
+    /** Whether every light moves with the camera, its position being in eye coordinates. */
+    private final boolean[] fixedToCamera = new boolean[MAX_LIGHTS];
+
+    /** The colors of every light. */
+    private final float[][] ambients = new float[MAX_LIGHTS][];
+    private final float[][] diffuses = new float[MAX_LIGHTS][];
+    private final float[][] speculars = new float[MAX_LIGHTS][];
+
+    /** The number of lights. */
+    private int lightCount = 0;
+
+    /** The light that casts shadows, -1 for none. */
+    private int shadowLight = -1;
+
+    /** The transformation from eye coordinates to shadow map coordinates. */
+    private final Matrix4 shadowMatrix = new Matrix4();
+
+    /** The program of the scene, null if the fixed pipeline is used. */
+    private ShaderProgram program = null;
+
+    /** The location of the uniform that enables the texture. */
+    private int texturedLocation;
+
+    /** The per frame uniform buffer. */
+    private int frameBuffer = 0;
+
+    /** The contents of the per frame uniform buffer. */
+    private final ByteBuffer frameData = Buffers.newDirectByteBuffer(FRAME_SIZE);
+
+    /**
+     * Adds a light with the given homogeneous position, in eye
+     * coordinates if the light moves with the camera and in world
+     * coordinates otherwise, and the given RGBA colors. Returns the
+     * index of the light.
+     */
+    public int addLight(float[] position, boolean fixedToCamera,
+                        float[] ambient, float[] diffuse, float[] specular) {
+        if (lightCount == MAX_LIGHTS) {
+            throw new IllegalStateException("No more than " + MAX_LIGHTS + " lights");
+        }
+        positions[lightCount] = position.clone();
+        this.fixedToCamera[lightCount] = fixedToCamera;
+        ambients[lightCount] = ambient.clone();
+        diffuses[lightCount] = diffuse.clone();
+        speculars[lightCount] = specular.clone();
+        return lightCount++;
+    }
+
+    /**
+     * Prepares lighting in a new context, with the given shaders and
+     * materials. Falls back to the fixed pipeline if uniform buffers
+     * are not available.
+     */
+    public void initialize(GL2 gl, ShaderManager shaders, MaterialCache materials) {
+        program = null;
+        if (ShaderManager.isSupported(gl)) {
+            try {
+                shaders.bindBlock("Frame", FRAME_BINDING);
+                shaders.bindBlock("Material", MATERIAL_BINDING);
+                program = shaders.get(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+                texturedLocation = program.getUniformLocation(gl, "textured");
+                bindSamplers(gl, program);
+
+                int[] names = new int[1];
+                gl.glGenBuffers(1, names, 0);
+                frameBuffer = names[0];
+                gl.glBindBuffer(GL_UNIFORM_BUFFER, frameBuffer);
+                gl.glBufferData(GL_UNIFORM_BUFFER, FRAME_SIZE, null, GL_DYNAMIC_DRAW);
+                gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+                gl.glBindBufferBase(GL_UNIFORM_BUFFER, FRAME_BINDING, frameBuffer);
+
+                materials.useUniformBuffer(gl);
+                return;
+            } catch (GLException ex) {
+                System.err.println("Shader lighting not available: " + ex.getMessage());
+                program = null;
+            }
+        } else {
+            System.err.println("Uniform buffers not available, using fixed function lighting");
+        }
+
+        materials.useFixedFunction();
+        gl.glShadeModel(GL_SMOOTH);
+        gl.glEnable(GL_LIGHTING);
+        gl.glEnable(GL_NORMALIZE);
+
+        // The light model keeps its default ambient, which is the scene ambient.
+        for (int i = 0; i < Math.min(lightCount, MAX_FIXED_LIGHTS); i++) {
+            gl.glEnable(GL_LIGHT0 + i);
+            gl.glLightfv(GL_LIGHT0 + i, GL_AMBIENT, ambients[i], 0);
+            gl.glLightfv(GL_LIGHT0 + i, GL_DIFFUSE, diffuses[i], 0);
+            gl.glLightfv(GL_LIGHT0 + i, GL_SPECULAR, speculars[i], 0);
+        }
+    }
+
+    /**
+     * Points the samplers of a program that includes the lighting
+     * fragment shader at their texture units.
+     */
+    void bindSamplers(GL2 gl, ShaderProgram program) {
+        program.use(gl);
+        gl.glUniform1i(program.getUniformLocation(gl, "colorMap"), 0);
+        gl.glUniform1i(program.getUniformLocation(gl, "shadowMap"), SHADOW_UNIT);
+    }
+
+    /**
+     * Returns whether the scene is lit by the shader program.
+     */
+    public boolean isShaded() {
+        return null != program;
+    }
+
+    /**
+     * Lets the given light cast shadows from the next update on, with
+     * the given transformation from eye coordinates to the coordinates
+     * of the shadow map, or no light if it is -1.
+     */
+    public void setShadow(int light, Matrix4 eyeToShadow) {
+        shadowLight = light;
+        if (light >= 0) {
+            shadowMatrix.set(eyeToShadow);
+        }
+    }
+
+    /**
+     * Passes the lights to OpenGL for the current frame, transforming
+     * their positions into eye coordinates with the given view matrix.
+     * The view matrix must also be the current modelview matrix.
+     */
+    public void update(GL2 gl, Matrix4 view) {
+        if (null == program) {
+            updateFixedFunction(gl);
+            return;
+        }
+
+        putVector(AMBIENT_OFFSET, sceneAmbient);
+        frameData.putInt(COUNT_OFFSET, lightCount);
+        for (int i = 0; i < lightCount; i++) {
+            float[] p = positions[i];
+            int offset = POSITIONS_OFFSET + 16 * i;
+            for (int row = 0; row < 4; row++) {
+                float value = p[row];
+                if (!fixedToCamera[i]) {
+                    value = view.get(row, 0) * p[0] + view.get(row, 1) * p[1]
+                          + view.get(row, 2) * p[2] + view.get(row, 3) * p[3];
+                }
+                frameData.putFloat(offset + 4 * row, value);
+            }
+            putVector(AMBIENTS_OFFSET + 16 * i, ambients[i]);
+            putVector(DIFFUSES_OFFSET + 16 * i, diffuses[i]);
+            putVector(SPECULARS_OFFSET + 16 * i, speculars[i]);
+        }
+        for (int i = 0; i < shadowMatrix.m.length; i++) {
+            frameData.putFloat(SHADOW_MATRIX_OFFSET + 4 * i, shadowMatrix.m[i]);
+        }
+        frameData.putInt(SHADOW_LIGHT_OFFSET, shadowLight);
+
+        frameData.rewind();
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, frameBuffer);
+        gl.glBufferSubData(GL_UNIFORM_BUFFER, 0, FRAME_SIZE, frameData);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    /**
+     * Returns the homogeneous position of a light, in world or eye
+     * coordinates as it was added.
+     */
+    public float[] getPosition(int light) {
+        return positions[light];
+    }
+
+    /**
+     * Makes the scene program current, if lighting is shaded.
+     */
+    public void use(GL2 gl) {
+        if (null != program) {
+            program.use(gl);
+        }
+    }
+
+    /**
+     * Specifies whether the scene program modulates the color with the
+     * bound texture. The scene program must be current.
+     */
+    public void setTextured(GL2 gl, boolean textured) {
+        if (null != program) {
+            gl.glUniform1f(texturedLocation, textured ? 1f : 0f);
+        }
+    }
+
+    /**
+     * Sets the positions of the lights of the fixed pipeline.
+     */
+    private void updateFixedFunction(GL2 gl) {
+        for (int i = 0; i < Math.min(lightCount, MAX_FIXED_LIGHTS); i++) {
+            if (fixedToCamera[i]) {
+                gl.glPushMatrix();
+                gl.glLoadIdentity();
+                gl.glLightfv(GL_LIGHT0 + i, GL_POSITION, positions[i], 0);
+                gl.glPopMatrix();
+            } else {
+                gl.glLightfv(GL_LIGHT0 + i, GL_POSITION, positions[i], 0);
+            }
+        }
+    }
+
+    /**
+     * Writes four floats into the per frame data at the given offset.
+     */
+    private void putVector(int offset, float[] v) {
+        for (int i = 0; i < 4; i++) {
+            frameData.putFloat(offset + 4 * i, v[i]);
+        }
+    }
+}
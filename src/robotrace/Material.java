@@ -1,11 +1,14 @@
 package robotrace;
 
 /**
-* Materials that can be used for the robots.
+* Materials that can be used for the robots and the rest of the scene.
+*
+* The ambient, diffuse and specular reflectance of every material are
+* computed once, so setting a material only has to pass them to OpenGL.
 */
 public enum Material {
 
-    /** 
+    /**
      * Gold material properties.
      * Modify the default values to make it look like gold.
      */
@@ -23,7 +26,7 @@ public enum Material {
         new float[] {0.0f, 0.0f, 0.0f, 1.0f},
         0f),
 
-    /** 
+    /**
      * Wood material properties.
      * Modify the default values to make it look like wood.
      */
@@ -39,23 +42,88 @@ public enum Material {
     ORANGE (
         new float[] {0.8f, 0.8f, 0.8f, 1.0f},
         new float[] {0.0f, 0.0f, 0.0f, 1.0f},
-        0f);
+        0f),
+
+    /** Yellow metal of the box at the origin of the axis frame. */
+    AXIS_ORIGIN (1.0f, 1.0f, 0.0f, 10f, Finish.METAL),
+
+    /** Red metal of the x-axis arrow. */
+    AXIS_X (1.0f, 0.0f, 0.0f, 10f, Finish.METAL),
+
+    /** Green metal of the y-axis arrow. */
+    AXIS_Y (0.0f, 1.0f, 0.0f, 10f, Finish.METAL),
+
+    /** Blue metal of the z-axis arrow. */
+    AXIS_Z (0.0f, 0.0f, 1.0f, 10f, Finish.METAL),
+
+    /** Grey metal of the sphere marking the center point of the camera. */
+    FOCUS (0.3f, 0.3f, 0.3f, 10f, Finish.METAL),
+
+    /** Pink plastic of the example cylinder. */
+    PINK (1.0f, 0.5f, 0.5f, 0f, Finish.PLASTIC),
+
+    /** White plastic under the track textures. */
+    TRACK (1.0f, 1.0f, 1.0f, 10f, Finish.PLASTIC),
+
+    /** Dark grey plastic of the terrain. */
+    TERRAIN (0.2f, 0.2f, 0.2f, 10f, Finish.PLASTIC);
+
+    /**
+     * How a material derived from a single color reflects light.
+     */
+    enum Finish {
+        /** Specular highlights in the color of the material. */
+        METAL,
+
+        /** White specular highlights. */
+        PLASTIC
+    }
+
+    /** How much darker the ambient reflectance is than the color. */
+    private final static float AMBIENT_DECREASE = 2f;
+
+    /** How much darker the diffuse reflectance is than the color. */
+    private final static float DIFFUSE_DECREASE = 10f;
+
+    /** The ambient RGBA reflectance of the material. */
+    final float[] ambient;
 
     /** The diffuse RGBA reflectance of the material. */
-    float[] diffuse;
+    final float[] diffuse;
 
     /** The specular RGBA reflectance of the material. */
-    float[] specular;
-    
+    final float[] specular;
+
     /** The specular exponent of the material. */
-    float shininess;
+    final float shininess;
 
     /**
      * Constructs a new material with diffuse and specular properties.
      */
     private Material(float[] diffuse, float[] specular, float shininess) {
+        this.ambient = diffuse;
         this.diffuse = diffuse;
         this.specular = specular;
         this.shininess = shininess;
     }
+
+    /**
+     * Constructs a new opaque material from a single color and a finish.
+     */
+    private Material(float r, float g, float b, float shininess, Finish finish) {
+        this.ambient = new float[] {r / AMBIENT_DECREASE, g / AMBIENT_DECREASE,
+                                    b / AMBIENT_DECREASE, 1.0f};
+        this.diffuse = new float[] {r / DIFFUSE_DECREASE, g / DIFFUSE_DECREASE,
+                                    b / DIFFUSE_DECREASE, 1.0f};
+
+        if (Finish.METAL == finish) {
+            this.specular = diffuse;
+        } else {
+            // Dividing by three might be more accurate, but gives ugly results.
+            float white = (r + g + b) / (3 * DIFFUSE_DECREASE);
+            this.specular = new float[] {white, white, white, 1.0f};
+        }
+
+        this.shininess = shininess;
+    }
 }
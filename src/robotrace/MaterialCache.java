@@ -0,0 +1,106 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.ByteBuffer;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * Shadows the material that is bound in OpenGL, so that binding the
+ * material that is already current costs no OpenGL calls.
+ *
+ * With shaded lighting, all materials are uploaded once into a uniform
+ * buffer, laid out like the Material block of the lighting shader, and
+ * binding a material binds its range of that buffer. Otherwise the
+ * material is passed to the fixed pipeline.
+ *
+ * The cache assumes it sees every material change. Call
+ * {@link #invalidate} after OpenGL state may have been changed by
+ * other means, such as a new context.
+ */
+class MaterialCache {
+
+    /** The size of the Material block in std140 layout. */
+    private final static int BLOCK_SIZE = 64;
+
+    /** All materials, indexed by ordinal. */
+    private final static Material[] MATERIALS = Material.values();
+
+    /** The material that is currently bound, null if unknown. */
+    private Material current = null;
+
+    /** The uniform buffer of all materials, 0 for the fixed pipeline. */
+    private int buffer = 0;
+
+    /** The distance between two materials in the buffer, in bytes. */
+    private int stride;
+
+    /**
+     * Uploads all materials into a uniform buffer, from which they are
+     * bound from now on.
+     */
+    public void useUniformBuffer(GL2 gl) {
+        // Every range must start at a multiple of the offset alignment.
+        int[] alignment = new int[1];
+        gl.glGetIntegerv(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, alignment, 0);
+        int align = Math.max(1, alignment[0]);
+        stride = (BLOCK_SIZE + align - 1) / align * align;
+
+        ByteBuffer data = Buffers.newDirectByteBuffer(stride * MATERIALS.length);
+        for (Material material : MATERIALS) {
+            int offset = material.ordinal() * stride;
+            for (int i = 0; i < 4; i++) {
+                data.putFloat(offset + 4 * i, material.ambient[i]);
+                data.putFloat(offset + 16 + 4 * i, material.diffuse[i]);
+                data.putFloat(offset + 32 + 4 * i, material.specular[i]);
+            }
+            data.putFloat(offset + 48, material.shininess);
+        }
+
+        int[] names = new int[1];
+        gl.glGenBuffers(1, names, 0);
+        buffer = names[0];
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, buffer);
+        gl.glBufferData(GL_UNIFORM_BUFFER, data.capacity(), data, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        current = null;
+    }
+
+    /**
+     * Passes materials to the fixed pipeline from now on.
+     */
+    public void useFixedFunction() {
+        buffer = 0;
+        current = null;
+    }
+
+    /**
+     * Binds the given material for front faces, unless it is current.
+     */
+    public void apply(GL2 gl, Material material) {
+        if (material == current) {
+            return;
+        }
+
+        if (0 != buffer) {
+            gl.glBindBufferRange(GL_UNIFORM_BUFFER, Lighting.MATERIAL_BINDING, buffer,
+                                 material.ordinal() * stride, BLOCK_SIZE);
+            current = material;
+            return;
+        }
+
+        gl.glMaterialfv(GL_FRONT, GL_AMBIENT, material.ambient, 0);
+        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, material.diffuse, 0);
+        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, material.specular, 0);
+        gl.glMaterialf(GL_FRONT, GL_SHININESS, material.shininess);
+
+        current = material;
+    }
+
+    /**
+     * Forgets the current material, so the next one is always bound.
+     */
+    public void invalidate() {
+        current = null;
+    }
+}
@@ -0,0 +1,230 @@
+package robotrace;
+
+/**
+ * Represents a 4x4 matrix that is modified in place.
+ *
+ * The elements are stored in column-major order, the layout OpenGL
+ * expects, so {@link #m} can be passed to glLoadMatrixf and
+ * glMultMatrixf directly. Like {@link MutableVec3}, no operation
+ * allocates; the transformations multiply on the right, matching
+ * glTranslate, glRotate and glScale.
+ */
+final class Matrix4 {
+
+    /** The elements in column-major order. */
+    public final float[] m = new float[16];
+
+    /** Scratch space for products that alias this matrix. */
+    private final float[] scratch = new float[16];
+
+    /**
+     * Constructs the identity matrix.
+     */
+    public Matrix4() {
+        identity();
+    }
+
+    /**
+     * Returns the element at the given row and column.
+     */
+    public float get(int row, int column) {
+        return m[column * 4 + row];
+    }
+
+    /**
+     * Sets this matrix to the identity.
+     */
+    public Matrix4 identity() {
+        for (int i = 0; i < 16; i++) {
+            m[i] = (i % 5 == 0) ? 1f : 0f;
+        }
+        return this;
+    }
+
+    /**
+     * Copies the given matrix.
+     */
+    public Matrix4 set(Matrix4 that) {
+        System.arraycopy(that.m, 0, m, 0, 16);
+        return this;
+    }
+
+    /**
+     * Sets this matrix to the product a * b, where either may be this matrix.
+     */
+    public Matrix4 multiply(Matrix4 a, Matrix4 b) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += a.m[k * 4 + row] * b.m[column * 4 + k];
+                }
+                scratch[column * 4 + row] = sum;
+            }
+        }
+        System.arraycopy(scratch, 0, m, 0, 16);
+        return this;
+    }
+
+    /**
+     * Multiplies on the right with a translation.
+     */
+    public Matrix4 translate(double x, double y, double z) {
+        for (int row = 0; row < 4; row++) {
+            m[12 + row] += (float) (m[row] * x + m[4 + row] * y + m[8 + row] * z);
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies on the right with a scaling.
+     */
+    public Matrix4 scale(double x, double y, double z) {
+        for (int row = 0; row < 4; row++) {
+            m[row] *= x;
+            m[4 + row] *= y;
+            m[8 + row] *= z;
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies on the right with a rotation of the given angle, in
+     * radians, around the given unit axis.
+     */
+    public Matrix4 rotate(double angle, double ax, double ay, double az) {
+        float c = (float) Math.cos(angle);
+        float s = (float) Math.sin(angle);
+        float t = 1 - c;
+
+        float r00 = (float) (t * ax * ax + c);
+        float r01 = (float) (t * ax * ay - s * az);
+        float r02 = (float) (t * ax * az + s * ay);
+        float r10 = (float) (t * ax * ay + s * az);
+        float r11 = (float) (t * ay * ay + c);
+        float r12 = (float) (t * ay * az - s * ax);
+        float r20 = (float) (t * ax * az - s * ay);
+        float r21 = (float) (t * ay * az + s * ax);
+        float r22 = (float) (t * az * az + c);
+
+        for (int row = 0; row < 4; row++) {
+            float a = m[row];
+            float b = m[4 + row];
+            float d = m[8 + row];
+            m[row] = a * r00 + b * r10 + d * r20;
+            m[4 + row] = a * r01 + b * r11 + d * r21;
+            m[8 + row] = a * r02 + b * r12 + d * r22;
+        }
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a perspective projection, as gluPerspective
+     * with the vertical field of view given in degrees.
+     */
+    public Matrix4 perspective(double fovy, double aspect, double near, double far) {
+        double f = 1 / Math.tan(Math.toRadians(fovy) / 2);
+
+        identity();
+        m[0] = (float) (f / aspect);
+        m[5] = (float) f;
+        m[10] = (float) ((far + near) / (near - far));
+        m[11] = -1f;
+        m[14] = (float) (2 * far * near / (near - far));
+        m[15] = 0f;
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a parallel projection, as glOrtho.
+     */
+    public Matrix4 ortho(double left, double right, double bottom, double top,
+                         double near, double far) {
+        identity();
+        m[0] = (float) (2 / (right - left));
+        m[5] = (float) (2 / (top - bottom));
+        m[10] = (float) (-2 / (far - near));
+        m[12] = (float) (-(right + left) / (right - left));
+        m[13] = (float) (-(top + bottom) / (top - bottom));
+        m[14] = (float) (-(far + near) / (far - near));
+        return this;
+    }
+
+    /**
+     * Sets this matrix to the inverse of the given rotation and
+     * translation, like a viewing transformation, which may be this
+     * matrix. The rotation is transposed and the translation undone.
+     */
+    public Matrix4 invertRigid(Matrix4 a) {
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                scratch[column * 4 + row] = a.m[row * 4 + column];
+            }
+            scratch[12 + row] = -(a.m[row * 4] * a.m[12] + a.m[row * 4 + 1] * a.m[13]
+                                  + a.m[row * 4 + 2] * a.m[14]);
+            scratch[row * 4 + 3] = 0f;
+        }
+        scratch[15] = 1f;
+        System.arraycopy(scratch, 0, m, 0, 16);
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a viewing transformation, as gluLookAt.
+     */
+    public Matrix4 lookAt(MutableVec3 eye, MutableVec3 center, MutableVec3 up) {
+        double fx = center.x - eye.x;
+        double fy = center.y - eye.y;
+        double fz = center.z - eye.z;
+        double fl = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx /= fl;
+        fy /= fl;
+        fz /= fl;
+
+        // Side vector s = f x up, normalized.
+        double sx = fy * up.z - fz * up.y;
+        double sy = fz * up.x - fx * up.z;
+        double sz = fx * up.y - fy * up.x;
+        double sl = Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx /= sl;
+        sy /= sl;
+        sz /= sl;
+
+        // Recomputed up vector u = s x f.
+        double ux = sy * fz - sz * fy;
+        double uy = sz * fx - sx * fz;
+        double uz = sx * fy - sy * fx;
+
+        identity();
+        m[0] = (float) sx;
+        m[4] = (float) sy;
+        m[8] = (float) sz;
+        m[1] = (float) ux;
+        m[5] = (float) uy;
+        m[9] = (float) uz;
+        m[2] = (float) -fx;
+        m[6] = (float) -fy;
+        m[10] = (float) -fz;
+        return translate(-eye.x, -eye.y, -eye.z);
+    }
+
+    /**
+     * Transforms the point p, stores the result in out and returns it.
+     * The point and the result may be the same vector.
+     */
+    public MutableVec3 transformPoint(MutableVec3 p, MutableVec3 out) {
+        return out.set(m[0] * p.x + m[4] * p.y + m[8] * p.z + m[12],
+                       m[1] * p.x + m[5] * p.y + m[9] * p.z + m[13],
+                       m[2] * p.x + m[6] * p.y + m[10] * p.z + m[14]);
+    }
+
+    /**
+     * Transforms the direction d, ignoring the translation, stores the
+     * result in out and returns it.
+     */
+    public MutableVec3 transformDirection(MutableVec3 d, MutableVec3 out) {
+        return out.set(m[0] * d.x + m[4] * d.y + m[8] * d.z,
+                       m[1] * d.x + m[5] * d.y + m[9] * d.z,
+                       m[2] * d.x + m[6] * d.y + m[10] * d.z);
+    }
+}
@@ -0,0 +1,167 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * Static geometry stored in a vertex buffer object.
+ *
+ * The vertices are written once into a direct buffer, interleaved as
+ * position (3), normal (3) and texture coordinate (2). The buffer is
+ * uploaded to the GPU the first time the mesh is drawn, after which
+ * every draw is a single glDrawArrays call.
+ */
+class Mesh {
+
+    /** The number of floats per vertex. */
+    final static int FLOATS_PER_VERTEX = 8;
+
+    /** The number of draw calls of all meshes, for the metrics. */
+    final static LongAdder DRAW_CALLS = new LongAdder();
+
+    /** The number of bytes per vertex. */
+    private final static int STRIDE = FLOATS_PER_VERTEX * Buffers.SIZEOF_FLOAT;
+
+    /** The primitive type, like GL_TRIANGLES or GL_TRIANGLE_STRIP. */
+    private final int mode;
+
+    /** The number of vertices in this mesh. */
+    private final int vertexCount;
+
+    /** The interleaved vertex data. */
+    private final FloatBuffer vertices;
+
+    /** The name of the vertex buffer object, 0 if not yet uploaded. */
+    private int vbo = 0;
+
+    /**
+     * Constructs an empty mesh with room for the given number of vertices.
+     */
+    public Mesh(int mode, int vertexCount) {
+        this.mode = mode;
+        this.vertexCount = vertexCount;
+        this.vertices = Buffers.newDirectFloatBuffer(vertexCount * FLOATS_PER_VERTEX);
+    }
+
+    /**
+     * Appends a vertex with the given position, normal and texture coordinate.
+     */
+    public void vertex(double x, double y, double z,
+                       double nx, double ny, double nz,
+                       double s, double t) {
+        vertices.put((float) x).put((float) y).put((float) z);
+        vertices.put((float) nx).put((float) ny).put((float) nz);
+        vertices.put((float) s).put((float) t);
+    }
+
+    /**
+     * Writes the vertex at the given index, without moving the append
+     * position. Threads may fill disjoint vertices of a mesh this way.
+     */
+    public void vertex(int index, double x, double y, double z,
+                       double nx, double ny, double nz,
+                       double s, double t) {
+        int offset = index * FLOATS_PER_VERTEX;
+        vertices.put(offset, (float) x).put(offset + 1, (float) y).put(offset + 2, (float) z);
+        vertices.put(offset + 3, (float) nx).put(offset + 4, (float) ny).put(offset + 5, (float) nz);
+        vertices.put(offset + 6, (float) s).put(offset + 7, (float) t);
+    }
+
+    /**
+     * Returns the number of vertices in this mesh.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Returns whether this mesh has been uploaded into a vertex buffer object.
+     */
+    public boolean isUploaded() {
+        return 0 != vbo;
+    }
+
+    /**
+     * Draws all vertices of this mesh.
+     */
+    public void draw(GL2 gl) {
+        draw(gl, 0, vertexCount);
+    }
+
+    /**
+     * Draws count vertices of this mesh, starting at first.
+     */
+    public void draw(GL2 gl, int first, int count) {
+        bind(gl);
+        gl.glDrawArrays(mode, first, count);
+        DRAW_CALLS.increment();
+        unbind(gl);
+    }
+
+    /**
+     * Draws all vertices of this mesh the given number of times with a
+     * single call. The bound shader program tells the instances apart.
+     */
+    public void drawInstanced(GL2 gl, int instances) {
+        bind(gl);
+        gl.glDrawArraysInstanced(mode, 0, vertexCount, instances);
+        DRAW_CALLS.increment();
+        unbind(gl);
+    }
+
+    /**
+     * Uploads the mesh if needed and points the vertex arrays at it.
+     */
+    private void bind(GL2 gl) {
+        if (0 == vbo) {
+            upload(gl);
+        }
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        gl.glEnableClientState(GL_VERTEX_ARRAY);
+        gl.glEnableClientState(GL_NORMAL_ARRAY);
+        gl.glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+
+        gl.glVertexPointer(3, GL_FLOAT, STRIDE, 0);
+        gl.glNormalPointer(GL_FLOAT, STRIDE, 3 * Buffers.SIZEOF_FLOAT);
+        gl.glTexCoordPointer(2, GL_FLOAT, STRIDE, 6 * Buffers.SIZEOF_FLOAT);
+    }
+
+    /**
+     * Disables the vertex arrays enabled by {@link #bind}.
+     */
+    private void unbind(GL2 gl) {
+        gl.glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+        gl.glDisableClientState(GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL_VERTEX_ARRAY);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Releases the vertex buffer object of this mesh.
+     */
+    public void dispose(GL2 gl) {
+        if (0 != vbo) {
+            gl.glDeleteBuffers(1, new int[] {vbo}, 0);
+            vbo = 0;
+        }
+    }
+
+    /**
+     * Copies the vertex data into a new vertex buffer object.
+     */
+    private void upload(GL2 gl) {
+        int[] names = new int[1];
+        gl.glGenBuffers(1, names, 0);
+        vbo = names[0];
+
+        vertices.rewind();
+        gl.glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) vertices.capacity() * Buffers.SIZEOF_FLOAT,
+                        vertices, GL_STATIC_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+}
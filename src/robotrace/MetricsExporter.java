@@ -0,0 +1,19 @@
+package robotrace;
+
+/**
+ * Makes the race metrics available outside the application, reading
+ * them on its own thread or on the threads of its readers.
+ */
+interface MetricsExporter {
+
+    /**
+     * Starts exporting the given metrics.
+     */
+    void start(RaceMetrics metrics);
+
+    /**
+     * Stops exporting, after exporting the final values if the metrics
+     * are written out.
+     */
+    void stop();
+}
@@ -0,0 +1,45 @@
+package robotrace;
+
+/**
+ * The race metrics as seen by JMX clients such as JConsole. Times of the
+ * rendering are in milliseconds, times of the race in seconds, NaN when
+ * not known yet.
+ */
+public interface MetricsMXBean {
+
+    /** Returns the number of frames rendered. */
+    long getFrameCount();
+
+    /** Returns the mean time between two frames. */
+    double getFrameTimeMean();
+
+    /** Returns the median time between two frames. */
+    double getFrameTimeP50();
+
+    /** Returns the 99th percentile of the time between two frames. */
+    double getFrameTimeP99();
+
+    /** Returns the longest time between two frames. */
+    double getFrameTimeMax();
+
+    /** Returns the 99th percentile of the time of a simulation tick. */
+    double getTickTimeP99();
+
+    /** Returns the longest time of a simulation tick. */
+    double getTickTimeMax();
+
+    /** Returns the median number of draw calls per frame. */
+    long getDrawCallsP50();
+
+    /** Returns the median number of bytes allocated per frame. */
+    long getAllocatedBytesP50();
+
+    /** Returns the robots from the leader to the last. */
+    int[] getStandings();
+
+    /** Returns the fastest lap of every robot. */
+    double[] getBestLapTimes();
+
+    /** Returns the time of every lap of every robot. */
+    double[][] getLapTimes();
+}
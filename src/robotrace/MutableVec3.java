@@ -0,0 +1,153 @@
+package robotrace;
+
+/**
+ * Represents a 3D vector that is modified in place.
+ *
+ * Unlike {@link Vector}, none of the operations allocate: every method
+ * stores its result in this vector and returns it, so calls can be
+ * chained. Use it for scratch values on paths that run every frame,
+ * and convert to a {@link Vector} only where an API requires one.
+ */
+final class MutableVec3 {
+
+    /** Components. */
+    public double x, y, z;
+
+    /**
+     * Constructs the zero vector.
+     */
+    public MutableVec3() {
+    }
+
+    /**
+     * Constructs from components.
+     */
+    public MutableVec3(double x, double y, double z) {
+        set(x, y, z);
+    }
+
+    /**
+     * Sets all components.
+     */
+    public MutableVec3 set(double x, double y, double z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    /**
+     * Copies the given vector.
+     */
+    public MutableVec3 set(MutableVec3 that) {
+        return set(that.x, that.y, that.z);
+    }
+
+    /**
+     * Copies the given immutable vector.
+     */
+    public MutableVec3 set(Vector that) {
+        return set(that.x(), that.y(), that.z());
+    }
+
+    /**
+     * Adds the given vector.
+     */
+    public MutableVec3 add(MutableVec3 that) {
+        return set(x + that.x, y + that.y, z + that.z);
+    }
+
+    /**
+     * Subtracts the given vector.
+     */
+    public MutableVec3 subtract(MutableVec3 that) {
+        return set(x - that.x, y - that.y, z - that.z);
+    }
+
+    /**
+     * Multiplies with the given scalar.
+     */
+    public MutableVec3 scale(double scalar) {
+        return set(scalar * x, scalar * y, scalar * z);
+    }
+
+    /**
+     * Adds the given vector multiplied with the given scalar.
+     */
+    public MutableVec3 scaleAdd(double scalar, MutableVec3 that) {
+        return set(x + scalar * that.x, y + scalar * that.y, z + scalar * that.z);
+    }
+
+    /**
+     * Sets this vector to the cross product of a and b,
+     * which may both be this vector.
+     */
+    public MutableVec3 cross(MutableVec3 a, MutableVec3 b) {
+        return set(a.y * b.z - a.z * b.y,
+                   a.z * b.x - a.x * b.z,
+                   a.x * b.y - a.y * b.x);
+    }
+
+    /**
+     * Sets this vector to the linear interpolation from a to b at f.
+     */
+    public MutableVec3 lerp(MutableVec3 a, MutableVec3 b, double f) {
+        return set(a.x + f * (b.x - a.x),
+                   a.y + f * (b.y - a.y),
+                   a.z + f * (b.z - a.z));
+    }
+
+    /**
+     * Scales this vector to unit length, which is not defined for
+     * a vector of zero length.
+     */
+    public MutableVec3 normalize() {
+        return scale(1 / length());
+    }
+
+    /**
+     * Dot product with the given vector.
+     */
+    public double dot(MutableVec3 that) {
+        return x * that.x + y * that.y + z * that.z;
+    }
+
+    /**
+     * Euclidian length squared.
+     */
+    public double lengthSqr() {
+        return x * x + y * y + z * z;
+    }
+
+    /**
+     * Euclidian length.
+     */
+    public double length() {
+        return Math.sqrt(lengthSqr());
+    }
+
+    /**
+     * Euclidian distance to the given vector.
+     */
+    public double distance(MutableVec3 that) {
+        double dx = x - that.x;
+        double dy = y - that.y;
+        double dz = z - that.z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Returns an immutable copy, for APIs that require a {@link Vector}.
+     */
+    public Vector toVector() {
+        return new Vector(x, y, z);
+    }
+
+    /**
+     * String representation.
+     */
+    @Override
+    public String toString() {
+        return "(" + x + "," + y + "," + z + ")";
+    }
+}
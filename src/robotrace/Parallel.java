@@ -0,0 +1,85 @@
+package robotrace;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs geometry generation on a shared fork/join pool.
+ *
+ * Loops over independent samples, segments or chunks are split into
+ * ranges that run on all cores, and whole builds can be submitted to run
+ * in the background. The workers are daemon threads, so they never keep
+ * the application alive.
+ */
+class Parallel {
+
+    /**
+     * The body of a parallel loop, run for a range of indices.
+     */
+    interface Range {
+        /** Runs the loop body for start <= i < end. */
+        void run(int start, int end);
+    }
+
+    /** The pool shared by all geometry generation, one worker per core. */
+    private final static ForkJoinPool POOL = new ForkJoinPool();
+
+    /**
+     * Runs the body for 0 <= i < count, split into ranges of at least
+     * grain indices that run in parallel. Returns when all are done.
+     */
+    static void forRange(int count, int grain, Range body) {
+        if (count <= grain) {
+            body.run(0, count);
+            return;
+        }
+
+        Split task = new Split(body, 0, count, Math.max(1, grain));
+        if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            POOL.invoke(task);
+        }
+    }
+
+    /**
+     * Starts a task in the background and returns its future result.
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return POOL.submit(task);
+    }
+
+    /**
+     * Halves its range until it is no larger than the grain.
+     */
+    private static class Split extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        private final Range body;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        Split(Range body, int start, int end, int grain) {
+            this.body = body;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) {
+                body.run(start, end);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new Split(body, start, middle, grain),
+                          new Split(body, middle, end, grain));
+            }
+        }
+    }
+}
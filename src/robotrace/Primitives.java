@@ -0,0 +1,189 @@
+package robotrace;
+
+import java.util.HashMap;
+import java.util.Map;
+import static javax.media.opengl.GL2.*;
+
+/**
+ * A cache of tessellated primitive shapes, replacing the GLUT solids.
+ *
+ * Every shape is built once per combination of slices and stacks, with
+ * unit size, into a mesh that is kept on the GPU. Callers size and place
+ * it with the modelview matrix, so drawing a primitive costs a single
+ * draw call instead of recomputing all of its vertices.
+ */
+class Primitives {
+
+    /**
+     * The shapes that can be built, all with unit size.
+     */
+    enum Shape {
+        /** A cube with edges of length 1, centered at the origin. */
+        CUBE,
+
+        /** A closed cylinder of radius 1 along the z-axis from 0 to 1. */
+        CYLINDER,
+
+        /** A closed cone of radius 1 at z = 0 with its apex at z = 1. */
+        CONE,
+
+        /** A sphere of radius 1, centered at the origin. */
+        SPHERE
+    }
+
+    /** The meshes built so far, by shape, slices and stacks. */
+    private final Map<Long, Mesh> meshes = new HashMap<Long, Mesh>();
+
+    /**
+     * Returns the mesh of a shape tessellated with the given number of
+     * slices around and stacks along the z-axis, building it if needed.
+     * The tessellation of a cube is fixed.
+     */
+    public Mesh get(Shape shape, int slices, int stacks) {
+        if (Shape.CUBE == shape) {
+            slices = stacks = 1;
+        }
+
+        Long key = ((long) shape.ordinal() << 48) | ((long) slices << 24) | stacks;
+        Mesh mesh = meshes.get(key);
+        if (null == mesh) {
+            mesh = create(shape, slices, stacks);
+            meshes.put(key, mesh);
+        }
+        return mesh;
+    }
+
+    /**
+     * Builds a new mesh of the given shape as a list of triangles.
+     */
+    private static Mesh create(Shape shape, int slices, int stacks) {
+        int sideVertices = 6 * slices * stacks;
+        int capVertices = 3 * slices;
+        Mesh mesh;
+
+        switch (shape) {
+            case CYLINDER:
+                mesh = new Mesh(GL_TRIANGLES, sideVertices + 2 * capVertices);
+                addSide(mesh, shape, slices, stacks);
+                addCap(mesh, slices, 0, false);
+                addCap(mesh, slices, 1, true);
+                return mesh;
+            case CONE:
+                mesh = new Mesh(GL_TRIANGLES, sideVertices + capVertices);
+                addSide(mesh, shape, slices, stacks);
+                addCap(mesh, slices, 0, false);
+                return mesh;
+            case SPHERE:
+                mesh = new Mesh(GL_TRIANGLES, sideVertices);
+                addSide(mesh, shape, slices, stacks);
+                return mesh;
+            default:
+                return createBox(new float[] {1f, 1f, 1f}, new float[] {0f, 0f, 0f});
+        }
+    }
+
+    /**
+     * Creates a box with the given size around the given center, as a
+     * list of triangles with a normal per face.
+     */
+    static Mesh createBox(float[] size, float[] center) {
+        Mesh mesh = new Mesh(GL_TRIANGLES, 36);
+        float[] half = {size[0] / 2, size[1] / 2, size[2] / 2};
+
+        // Every face by its normal axis, its sign and its two other axes.
+        for (int axis = 0; axis < 3; axis++) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+                int u = (axis + 1) % 3;
+                int v = (axis + 2) % 3;
+                float[][] corners = new float[4][3];
+
+                for (int k = 0; k < 4; k++) {
+                    float su = (k == 1 || k == 2) ? 1 : -1;
+                    float sv = (k >= 2) ? 1 : -1;
+                    corners[k][axis] = sign * half[axis];
+                    corners[k][u] = su * half[u] * sign;
+                    corners[k][v] = sv * half[v];
+                }
+
+                float[] normal = new float[3];
+                normal[axis] = sign;
+
+                int[] triangles = {0, 1, 2, 0, 2, 3};
+                for (int k : triangles) {
+                    mesh.vertex(center[0] + corners[k][0],
+                                center[1] + corners[k][1],
+                                center[2] + corners[k][2],
+                                normal[0], normal[1], normal[2],
+                                (k == 1 || k == 2) ? 1 : 0, k >= 2 ? 1 : 0);
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Adds the curved surface of a shape, two triangles per slice and stack.
+     */
+    private static void addSide(Mesh mesh, Shape shape, int slices, int stacks) {
+        // The corners of the two triangles of a quad, as slice and stack offsets.
+        int[] di = {0, 1, 1, 0, 1, 0};
+        int[] dj = {0, 0, 1, 0, 1, 1};
+
+        for (int j = 0; j < stacks; j++) {
+            for (int i = 0; i < slices; i++) {
+                for (int k = 0; k < 6; k++) {
+                    addSideVertex(mesh, shape,
+                            (i + di[k]) / (double) slices,
+                            (j + dj[k]) / (double) stacks);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the vertex of the curved surface of a shape at fraction u around
+     * and fraction v along the z-axis.
+     */
+    private static void addSideVertex(Mesh mesh, Shape shape, double u, double v) {
+        double angle = 2 * Math.PI * u;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        switch (shape) {
+            case CYLINDER:
+                mesh.vertex(cos, sin, v, cos, sin, 0, u, v);
+                break;
+            case CONE:
+                // The side rises one unit over one unit of radius.
+                double r = 1 - v;
+                double n = Math.sqrt(0.5);
+                mesh.vertex(r * cos, r * sin, v, n * cos, n * sin, n, u, v);
+                break;
+            default:
+                double latitude = Math.PI * (v - 0.5);
+                double x = Math.cos(latitude) * cos;
+                double y = Math.cos(latitude) * sin;
+                double z = Math.sin(latitude);
+                mesh.vertex(x, y, z, x, y, z, u, v);
+                break;
+        }
+    }
+
+    /**
+     * Adds a disk of radius 1 at height z, facing up or down.
+     */
+    private static void addCap(Mesh mesh, int slices, double z, boolean up) {
+        double nz = up ? 1 : -1;
+        for (int i = 0; i < slices; i++) {
+            // Order the rim vertices counterclockwise as seen from outside.
+            double a0 = 2 * Math.PI * (up ? i : i + 1) / slices;
+            double a1 = 2 * Math.PI * (up ? i + 1 : i) / slices;
+
+            mesh.vertex(0, 0, z, 0, 0, nz, 0.5, 0.5);
+            mesh.vertex(Math.cos(a0), Math.sin(a0), z, 0, 0, nz,
+                        0.5 + 0.5 * Math.cos(a0), 0.5 + 0.5 * Math.sin(a0));
+            mesh.vertex(Math.cos(a1), Math.sin(a1), z, 0, 0, nz,
+                        0.5 + 0.5 * Math.cos(a1), 0.5 + 0.5 * Math.sin(a1));
+        }
+    }
+}
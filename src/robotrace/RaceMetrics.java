@@ -0,0 +1,186 @@
+package robotrace;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The runtime metrics of the race and its rendering.
+ *
+ * Every frame the render thread records the time since the previous
+ * frame, the number of draw calls and the bytes it allocated, and the
+ * simulation records the time of every tick, all into lock free
+ * {@link Histogram}s. The standings and lap times are read from the
+ * current race, whose snapshots and {@link LapTimes} may be read from
+ * any thread. Exporters therefore read the metrics on their own threads
+ * without ever pausing the render thread.
+ */
+class RaceMetrics {
+
+    /** The time between the starts of two frames, in nanoseconds. */
+    final Histogram frameTimes = new Histogram();
+
+    /** The time of every simulation tick, in nanoseconds. */
+    final Histogram tickTimes = new Histogram();
+
+    /** The number of draw calls of every frame. */
+    final Histogram drawCalls = new Histogram();
+
+    /** The bytes allocated by the render thread during every frame. */
+    final Histogram allocations = new Histogram();
+
+    /** The race being run, null before the first. */
+    private volatile RaceSimulation race = null;
+
+    /** The exporters that were started. */
+    private final List<MetricsExporter> exporters = new ArrayList<MetricsExporter>();
+
+    /** The threads, if they can tell how much a thread allocated, else null. */
+    private final com.sun.management.ThreadMXBean threads;
+
+    /** The time, draw calls and allocated bytes at the start of the last frame. */
+    private long lastFrameNanos = -1;
+    private long lastDrawCalls;
+    private long lastAllocated;
+
+    /**
+     * Constructs empty metrics.
+     */
+    public RaceMetrics() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threads = null;
+        }
+    }
+
+    /**
+     * Records the metrics of the frame that ended, when a new frame
+     * starts. Must be called from the render thread.
+     */
+    public void beginFrame() {
+        long now = System.nanoTime();
+        long calls = Mesh.DRAW_CALLS.sum();
+        long allocated = null == threads ? 0
+                       : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        if (lastFrameNanos >= 0) {
+            frameTimes.record(now - lastFrameNanos);
+            drawCalls.record(calls - lastDrawCalls);
+            if (null != threads) {
+                allocations.record(allocated - lastAllocated);
+            }
+        }
+        lastFrameNanos = now;
+        lastDrawCalls = calls;
+        lastAllocated = allocated;
+    }
+
+    /**
+     * Records the duration of a simulation tick, in nanoseconds.
+     */
+    public void recordTick(long nanos) {
+        tickTimes.record(nanos);
+    }
+
+    /**
+     * Sets the race whose standings and lap times are reported.
+     */
+    public void setRace(RaceSimulation race) {
+        this.race = race;
+    }
+
+    /**
+     * Returns the race whose standings and lap times are reported, or
+     * null if there is none yet.
+     */
+    public RaceSimulation getRace() {
+        return race;
+    }
+
+    /**
+     * Starts exporting these metrics with the given exporter.
+     */
+    public void addExporter(MetricsExporter exporter) {
+        exporters.add(exporter);
+        exporter.start(this);
+    }
+
+    /**
+     * Stops all exporters.
+     */
+    public void close() {
+        for (MetricsExporter exporter : exporters) {
+            exporter.stop();
+        }
+        exporters.clear();
+    }
+
+    /**
+     * Writes the current metrics as a JSON object, with times in
+     * milliseconds for the rendering and seconds for the race.
+     */
+    public void writeJson(PrintWriter out) {
+        out.println("{");
+        out.println("  \"frameTime\": " + statistics(frameTimes, 1e-6) + ",");
+        out.println("  \"tickTime\": " + statistics(tickTimes, 1e-6) + ",");
+        out.println("  \"drawCalls\": " + statistics(drawCalls, 1) + ",");
+        out.println("  \"allocatedBytes\": " + statistics(allocations, 1) + ",");
+
+        RaceSimulation current = race;
+        if (null == current) {
+            out.println("  \"race\": null");
+        } else {
+            RaceSnapshot snapshot = current.getSnapshot();
+            LapTimes laps = current.getLapTimes();
+            out.println("  \"race\": {");
+            out.println("    \"time\": " + number(snapshot.time) + ",");
+            out.println("    \"robots\": [");
+            for (int rank = 0; rank < snapshot.getRobotCount(); rank++) {
+                int robot = snapshot.getRobotAtRank(rank);
+                out.print("      {\"robot\": " + robot + ", \"rank\": " + (rank + 1)
+                        + ", \"progress\": " + number(snapshot.getProgress(robot, 1))
+                        + ", \"finishTime\": " + number(snapshot.getFinishTime(robot))
+                        + ", \"bestLap\": " + number(laps.getBestLapTime(robot))
+                        + ", \"laps\": [");
+                for (int lap = 0; lap < laps.getLaps(); lap++) {
+                    out.print((lap > 0 ? ", " : "") + "{\"time\": "
+                            + number(laps.getLapTime(robot, lap)) + ", \"splits\": [");
+                    for (int split = 0; split < LapTimes.SPLITS; split++) {
+                        out.print((split > 0 ? ", " : "")
+                                + number(laps.getSplitTime(robot, lap, split)));
+                    }
+                    out.print("]}");
+                }
+                out.println("]}" + (rank < snapshot.getRobotCount() - 1 ? "," : ""));
+            }
+            out.println("    ]");
+            out.println("  }");
+        }
+        out.println("}");
+    }
+
+    /**
+     * Returns the count, mean, median, 99th percentile and maximum of
+     * a histogram, multiplied by the given unit, as a JSON object.
+     */
+    private static String statistics(Histogram histogram, double unit) {
+        return "{\"count\": " + histogram.getCount()
+             + ", \"mean\": " + number(histogram.getMean() * unit)
+             + ", \"p50\": " + number(histogram.getValueAtPercentile(50) * unit)
+             + ", \"p99\": " + number(histogram.getValueAtPercentile(99) * unit)
+             + ", \"max\": " + number(histogram.getMax() * unit) + "}";
+    }
+
+    /**
+     * Formats a number for JSON, NaN as null.
+     */
+    private static String number(double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.4f", value);
+    }
+}
@@ -0,0 +1,439 @@
+package robotrace;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates the progress of the robots along the lanes of a race track.
+ *
+ * The simulation advances in fixed time steps, independent of the frame
+ * rate, and is deterministic for a given seed. It either runs on its
+ * own thread in real time, publishing an immutable {@link RaceSnapshot}
+ * after every tick for the render thread to interpolate, or headless
+ * and as fast as possible through {@link #runHeadless}.
+ *
+ * Speeds are measured along the center line of the track, so no lane
+ * is shorter than another. Every robot has its own base speed and a
+ * speed profile that varies along the track. A robot that catches up
+ * with a slower robot in its lane moves to a free neighbouring lane to
+ * overtake it, or slows down behind it when both neighbouring lanes
+ * are taken. Should a robot still run into another during a tick, it
+ * stops behind it. The robots near a robot are found with a
+ * {@link TrackBroadphase}, so a tick takes about linear time.
+ */
+class RaceSimulation {
+
+    /** The duration of one tick, in seconds. */
+    final static double TIME_STEP = 1.0 / 120;
+
+    /** The number of laps of a race. */
+    final static int RACE_LAPS = 3;
+
+    /** The average base speed of the robots, in units per second. */
+    private final static double BASE_SPEED = 3;
+
+    /** The maximum deviation of a base speed from the average. */
+    private final static double SPEED_SPREAD = 0.4;
+
+    /** The relative variation of the speed of a robot along the track. */
+    private final static double SPEED_VARIATION = 0.15;
+
+    /** How fast a robot changes lane, in lanes per second. */
+    private final static double LANE_CHANGE_RATE = 1.5;
+
+    /** The distance behind another robot at which a robot is blocked. */
+    private final static double BLOCKING_DISTANCE = 1.5;
+
+    /** The distance along the track below which two robots touch. */
+    private final static double CONTACT_DISTANCE = 0.5;
+
+    /** The distance across the track below which two robots touch, in lanes. */
+    private final static double CONTACT_LANES = 0.5;
+
+    /** The distance between two rows of robots on the starting grid. */
+    private final static double GRID_SPACING = 2;
+
+    /** The upper limit on the length of a headless race, in ticks. */
+    private final static long MAX_TICKS = 1000000;
+
+    /** The duration of one tick, in nanoseconds. */
+    private final static long TIME_STEP_NANOS = (long) (TIME_STEP * 1e9);
+
+    /** The track on which this race takes place. */
+    private final RaceTrack track;
+
+    /** The number of robots in the race. */
+    private final int robotCount;
+
+    /** The base speed and the phase of the speed profile of every robot. */
+    private final double[] baseSpeeds, phases;
+
+    /** The current speed of every robot. */
+    private final double[] speeds;
+
+    /** The lane every robot is on or moving towards. */
+    private final int[] targetLanes;
+
+    /** The lane of every robot at the end and at the start of the tick. */
+    private final double[] lanes, previousLanes;
+
+    /** The progress in laps of every robot at the end and at the start of the tick. */
+    private final double[] progress, previousProgress;
+
+    /** The time at which every robot finished, NaN while still racing. */
+    private final double[] finishTimes;
+
+    /** The finishing position of every robot, 0 while still racing. */
+    private final int[] finishPositions;
+
+    /** The number of robots that have finished. */
+    private int finishedCount = 0;
+
+    /** The lap and split times of every robot. */
+    private final LapTimes lapTimes;
+
+    /** Finds the robots near each other. */
+    private final TrackBroadphase broadphase;
+
+    /** The robots found near a robot. */
+    private final int[] neighbours;
+
+    /** The pairs of robots that touched during the tick, grown when a pack is dense. */
+    private int[] contacts;
+
+    /** The robots from the leader to the last, kept in order every tick. */
+    private final int[] standings;
+
+    /** The number of ticks simulated so far. */
+    private long tick = 0;
+
+    /** The most recently published snapshot. */
+    private volatile RaceSnapshot snapshot;
+
+    /** The thread running the simulation in real time, if started. */
+    private Thread thread = null;
+
+    /** Whether the real time simulation should keep running. */
+    private volatile boolean running = false;
+
+    /** The value of System.nanoTime() at which the real time simulation started. */
+    private long startNanos;
+
+    /**
+     * Constructs a race of robotCount robots on the given track, with
+     * speed profiles derived from the given seed.
+     */
+    public RaceSimulation(RaceTrack track, int robotCount, long seed) {
+        this.track = track;
+        this.robotCount = robotCount;
+
+        baseSpeeds = new double[robotCount];
+        phases = new double[robotCount];
+        speeds = new double[robotCount];
+        targetLanes = new int[robotCount];
+        lanes = new double[robotCount];
+        previousLanes = new double[robotCount];
+        progress = new double[robotCount];
+        previousProgress = new double[robotCount];
+        finishTimes = new double[robotCount];
+        finishPositions = new int[robotCount];
+        standings = new int[robotCount];
+
+        // Spread the seeds, the first values drawn from consecutive seeds are correlated.
+        Random random = new Random(seed * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < robotCount; i++) {
+            baseSpeeds[i] = BASE_SPEED + SPEED_SPREAD * (2 * random.nextDouble() - 1);
+            phases[i] = 2 * Math.PI * random.nextDouble();
+
+            // Fill the starting grid row by row, one robot per lane.
+            int lane = i % track.getLaneCount();
+            targetLanes[i] = lane;
+            lanes[i] = lane;
+            progress[i] = -(i / track.getLaneCount()) * GRID_SPACING / track.getLength();
+            finishTimes[i] = Double.NaN;
+            standings[i] = i;
+        }
+
+        System.arraycopy(lanes, 0, previousLanes, 0, robotCount);
+        System.arraycopy(progress, 0, previousProgress, 0, robotCount);
+        lapTimes = new LapTimes(robotCount, RACE_LAPS, progress);
+        broadphase = new TrackBroadphase(progress, lanes, track.getLength());
+        neighbours = new int[robotCount];
+        contacts = new int[8 * robotCount];
+        updateStandings();
+        publish();
+    }
+
+    /**
+     * Returns the track on which this race takes place.
+     */
+    public RaceTrack getTrack() {
+        return track;
+    }
+
+    /**
+     * Returns the lap and split times of the robots, which may be read
+     * from any thread.
+     */
+    public LapTimes getLapTimes() {
+        return lapTimes;
+    }
+
+    /**
+     * Returns the most recently published snapshot.
+     */
+    public RaceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the interpolation factor between the start and the end of
+     * the tick of the given snapshot that matches the current wall time,
+     * for a simulation running in real time.
+     */
+    public double getAlpha(RaceSnapshot snapshot) {
+        double now = (System.nanoTime() - startNanos) / 1e9;
+        double alpha = 1 - (snapshot.time - now) / TIME_STEP;
+        return Math.max(0, Math.min(1, alpha));
+    }
+
+    /**
+     * Starts simulating in real time on a separate thread, recording the
+     * time of every tick in the given metrics.
+     */
+    public void start(final RaceMetrics metrics) {
+        running = true;
+        startNanos = System.nanoTime();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = startNanos;
+                while (running) {
+                    long begin = System.nanoTime();
+                    step();
+                    publish();
+                    metrics.recordTick(System.nanoTime() - begin);
+
+                    next += TIME_STEP_NANOS;
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) {
+                        LockSupport.parkNanos(delay);
+                    }
+                }
+            }
+        }, "race-simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the real time simulation and waits for its thread to end.
+     */
+    public void stop() {
+        running = false;
+        if (null != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * Simulates the race on the calling thread, as fast as possible,
+     * until all robots have finished, and returns the final snapshot.
+     */
+    public RaceSnapshot runHeadless() {
+        while (finishedCount < robotCount && tick < MAX_TICKS) {
+            step();
+        }
+        publish();
+        return snapshot;
+    }
+
+    /**
+     * Advances the race by one time step.
+     */
+    private void step() {
+        tick++;
+        double time = tick * TIME_STEP;
+
+        System.arraycopy(lanes, 0, previousLanes, 0, robotCount);
+        System.arraycopy(progress, 0, previousProgress, 0, robotCount);
+
+        for (int i = 0; i < robotCount; i++) {
+            double speed = desiredSpeed(i);
+
+            // Overtake a slower robot ahead, or stay behind it.
+            int blocker = findBlocker(i, speed);
+            if (blocker >= 0 && lanes[i] == targetLanes[i]) {
+                if (targetLanes[i] > 0 && isLaneFree(i, targetLanes[i] - 1)) {
+                    targetLanes[i]--;
+                } else if (targetLanes[i] < track.getLaneCount() - 1
+                        && isLaneFree(i, targetLanes[i] + 1)) {
+                    targetLanes[i]++;
+                } else {
+                    speed = Math.min(speed, speeds[blocker]);
+                }
+            }
+            speeds[i] = speed;
+
+            // Move towards the target lane.
+            double change = LANE_CHANGE_RATE * TIME_STEP;
+            if (Math.abs(targetLanes[i] - lanes[i]) <= change) {
+                lanes[i] = targetLanes[i];
+            } else {
+                lanes[i] += Math.signum(targetLanes[i] - lanes[i]) * change;
+            }
+
+            progress[i] += speed * TIME_STEP / track.getLength();
+        }
+
+        // A robot that ran into another stops behind it.
+        int pairs = broadphase.findContacts(previousProgress, previousLanes,
+                                            CONTACT_DISTANCE, CONTACT_LANES, contacts);
+        if (2 * pairs > contacts.length) {
+            contacts = new int[2 * Math.max(pairs, contacts.length)];
+            pairs = broadphase.findContacts(previousProgress, previousLanes,
+                                            CONTACT_DISTANCE, CONTACT_LANES, contacts);
+        }
+        for (int p = 0; p < pairs; p++) {
+            int follower = contacts[2 * p];
+            int leader = contacts[2 * p + 1];
+            double gap = broadphase.gap(follower, leader);
+            double behind = progress[follower] + (gap - CONTACT_DISTANCE) / track.getLength();
+            progress[follower] = Math.max(previousProgress[follower],
+                                          Math.min(progress[follower], behind));
+            speeds[follower] = Math.min(speeds[follower], speeds[leader]);
+        }
+
+        for (int i = 0; i < robotCount; i++) {
+            lapTimes.update(i, previousProgress[i], progress[i], time - TIME_STEP, time);
+
+            // Record the exact time at which the finish line was crossed.
+            if (0 == finishPositions[i] && progress[i] >= RACE_LAPS) {
+                double f = (RACE_LAPS - previousProgress[i])
+                         / (progress[i] - previousProgress[i]);
+                finishTimes[i] = time - TIME_STEP + f * TIME_STEP;
+                finishPositions[i] = ++finishedCount;
+            }
+        }
+
+        broadphase.update();
+        updateStandings();
+    }
+
+    /**
+     * Restores the order of the standings. Robots overtake each other
+     * rarely, so the standings of the previous tick are nearly sorted
+     * and an insertion sort takes about one comparison per robot.
+     */
+    private void updateStandings() {
+        for (int k = 1; k < robotCount; k++) {
+            int robot = standings[k];
+            int j = k - 1;
+            while (j >= 0 && isAhead(robot, standings[j])) {
+                standings[j + 1] = standings[j];
+                j--;
+            }
+            standings[j + 1] = robot;
+        }
+    }
+
+    /**
+     * Returns whether robot a is ahead of robot b in the race: it
+     * finished before b, or neither finished and a is further along.
+     */
+    private boolean isAhead(int a, int b) {
+        if (finishPositions[a] > 0 || finishPositions[b] > 0) {
+            return finishPositions[a] > 0
+                && (0 == finishPositions[b] || finishPositions[a] < finishPositions[b]);
+        }
+        return progress[a] > progress[b];
+    }
+
+    /**
+     * Returns the speed robot i would like to run at, following its
+     * speed profile along the track.
+     */
+    private double desiredSpeed(int i) {
+        double variation = Math.sin(4 * Math.PI * progress[i] + phases[i]);
+        return baseSpeeds[i] * (1 + SPEED_VARIATION * variation);
+    }
+
+    /**
+     * Returns the nearest robot ahead of robot i in its target lane that
+     * is slower than the given speed and within blocking distance, or -1.
+     */
+    private int findBlocker(int i, double speed) {
+        int found = broadphase.findAhead(i, BLOCKING_DISTANCE, neighbours);
+        for (int k = 0; k < found; k++) {
+            int j = neighbours[k];
+            if (Math.round(lanes[j]) == targetLanes[i] && speeds[j] < speed) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether robot i can move into the given lane without
+     * coming within blocking distance of another robot.
+     */
+    private boolean isLaneFree(int i, int lane) {
+        int found = broadphase.findAround(i, BLOCKING_DISTANCE, neighbours);
+        for (int k = 0; k < found; k++) {
+            int j = neighbours[k];
+            if (Math.round(lanes[j]) == lane || targetLanes[j] == lane) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the current state as an immutable snapshot.
+     */
+    private void publish() {
+        snapshot = new RaceSnapshot(tick, tick * TIME_STEP,
+                                    lanes, previousLanes,
+                                    progress, previousProgress,
+                                    finishTimes, finishPositions, finishedCount,
+                                    standings);
+    }
+
+    /**
+     * Simulates many races headless on the test track and prints the
+     * number of wins and the average finish time of every robot.
+     * Usage: RaceSimulation [races] [robots]
+     */
+    public static void main(String args[]) {
+        int races = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int robotCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        RaceTrack track = new RaceTrack();
+        int[] wins = new int[robotCount];
+        double[] totalTimes = new double[robotCount];
+
+        long start = System.nanoTime();
+        for (int seed = 0; seed < races; seed++) {
+            RaceSnapshot result = new RaceSimulation(track, robotCount, seed).runHeadless();
+            for (int i = 0; i < robotCount; i++) {
+                totalTimes[i] += result.getFinishTime(i);
+                if (1 == result.getFinishPosition(i)) {
+                    wins[i]++;
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("Simulated " + races + " races in " + seconds + " s");
+        for (int i = 0; i < robotCount; i++) {
+            System.out.println("Robot " + i + ": " + wins[i] + " wins, "
+                    + "average finish time " + totalTimes[i] / races + " s");
+        }
+    }
+}
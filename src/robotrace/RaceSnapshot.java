@@ -0,0 +1,132 @@
+package robotrace;
+
+/**
+ * An immutable copy of the race state after one simulation tick.
+ *
+ * A snapshot also keeps the state of the tick before it, so the render
+ * thread can interpolate between the two without holding on to an
+ * older snapshot. Progress is measured in laps and lanes are fractional
+ * while a robot changes lane.
+ */
+final class RaceSnapshot {
+
+    /** The number of the tick after which this snapshot was taken. */
+    final long tick;
+
+    /** The simulated time at the end of the tick, in seconds. */
+    final double time;
+
+    /** The lane of every robot at the end and at the start of the tick. */
+    private final double[] lanes, previousLanes;
+
+    /** The progress of every robot at the end and at the start of the tick. */
+    private final double[] progress, previousProgress;
+
+    /** The time at which every robot finished, NaN while still racing. */
+    private final double[] finishTimes;
+
+    /** The finishing position of every robot, 0 while still racing. */
+    private final int[] finishPositions;
+
+    /** The number of robots that have finished. */
+    private final int finishedCount;
+
+    /** The robots from the leader to the last. */
+    private final int[] standings;
+
+    /** The rank of every robot in the standings, 0 for the leader. */
+    private final int[] ranks;
+
+    /**
+     * Constructs a snapshot, copying all given arrays.
+     */
+    RaceSnapshot(long tick, double time,
+                 double[] lanes, double[] previousLanes,
+                 double[] progress, double[] previousProgress,
+                 double[] finishTimes, int[] finishPositions, int finishedCount,
+                 int[] standings) {
+        this.tick = tick;
+        this.time = time;
+        this.lanes = lanes.clone();
+        this.previousLanes = previousLanes.clone();
+        this.progress = progress.clone();
+        this.previousProgress = previousProgress.clone();
+        this.finishTimes = finishTimes.clone();
+        this.finishPositions = finishPositions.clone();
+        this.finishedCount = finishedCount;
+        this.standings = standings.clone();
+
+        ranks = new int[standings.length];
+        for (int rank = 0; rank < standings.length; rank++) {
+            ranks[standings[rank]] = rank;
+        }
+    }
+
+    /**
+     * Returns the number of robots in the race.
+     */
+    public int getRobotCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Returns the lane of a robot, interpolated between the start
+     * (alpha = 0) and the end (alpha = 1) of the tick.
+     */
+    public double getLane(int robot, double alpha) {
+        return previousLanes[robot] + alpha * (lanes[robot] - previousLanes[robot]);
+    }
+
+    /**
+     * Returns the progress of a robot in laps, interpolated between the
+     * start (alpha = 0) and the end (alpha = 1) of the tick.
+     */
+    public double getProgress(int robot, double alpha) {
+        return previousProgress[robot] + alpha * (progress[robot] - previousProgress[robot]);
+    }
+
+    /**
+     * Returns whether a robot has crossed the finish line.
+     */
+    public boolean isFinished(int robot) {
+        return finishPositions[robot] > 0;
+    }
+
+    /**
+     * Returns the time at which a robot finished, NaN while still racing.
+     */
+    public double getFinishTime(int robot) {
+        return finishTimes[robot];
+    }
+
+    /**
+     * Returns the finishing position of a robot, starting at 1,
+     * or 0 while the robot is still racing.
+     */
+    public int getFinishPosition(int robot) {
+        return finishPositions[robot];
+    }
+
+    /**
+     * Returns the robot at the given rank in the standings at the end of
+     * the tick, 0 being the leader.
+     */
+    public int getRobotAtRank(int rank) {
+        return standings[rank];
+    }
+
+    /**
+     * Returns the rank of a robot in the standings at the end of the
+     * tick, 0 for the leader.
+     */
+    public int getRank(int robot) {
+        return ranks[robot];
+    }
+
+    /**
+     * Returns whether all robots have finished.
+     */
+    public boolean isRaceFinished() {
+        return finishedCount == lanes.length;
+    }
+}
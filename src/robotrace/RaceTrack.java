@@ -1,97 +1,940 @@
 package robotrace;
 
 import com.jogamp.opengl.util.gl2.GLUT;
+import com.jogamp.opengl.util.texture.Texture;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import static javax.media.opengl.GL2.*;
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
 
 /**
  * Implementation of a race track that is made from Bezier segments.
+ *
+ * The center line of the track is sampled once at construction time
+ * into flat arrays, together with the cumulative arc length of every
+ * lane. Lane queries are answered from these tables by a binary search
+ * followed by linear interpolation, so the robots move at a constant
+ * speed and a query costs O(log n) regardless of the number of segments.
+ * The samples are placed adaptively: every segment is subdivided until
+ * each piece deviates less than a tolerance from its chord and bends
+ * less than a fixed angle, so straight sections need few samples and
+ * tight bends get many.
+ *
+ * The same tables are tessellated into two meshes at construction time,
+ * the lanes and the side walls, which are uploaded into vertex buffer
+ * objects the first time the track is drawn. The track is divided into
+ * chunks of consecutive samples, and a bounding volume hierarchy over
+ * their boxes finds the chunks inside the view frustum, so only visible
+ * runs of the meshes are drawn.
+ *
+ * All of this work is split into independent segments, samples, lanes
+ * and chunks that run in parallel, so a track can be built off the
+ * OpenGL thread.
  */
 class RaceTrack {
-    
-    /** The width of one lane. The total width of the track is 4 * laneWidth. */
-    private final static float laneWidth = 1.22f;
 
-    /** Array with 3N control points, where N is the number of segments. */
-    private Vector[] controlPoints = null;
-    
+    /** The width of one lane, unless a track file says otherwise. */
+    final static double DEFAULT_LANE_WIDTH = 1.22;
+
+    /** The number of lanes, unless a track file says otherwise. */
+    final static int DEFAULT_LANES = 4;
+
+    /** The default largest distance between the curve and a chord. */
+    private final static double FLATNESS = 0.01;
+
+    /** The largest angle between the tangents at both ends of a chord, in radians. */
+    private final static double MAX_BEND = 0.05;
+
+    /** The number of halvings every segment gets at least, so no S-bend is missed. */
+    private final static int MIN_DEPTH = 2;
+
+    /** The largest number of halvings of a segment. */
+    private final static int MAX_DEPTH = 12;
+
+    /** The length below which a tangent is taken to vanish. */
+    private final static double MIN_TANGENT = 1e-9;
+
+    /** The number of samples per chunk that is culled as a whole. */
+    private final static int CHUNK_SAMPLES = 16;
+
+    /** The number of samples handled by one parallel task. */
+    private final static int GRAIN = 256;
+
+    /**
+     * The coordinates of 3N control points, where N is the number of
+     * segments, or null for the test track. This may be a view of a
+     * memory mapped track file.
+     */
+    private final DoubleBuffer controlPoints;
+
+    /** The number of lanes on the track. */
+    private final int laneCount;
+
+    /** The width of one lane. The total width of the track is laneCount * laneWidth. */
+    private final double laneWidth;
+
+    /** The position of every sample, as segment index plus parameter. */
+    private final double[] sampleParams;
+
+    /** The number of samples, the closing sample included. */
+    private final int sampleCount;
+
+    /** The sampled center line of the track, three values per sample. */
+    private final double[] centerPoints;
+
+    /** The unit tangent of the center line, three values per sample. */
+    private final double[] centerTangents;
+
+    /** The horizontal unit normal pointing outwards, two values per sample. */
+    private final double[] lateral;
+
+    /** The cumulative arc length of every lane, one row of samples per lane. */
+    private final double[] laneDistances;
+
+    /** The total arc length of every lane. */
+    private final double[] laneLengths;
+
+    /** The number of chunks the samples are divided into. */
+    private final int chunkCount;
+
+    /** The bounding volume hierarchy over the boxes of the chunks. */
+    private final BoundsTree chunkTree;
+
+    /** Whether every chunk is visible in the current frame. */
+    private final boolean[] visibleChunks;
+
+    /** The surface of the lanes, textured with the track texture. */
+    private final Mesh surface;
+
+    /** The inner and outer side walls, textured with the brick texture. */
+    private final Mesh walls;
+
     /**
      * Constructor for the default track.
      */
     public RaceTrack() {
+        this((Vector[]) null);
     }
-    
+
     /**
      * Constructor for a spline track.
      */
     public RaceTrack(Vector[] controlPoints) {
-        this.controlPoints = controlPoints;
+        this(controlPoints, FLATNESS);
     }
 
     /**
-     * Draws this track, based on the control points.
+     * Constructor for a spline track that is tessellated such that the
+     * center line deviates at most tolerance from the curve.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut) {
-        if (null == controlPoints) {
-            // draw the test track
+    public RaceTrack(Vector[] controlPoints, double tolerance) {
+        this(toBuffer(controlPoints), DEFAULT_LANES, DEFAULT_LANE_WIDTH,
+             tolerance, null, null);
+    }
+
+    /**
+     * Constructor for a spline track with the given control point
+     * coordinates, lanes and tolerance. The sample positions and the
+     * arc length table of the lanes are computed unless they are given,
+     * as when they were stored in a track file.
+     */
+    RaceTrack(DoubleBuffer controlPoints, int laneCount, double laneWidth,
+              double tolerance, double[] sampleParams, double[] laneDistances) {
+        // Tracks without a single complete segment fall back to the test track.
+        if (null != controlPoints && controlPoints.limit() >= 9) {
+            this.controlPoints = controlPoints;
         } else {
-            // draw the spline track
+            this.controlPoints = null;
         }
+        this.laneCount = laneCount;
+        this.laneWidth = laneWidth;
+        this.laneLengths = new double[laneCount];
+
+        if (null == sampleParams) {
+            sampleParams = tessellate(tolerance);
+        }
+        this.sampleParams = sampleParams;
+        sampleCount = sampleParams.length;
+
+        centerPoints = new double[3 * sampleCount];
+        centerTangents = new double[3 * sampleCount];
+        lateral = new double[2 * sampleCount];
+        sampleCenterLine(sampleParams);
+
+        if (null != laneDistances && laneDistances.length == laneCount * sampleCount) {
+            this.laneDistances = laneDistances;
+            for (int lane = 0; lane < laneCount; lane++) {
+                laneLengths[lane] = laneDistances[(lane + 1) * sampleCount - 1];
+            }
+        } else {
+            this.laneDistances = new double[laneCount * sampleCount];
+            measureLanes();
+        }
+
+        chunkCount = (sampleCount - 2) / CHUNK_SAMPLES + 1;
+        chunkTree = new BoundsTree(chunkBounds());
+        visibleChunks = new boolean[chunkCount];
+
+        surface = new Mesh(GL_TRIANGLE_STRIP, 2 * sampleCount);
+        walls = new Mesh(GL_TRIANGLES, 12 * (sampleCount - 1));
+        buildMeshes();
+    }
+
+    /**
+     * Draws the parts of this track that lie in the frustum.
+     */
+    public void draw(GL2 gl, GLU glu, GLUT glut, Frustum frustum) {
+        if (0 == chunkTree.query(frustum, visibleChunks)) {
+            return;
+        }
+
+        // Draw the lanes, two strip vertices per sample.
+        bindTexture(gl, Base.track);
+        drawVisible(gl, surface, 2, 2);
+
+        // Draw the side walls, twelve vertices between two samples.
+        bindTexture(gl, Base.brick);
+        drawVisible(gl, walls, 12, 0);
+
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
     }
-    
+
     /**
      * Returns the center of a lane at 0 <= t < 1.
      * Use this method to find the position of a robot on the track.
      */
     public Vector getLanePoint(int lane, double t) {
-        if (null == controlPoints) {
-            return Vector.O; // <- code goes here
-        } else {
-            return Vector.O; // <- code goes here
-        }
+        return getLanePoint(lane, t, new MutableVec3()).toVector();
     }
-    
+
     /**
      * Returns the tangent of a lane at 0 <= t < 1.
      * Use this method to find the orientation of a robot on the track.
      */
     public Vector getLaneTangent(int lane, double t) {
-        if (null == controlPoints) {
-            return Vector.O; // <- code goes here
+        return getLaneTangent(lane, t, new MutableVec3()).toVector();
+    }
+
+    /**
+     * Stores the center of a lane at 0 <= t < 1 in {@code out} and
+     * returns it. The parameter t is the fraction of the length of the
+     * lane, which makes a robot with a constant dt move at a constant speed.
+     */
+    public MutableVec3 getLanePoint(int lane, double t, MutableVec3 out) {
+        return getTrackPoint(lane, t, out);
+    }
+
+    /**
+     * Stores the point at 0 <= t < 1 on a fractional lane in {@code out}
+     * and returns it, for robots that are changing lane. The parameter t
+     * is measured along the nearest whole lane.
+     */
+    public MutableVec3 getTrackPoint(double lane, double t, MutableVec3 out) {
+        int nearest = Math.max(0, Math.min(laneCount - 1, (int) Math.round(lane)));
+        int row = nearest * sampleCount;
+        int i = findSample(row, t);
+        double f = sampleFraction(row, i, t);
+        double offset = laneOffset(lane);
+
+        // Keep the interpolated normal at unit length, so the lanes keep their width in bends.
+        double lx = lerp(lateral, 2, 2 * i, f);
+        double ly = lerp(lateral, 2, 2 * i + 1, f);
+        double length = Math.hypot(lx, ly);
+        if (length < MIN_TANGENT) {
+            lx = lateral[2 * i];
+            ly = lateral[2 * i + 1];
         } else {
-            return Vector.O; // <- code goes here
+            lx /= length;
+            ly /= length;
+        }
+
+        return out.set(lerp(centerPoints, 3, 3 * i, f) + offset * lx,
+                       lerp(centerPoints, 3, 3 * i + 1, f) + offset * ly,
+                       lerp(centerPoints, 3, 3 * i + 2, f));
+    }
+
+    /**
+     * Stores the unit tangent of a lane at 0 <= t < 1 in {@code out}
+     * and returns it. The parameter t is interpreted as in {@link #getLanePoint}.
+     */
+    public MutableVec3 getLaneTangent(int lane, double t, MutableVec3 out) {
+        int row = lane * sampleCount;
+        int i = findSample(row, t);
+        double f = sampleFraction(row, i, t);
+
+        out.set(lerp(centerTangents, 3, 3 * i, f),
+                lerp(centerTangents, 3, 3 * i + 1, f),
+                lerp(centerTangents, 3, 3 * i + 2, f));
+        if (out.length() < MIN_TANGENT) {
+            // The samples point in opposite directions, keep the first.
+            out.set(centerTangents[3 * i], centerTangents[3 * i + 1], centerTangents[3 * i + 2]);
         }
+        return out.normalize();
+    }
+
+    /**
+     * Returns the total arc length of a lane.
+     */
+    public double getLaneLength(int lane) {
+        return laneLengths[lane];
+    }
+
+    /**
+     * Returns the arc length of the center line of the track, which is
+     * the average length of the lanes.
+     */
+    public double getLength() {
+        double total = 0;
+        for (double length : laneLengths) {
+            total += length;
+        }
+        return total / laneCount;
+    }
+
+    /**
+     * Copies the box around the whole track into out, as minX, minY,
+     * minZ, maxX, maxY, maxZ.
+     */
+    public void getBounds(float[] out) {
+        chunkTree.getBounds(out);
+    }
+
+    /**
+     * Returns the number of samples of the center line, the closing
+     * sample included.
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Stores sample i of the center line in {@code out} and returns it.
+     */
+    public MutableVec3 getCenterPoint(int i, MutableVec3 out) {
+        return out.set(centerPoints[3 * i], centerPoints[3 * i + 1], centerPoints[3 * i + 2]);
+    }
+
+    /**
+     * Returns the number of lanes on the track.
+     */
+    public int getLaneCount() {
+        return laneCount;
+    }
+
+    /**
+     * Returns the width of one lane.
+     */
+    public double getLaneWidth() {
+        return laneWidth;
+    }
+
+    /**
+     * Returns the control point coordinates, three per point, or null
+     * for the test track.
+     */
+    DoubleBuffer getControlPoints() {
+        return null == controlPoints ? null : controlPoints.duplicate();
+    }
+
+    /**
+     * Returns the position of every sample, as segment index plus parameter.
+     */
+    double[] getSampleParams() {
+        return sampleParams;
+    }
+
+    /**
+     * Returns the cumulative arc length table of the lanes, one row of
+     * samples per lane.
+     */
+    double[] getLaneDistances() {
+        return laneDistances;
     }
 
     /**
      * Returns a point on the test track at 0 <= t < 1.
      */
     private Vector getPoint(double t) {
-        return Vector.O; // <- code goes here
+        return new Vector(10 * Math.cos(2 * Math.PI * t),
+                          14 * Math.sin(2 * Math.PI * t),
+                          1);
     }
 
     /**
      * Returns a tangent on the test track at 0 <= t < 1.
      */
     private Vector getTangent(double t) {
-        return Vector.O; // <- code goes here
+        return new Vector(-20 * Math.PI * Math.sin(2 * Math.PI * t),
+                           28 * Math.PI * Math.cos(2 * Math.PI * t),
+                           0);
     }
-    
+
     /**
      * Returns a point on a bezier segment with control points
      * P0, P1, P2, P3 at 0 <= t < 1.
      */
-    private Vector getCubicBezierPoint(double t, Vector P0, Vector P1,
-                                                 Vector P2, Vector P3) {
-        return Vector.O; // <- code goes here
+    Vector getCubicBezierPoint(double t, Vector P0, Vector P1,
+                                         Vector P2, Vector P3) {
+        double s = 1 - t;
+        return P0.scale(s * s * s)
+                 .add(P1.scale(3 * s * s * t))
+                 .add(P2.scale(3 * s * t * t))
+                 .add(P3.scale(t * t * t));
     }
-    
+
     /**
      * Returns a tangent on a bezier segment with control points
      * P0, P1, P2, P3 at 0 <= t < 1.
      */
-    private Vector getCubicBezierTangent(double t, Vector P0, Vector P1,
-                                                   Vector P2, Vector P3) {
-        return Vector.O; // <- code goes here
+    Vector getCubicBezierTangent(double t, Vector P0, Vector P1,
+                                           Vector P2, Vector P3) {
+        double s = 1 - t;
+        return P1.subtract(P0).scale(3 * s * s)
+                 .add(P2.subtract(P1).scale(6 * s * t))
+                 .add(P3.subtract(P2).scale(3 * t * t));
+    }
+
+    /**
+     * Returns the number of curve segments, one for the test track.
+     */
+    private int segmentCount() {
+        return null == controlPoints ? 1 : controlPoints.limit() / 9;
+    }
+
+    /**
+     * Stores the point at 0 <= t <= 1 on a segment of the center line
+     * in {@code out} and returns it.
+     */
+    private MutableVec3 curvePoint(int segment, double t, MutableVec3 out) {
+        if (null == controlPoints) {
+            return out.set(getPoint(t));
+        }
+        double s = 1 - t;
+        return weighControlPoints(segment, s * s * s, 3 * s * s * t,
+                                  3 * s * t * t, t * t * t, out);
+    }
+
+    /**
+     * Stores the tangent at 0 <= t <= 1 on a segment of the center line
+     * in {@code out} and returns it.
+     */
+    private MutableVec3 curveTangent(int segment, double t, MutableVec3 out) {
+        if (null == controlPoints) {
+            return out.set(getTangent(t));
+        }
+        double s = 1 - t;
+        return weighControlPoints(segment, -3 * s * s, 3 * s * s - 6 * s * t,
+                                  6 * s * t - 3 * t * t, 3 * t * t, out);
+    }
+
+    /**
+     * Stores the second derivative at 0 <= t <= 1 on a segment of the
+     * center line in {@code out} and returns it.
+     */
+    private MutableVec3 curveAcceleration(int segment, double t, MutableVec3 out) {
+        if (null == controlPoints) {
+            double w = 2 * Math.PI;
+            return out.set(-10 * w * w * Math.cos(w * t), -14 * w * w * Math.sin(w * t), 0);
+        }
+        double s = 1 - t;
+        return weighControlPoints(segment, 6 * s, 6 * t - 12 * s,
+                                  6 * s - 12 * t, 6 * t, out);
+    }
+
+    /**
+     * Stores the unit direction of the center line at 0 <= t <= 1 on a
+     * segment in {@code out} and returns it. Where the tangent vanishes,
+     * because a control point coincides with its neighbouring end point,
+     * the curve leaves along its second derivative instead, and where
+     * that vanishes too along the chord from the first to the last
+     * control point.
+     */
+    private MutableVec3 curveDirection(int segment, double t, MutableVec3 out) {
+        if (curveTangent(segment, t, out).length() >= MIN_TANGENT) {
+            return out.normalize();
+        }
+
+        // Near the start the curve follows the second derivative, near the end it arrives against it.
+        if (curveAcceleration(segment, t, out).length() >= MIN_TANGENT) {
+            return out.scale(t < 0.5 ? 1 : -1).normalize();
+        }
+
+        MutableVec3 start = curvePoint(segment, 0, new MutableVec3());
+        curvePoint(segment, 1, out).subtract(start);
+        if (out.length() >= MIN_TANGENT) {
+            return out.normalize();
+        }
+        return out.set(1, 0, 0);
+    }
+
+    /**
+     * Stores the weighted sum of the four control points of a segment
+     * in {@code out} and returns it, reading the coordinates directly
+     * from the control point buffer.
+     */
+    private MutableVec3 weighControlPoints(int segment, double w0, double w1,
+                                           double w2, double w3, MutableVec3 out) {
+        int points = controlPoints.limit() / 3;
+        int p0 = 3 * (3 * segment);
+        int p1 = p0 + 3;
+        int p2 = p0 + 6;
+        int p3 = 3 * ((3 * segment + 3) % points);
+
+        return out.set(w0 * controlPoints.get(p0) + w1 * controlPoints.get(p1)
+                     + w2 * controlPoints.get(p2) + w3 * controlPoints.get(p3),
+                       w0 * controlPoints.get(p0 + 1) + w1 * controlPoints.get(p1 + 1)
+                     + w2 * controlPoints.get(p2 + 1) + w3 * controlPoints.get(p3 + 1),
+                       w0 * controlPoints.get(p0 + 2) + w1 * controlPoints.get(p1 + 2)
+                     + w2 * controlPoints.get(p2 + 2) + w3 * controlPoints.get(p3 + 2));
+    }
+
+    /**
+     * Returns the coordinates of the control points in a buffer, or null
+     * if there are none.
+     */
+    private static DoubleBuffer toBuffer(Vector[] controlPoints) {
+        if (null == controlPoints) {
+            return null;
+        }
+
+        double[] coordinates = new double[3 * controlPoints.length];
+        for (int i = 0; i < controlPoints.length; i++) {
+            coordinates[3 * i] = controlPoints[i].x();
+            coordinates[3 * i + 1] = controlPoints[i].y();
+            coordinates[3 * i + 2] = controlPoints[i].z();
+        }
+        return DoubleBuffer.wrap(coordinates);
+    }
+
+    /**
+     * Subdivides every segment recursively until its pieces are flat
+     * and returns the sample positions, as segment index plus parameter.
+     * The last sample closes the track at the end of the last segment.
+     */
+    private double[] tessellate(final double tolerance) {
+        final int segments = segmentCount();
+        final double[][] pieces = new double[segments][];
+
+        // The segments are independent, so they are subdivided in parallel.
+        Parallel.forRange(segments, 1, new Parallel.Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int segment = start; segment < end; segment++) {
+                    pieces[segment] = tessellate(segment, tolerance);
+                }
+            }
+        });
+
+        int count = 1;
+        for (double[] piece : pieces) {
+            count += piece.length;
+        }
+
+        double[] params = new double[count];
+        int next = 0;
+        for (double[] piece : pieces) {
+            System.arraycopy(piece, 0, params, next, piece.length);
+            next += piece.length;
+        }
+        params[next] = segments;
+        return params;
+    }
+
+    /**
+     * Subdivides one segment and returns the start of every flat piece.
+     */
+    private double[] tessellate(int segment, double tolerance) {
+        double[] params = new double[1 << MIN_DEPTH];
+        int count = 0;
+
+        // The pieces still to inspect, as start and end, the leftmost on top.
+        double[] stack = new double[2 * (MAX_DEPTH + 2)];
+        int top = 0;
+        stack[top++] = 1;
+        stack[top++] = 0;
+
+        while (top > 0) {
+            double a = stack[--top];
+            double b = stack[--top];
+
+            if (isFlat(segment, a, b, tolerance)) {
+                if (count == params.length) {
+                    params = Arrays.copyOf(params, 2 * count);
+                }
+                params[count++] = segment + a;
+            } else {
+                double m = (a + b) / 2;
+                stack[top++] = b;
+                stack[top++] = m;
+                stack[top++] = m;
+                stack[top++] = a;
+            }
+        }
+
+        return Arrays.copyOf(params, count);
+    }
+
+    /**
+     * Returns whether the piece from a to b of a segment may be replaced
+     * by its chord: its midpoint lies within tolerance of the chord and
+     * its tangent turns less than the largest bend.
+     */
+    private boolean isFlat(int segment, double a, double b, double tolerance) {
+        double width = b - a;
+        if (width > 1.0 / (1 << MIN_DEPTH)) {
+            return false;
+        }
+        if (width <= 1.0 / (1 << MAX_DEPTH)) {
+            return true;
+        }
+
+        MutableVec3 pa = curvePoint(segment, a, new MutableVec3());
+        MutableVec3 pb = curvePoint(segment, b, new MutableVec3());
+        MutableVec3 pm = curvePoint(segment, (a + b) / 2, new MutableVec3());
+        double error = pm.distance(pa.lerp(pa, pb, 0.5));
+
+        MutableVec3 ta = curveDirection(segment, a, new MutableVec3());
+        MutableVec3 tb = curveDirection(segment, b, new MutableVec3());
+
+        return error <= tolerance && ta.dot(tb) >= Math.cos(MAX_BEND);
+    }
+
+    /**
+     * Fills the center line tables at the given sample positions.
+     */
+    private void sampleCenterLine(final double[] params) {
+        final int segments = segmentCount();
+        Parallel.forRange(sampleCount, GRAIN, new Parallel.Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    // The last sample lies at the very end of the last segment.
+                    int segment = Math.min((int) params[i], segments - 1);
+                    sampleCenterLine(i, segment, params[i] - segment);
+                }
+            }
+        });
+        fillVerticalNormals();
+    }
+
+    /**
+     * Gives the samples where the center line runs straight up or down,
+     * which have no horizontal normal, the normal of the sample before
+     * them, or of the first sample that has one.
+     */
+    private void fillVerticalNormals() {
+        int first = 0;
+        while (first < sampleCount && Double.isNaN(lateral[2 * first])) {
+            first++;
+        }
+        double lx = first < sampleCount ? lateral[2 * first] : 1;
+        double ly = first < sampleCount ? lateral[2 * first + 1] : 0;
+
+        for (int i = 0; i < sampleCount; i++) {
+            if (Double.isNaN(lateral[2 * i])) {
+                lateral[2 * i] = lx;
+                lateral[2 * i + 1] = ly;
+            } else {
+                lx = lateral[2 * i];
+                ly = lateral[2 * i + 1];
+            }
+        }
+    }
+
+    /**
+     * Fills the center line tables for sample i at t on a segment.
+     */
+    private void sampleCenterLine(int i, int segment, double t) {
+        MutableVec3 point = curvePoint(segment, t, new MutableVec3());
+        MutableVec3 tangent = curveDirection(segment, t, new MutableVec3());
+
+        centerPoints[3 * i] = point.x;
+        centerPoints[3 * i + 1] = point.y;
+        centerPoints[3 * i + 2] = point.z;
+
+        centerTangents[3 * i] = tangent.x;
+        centerTangents[3 * i + 1] = tangent.y;
+        centerTangents[3 * i + 2] = tangent.z;
+
+        // The outward normal is the tangent crossed with the z-axis, filled in later where vertical.
+        double horizontal = Math.hypot(tangent.x, tangent.y);
+        if (horizontal < MIN_TANGENT) {
+            lateral[2 * i] = Double.NaN;
+            lateral[2 * i + 1] = Double.NaN;
+        } else {
+            lateral[2 * i] = tangent.y / horizontal;
+            lateral[2 * i + 1] = -tangent.x / horizontal;
+        }
+    }
+
+    /**
+     * Fills the cumulative arc length table of every lane, the lanes
+     * in parallel.
+     */
+    private void measureLanes() {
+        Parallel.forRange(laneCount, 1, new Parallel.Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int lane = start; lane < end; lane++) {
+                    measureLane(lane);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills the cumulative arc length table of one lane.
+     */
+    private void measureLane(int lane) {
+        int row = lane * sampleCount;
+        double offset = laneOffset(lane);
+        double distance = 0;
+
+        laneDistances[row] = 0;
+        for (int i = 1; i < sampleCount; i++) {
+            double dx = centerPoints[3 * i] - centerPoints[3 * i - 3]
+                      + offset * (lateral[2 * i] - lateral[2 * i - 2]);
+            double dy = centerPoints[3 * i + 1] - centerPoints[3 * i - 2]
+                      + offset * (lateral[2 * i + 1] - lateral[2 * i - 1]);
+            double dz = centerPoints[3 * i + 2] - centerPoints[3 * i - 1];
+
+            distance += Math.sqrt(dx * dx + dy * dy + dz * dz);
+            laneDistances[row + i] = distance;
+        }
+        laneLengths[lane] = distance;
+    }
+
+    /**
+     * Tessellates the sampled center line into the lane surface, a
+     * triangle strip, and the side walls, a list of triangles that
+     * run from the ground up to the surface. Every sample owns a fixed
+     * range of vertices, so the samples are filled in parallel.
+     */
+    private void buildMeshes() {
+        // The texture coordinates along the track and the walls need their running distances.
+        double half = laneCount / 2.0 * laneWidth;
+        final double[] distances = runningDistances(0);
+        final double[] innerDistances = runningDistances(-half);
+        final double[] outerDistances = runningDistances(half);
+
+        Parallel.forRange(sampleCount, GRAIN, new Parallel.Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    addSample(i, distances[i], innerDistances, outerDistances);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the horizontal length of the line at the given offset from
+     * the center line, from the first sample up to every sample.
+     */
+    private double[] runningDistances(double offset) {
+        double[] distances = new double[sampleCount];
+        for (int i = 1; i < sampleCount; i++) {
+            distances[i] = distances[i - 1]
+                         + Math.hypot(centerPoints[3 * i] - centerPoints[3 * i - 3]
+                                      + offset * (lateral[2 * i] - lateral[2 * i - 2]),
+                                      centerPoints[3 * i + 1] - centerPoints[3 * i - 2]
+                                      + offset * (lateral[2 * i + 1] - lateral[2 * i - 1]));
+        }
+        return distances;
+    }
+
+    /**
+     * Adds the two surface vertices of sample i and, from the second
+     * sample on, the walls between sample i - 1 and sample i, which are
+     * textured by the running distances along them.
+     */
+    private void addSample(int i, double distance, double[] innerDistances,
+                           double[] outerDistances) {
+        double inner = -laneCount / 2.0 * laneWidth;
+        double outer = laneCount / 2.0 * laneWidth;
+
+        double x = centerPoints[3 * i];
+        double y = centerPoints[3 * i + 1];
+        double z = centerPoints[3 * i + 2];
+        double lx = lateral[2 * i];
+        double ly = lateral[2 * i + 1];
+
+        // The texture spans the width of the track and repeats along it.
+        double v = distance / (outer - inner);
+        surface.vertex(2 * i, x + inner * lx, y + inner * ly, z, 0, 0, 1, 0, v);
+        surface.vertex(2 * i + 1, x + outer * lx, y + outer * ly, z, 0, 0, 1, 1, v);
+
+        if (i > 0) {
+            addWall(12 * (i - 1), i, inner, -1, innerDistances[i - 1], innerDistances[i]);
+            addWall(12 * (i - 1) + 6, i, outer, 1, outerDistances[i - 1], outerDistances[i]);
+        }
+    }
+
+    /**
+     * Draws every run of consecutive visible chunks of a mesh with a
+     * single call, where the mesh has the given number of vertices per
+     * sample plus a fixed number of extra vertices.
+     */
+    private void drawVisible(GL2 gl, Mesh mesh, int perSample, int extra) {
+        int k = 0;
+        while (k < chunkCount) {
+            if (!visibleChunks[k]) {
+                k++;
+                continue;
+            }
+
+            int first = k;
+            while (k < chunkCount && visibleChunks[k]) {
+                k++;
+            }
+
+            int start = first * CHUNK_SAMPLES;
+            int end = Math.min(k * CHUNK_SAMPLES, sampleCount - 1);
+            mesh.draw(gl, perSample * start, perSample * (end - start) + extra);
+        }
+    }
+
+    /**
+     * Returns the axis aligned box of every chunk, which encloses the
+     * surface and the walls down to the ground.
+     */
+    private float[] chunkBounds() {
+        final float[] bounds = new float[6 * chunkCount];
+        Parallel.forRange(chunkCount, GRAIN / CHUNK_SAMPLES, new Parallel.Range() {
+            @Override
+            public void run(int start, int end) {
+                for (int k = start; k < end; k++) {
+                    chunkBounds(k, bounds);
+                }
+            }
+        });
+        return bounds;
+    }
+
+    /**
+     * Stores the axis aligned box of chunk k in bounds.
+     */
+    private void chunkBounds(int k, float[] bounds) {
+        double half = laneCount / 2.0 * laneWidth;
+
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        double minZ = 0, maxZ = 0;
+
+        int end = Math.min((k + 1) * CHUNK_SAMPLES, sampleCount - 1);
+        for (int i = k * CHUNK_SAMPLES; i <= end; i++) {
+            double x = centerPoints[3 * i];
+            double y = centerPoints[3 * i + 1];
+            double z = centerPoints[3 * i + 2];
+            double lx = half * Math.abs(lateral[2 * i]);
+            double ly = half * Math.abs(lateral[2 * i + 1]);
+
+            minX = Math.min(minX, x - lx);
+            maxX = Math.max(maxX, x + lx);
+            minY = Math.min(minY, y - ly);
+            maxY = Math.max(maxY, y + ly);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+        }
+
+        bounds[6 * k] = (float) minX;
+        bounds[6 * k + 1] = (float) minY;
+        bounds[6 * k + 2] = (float) minZ;
+        bounds[6 * k + 3] = (float) maxX;
+        bounds[6 * k + 4] = (float) maxY;
+        bounds[6 * k + 5] = (float) maxZ;
+    }
+
+    /**
+     * Writes the two triangles of the wall between sample i - 1 and
+     * sample i at the given offset, facing the given side, from the
+     * given vertex on. The texture runs from s0 to s1 along the wall.
+     */
+    private void addWall(int first, int i, double offset, double side, double s0, double s1) {
+        double x0 = centerPoints[3 * i - 3] + offset * lateral[2 * i - 2];
+        double y0 = centerPoints[3 * i - 2] + offset * lateral[2 * i - 1];
+        double z0 = centerPoints[3 * i - 1];
+        double x1 = centerPoints[3 * i] + offset * lateral[2 * i];
+        double y1 = centerPoints[3 * i + 1] + offset * lateral[2 * i + 1];
+        double z1 = centerPoints[3 * i + 2];
+
+        double nx0 = side * lateral[2 * i - 2];
+        double ny0 = side * lateral[2 * i - 1];
+        double nx1 = side * lateral[2 * i];
+        double ny1 = side * lateral[2 * i + 1];
+
+        walls.vertex(first, x0, y0, 0, nx0, ny0, 0, s0, 0);
+        walls.vertex(first + 1, x1, y1, 0, nx1, ny1, 0, s1, 0);
+        walls.vertex(first + 2, x1, y1, z1, nx1, ny1, 0, s1, z1);
+
+        walls.vertex(first + 3, x0, y0, 0, nx0, ny0, 0, s0, 0);
+        walls.vertex(first + 4, x1, y1, z1, nx1, ny1, 0, s1, z1);
+        walls.vertex(first + 5, x0, y0, z0, nx0, ny0, 0, s0, z0);
+    }
+
+    /**
+     * Binds the given texture, or no texture if it failed to load.
+     */
+    private static void bindTexture(GL2 gl, Texture texture) {
+        if (null != texture) {
+            texture.bind(gl);
+        } else {
+            gl.glBindTexture(GL_TEXTURE_2D, 0);
+        }
+    }
+
+    /**
+     * Returns the signed distance between the center of a lane and
+     * the center line of the track.
+     */
+    private double laneOffset(double lane) {
+        return (lane - (laneCount - 1) / 2.0) * laneWidth;
+    }
+
+    /**
+     * Returns the index of the last sample of a lane that lies at or
+     * before the arc length fraction t, using a binary search.
+     */
+    private int findSample(int row, double t) {
+        double distance = wrap(t) * laneLengths[row / sampleCount];
+
+        int low = 0;
+        int high = sampleCount - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (laneDistances[row + mid] <= distance) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the position of t between sample i and sample i + 1.
+     */
+    private double sampleFraction(int row, int i, double t) {
+        double distance = wrap(t) * laneLengths[row / sampleCount];
+        double start = laneDistances[row + i];
+        double span = laneDistances[row + i + 1] - start;
+
+        return span > 0 ? (distance - start) / span : 0;
+    }
+
+    /**
+     * Interpolates between the value at index and the value one
+     * sample further, which is stride values further in the table.
+     */
+    private static double lerp(double[] table, int stride, int index, double f) {
+        return table[index] + f * (table[index + stride] - table[index]);
+    }
+
+    /**
+     * Maps t onto the interval [0, 1).
+     */
+    private static double wrap(double t) {
+        return t - Math.floor(t);
     }
 }
@@ -0,0 +1,261 @@
+package robotrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a race recorded by {@link ReplayRecorder}.
+ *
+ * The log is memory mapped. To show the race at any time, the frame
+ * before that time is found by arithmetic, its keyframe through the
+ * index, and at most KEYFRAME_INTERVAL frames are decoded from there.
+ * Playing forward continues decoding where the previous frame ended,
+ * so both playback and seeking to any time, backwards included, take
+ * a bounded amount of work regardless of the length of the race.
+ */
+class ReplayPlayer {
+
+    /** The mapped log. */
+    private final MappedByteBuffer buffer;
+
+    /** The number of robots recorded. */
+    private final int robotCount;
+
+    /** The number of frames recorded. */
+    private final int frameCount;
+
+    /** The offset of every keyframe. */
+    private final long[] keyframes;
+
+    /** The quantized values of the decoded frame and the frame before it. */
+    private final long[] current, previous;
+
+    /** The number of the decoded frame, -1 if none. */
+    private int frame = -1;
+
+    /** The offset of the frame after the decoded frame. */
+    private int position;
+
+    /** The values of the frame before and after the shown time. */
+    private final double[] before, after;
+
+    /** The number of the frame in before, -1 if none. */
+    private int beforeFrame = -1;
+
+    /** The interpolated values at the shown time. */
+    private final double[] values;
+
+    /**
+     * Opens a recorded log.
+     */
+    public ReplayPlayer(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int size = buffer.limit();
+        if (size < ReplayRecorder.HEADER_SIZE + ReplayRecorder.TRAILER_SIZE
+                || ReplayRecorder.MAGIC != buffer.getInt(0)) {
+            throw new IOException(file + " is not a replay");
+        }
+        if (ReplayRecorder.VERSION != buffer.getInt(4)) {
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+        if (ReplayRecorder.MAGIC != buffer.getInt(size - 4)) {
+            throw new IOException(file + " was not closed after recording");
+        }
+        if (ReplayRecorder.FRAME_RATE != buffer.getInt(12)
+                || ReplayRecorder.KEYFRAME_INTERVAL != buffer.getInt(16)) {
+            throw new IOException(file + " has an unsupported frame rate");
+        }
+
+        robotCount = buffer.getInt(8);
+        long indexOffset = buffer.getLong(size - ReplayRecorder.TRAILER_SIZE);
+        frameCount = buffer.getInt(size - 8);
+        int keyframeCount = (frameCount + ReplayRecorder.KEYFRAME_INTERVAL - 1)
+                          / ReplayRecorder.KEYFRAME_INTERVAL;
+        if (robotCount < 0 || frameCount < 1
+                || indexOffset + 8L * keyframeCount + ReplayRecorder.TRAILER_SIZE != size) {
+            throw new IOException(file + " has an invalid index");
+        }
+
+        keyframes = new long[keyframeCount];
+        for (int k = 0; k < keyframeCount; k++) {
+            keyframes[k] = buffer.getLong((int) indexOffset + 8 * k);
+        }
+
+        int valueCount = ReplayRecorder.valueCount(robotCount);
+        current = new long[valueCount];
+        previous = new long[valueCount];
+        before = new double[valueCount];
+        after = new double[valueCount];
+        values = new double[valueCount];
+    }
+
+    /**
+     * Returns the number of robots recorded.
+     */
+    public int getRobotCount() {
+        return robotCount;
+    }
+
+    /**
+     * Returns the race time of the last frame, in seconds.
+     */
+    public double getDuration() {
+        return (double) (frameCount - 1) / ReplayRecorder.FRAME_RATE;
+    }
+
+    /**
+     * Shows the race at the given time, clamped to the recording:
+     * places the robots and sets the camera state, interpolated
+     * between the frames before and after that time.
+     */
+    public void apply(double time, Robot[] robots, GlobalState gs) {
+        seek(time);
+
+        gs.camMode = (int) before[0];
+        gs.cnt = new Vector(values[1], values[2], values[3]);
+        gs.theta = (float) values[4];
+        gs.phi = (float) values[5];
+        gs.vDist = (float) values[6];
+
+        for (int i = 0; i < Math.min(robotCount, robots.length); i++) {
+            Robot robot = robots[i];
+            int v = ReplayRecorder.CAMERA_VALUES + i * ReplayRecorder.ROBOT_VALUES;
+            robot.position.set(values[v + 2], values[v + 3], values[v + 4]);
+            robot.direction.set(values[v + 5], values[v + 6], values[v + 7]).normalize();
+            robot.phase = values[v + 8];
+        }
+    }
+
+    /**
+     * Returns the lane of a robot at the time last shown.
+     */
+    public double getLane(int robot) {
+        return values[ReplayRecorder.CAMERA_VALUES + robot * ReplayRecorder.ROBOT_VALUES];
+    }
+
+    /**
+     * Returns the progress of a robot in laps at the time last shown.
+     */
+    public double getProgress(int robot) {
+        return values[ReplayRecorder.CAMERA_VALUES + robot * ReplayRecorder.ROBOT_VALUES + 1];
+    }
+
+    /**
+     * Interpolates the values at the given time.
+     */
+    private void seek(double time) {
+        double f = Math.max(0, Math.min(time * ReplayRecorder.FRAME_RATE, frameCount - 1));
+        int first = Math.min((int) f, frameCount - 1);
+        double alpha = f - first;
+
+        if (first != beforeFrame) {
+            if (first == beforeFrame + 1 && first == frame) {
+                // Playing forward, the frame after the previous time comes first now.
+                System.arraycopy(after, 0, before, 0, before.length);
+            } else {
+                decode(first);
+                dequantize(before);
+            }
+            beforeFrame = first;
+            decode(Math.min(first + 1, frameCount - 1));
+            dequantize(after);
+        }
+
+        for (int v = 0; v < values.length; v++) {
+            values[v] = before[v] + alpha * (after[v] - before[v]);
+        }
+    }
+
+    /**
+     * Decodes the given frame, continuing from the decoded frame if it
+     * lies between that frame and the next keyframe, and from the
+     * keyframe before the given frame otherwise.
+     */
+    private void decode(int target) {
+        int interval = ReplayRecorder.KEYFRAME_INTERVAL;
+        if (target < frame || frame < 0 || target / interval != frame / interval) {
+            position = (int) keyframes[target / interval];
+            frame = target / interval * interval - 1;
+        }
+
+        while (frame < target) {
+            frame++;
+            boolean keyframe = 0 == frame % interval;
+            for (int v = 0; v < current.length; v++) {
+                long bits = readVarLong();
+                long residual = (bits >>> 1) ^ -(bits & 1);
+                long value = keyframe ? residual : 2 * current[v] - previous[v] + residual;
+                previous[v] = keyframe ? value : current[v];
+                current[v] = value;
+            }
+        }
+    }
+
+    /**
+     * Reads a variable length integer at the current position.
+     */
+    private long readVarLong() {
+        long bits = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position++);
+            bits |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return bits;
+            }
+        }
+    }
+
+    /**
+     * Converts the decoded frame back to real values.
+     */
+    private void dequantize(double[] out) {
+        for (int v = 0; v < out.length; v++) {
+            out[v] = current[v] / ReplayRecorder.scale(v);
+        }
+    }
+
+    /**
+     * Prints the state of a recorded race at the given times.
+     * Usage: ReplayPlayer log [time...]
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayPlayer log [time...]");
+            System.exit(1);
+        }
+
+        ReplayPlayer player = new ReplayPlayer(new File(args[0]));
+        System.out.println(player.getRobotCount() + " robots, "
+                + player.getDuration() + " s, " + player.frameCount + " frames");
+
+        Robot[] robots = new Robot[player.getRobotCount()];
+        for (int i = 0; i < robots.length; i++) {
+            robots[i] = new Robot(Material.GOLD);
+        }
+        GlobalState gs = new GlobalState();
+        for (int a = 1; a < args.length; a++) {
+            player.apply(Double.parseDouble(args[a]), robots, gs);
+            System.out.println("t = " + args[a] + " s, camera mode " + gs.camMode);
+            for (int i = 0; i < robots.length; i++) {
+                System.out.println("  robot " + i + ": lane " + player.getLane(i)
+                        + ", lap " + player.getProgress(i)
+                        + ", position " + robots[i].position);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package robotrace;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Records a race into a compact binary log that {@link ReplayPlayer} can
+ * play back and seek in.
+ *
+ * The state of the robots and the camera is sampled at a fixed frame
+ * rate, independent of the rendering. Every value is quantized to a
+ * fixed precision and stored as the difference from a linear prediction
+ * based on the two frames before it, as a zigzag variable length
+ * integer. Smooth motion therefore takes one or two bytes per value.
+ * Every KEYFRAME_INTERVAL frames a keyframe stores the values
+ * themselves, so playback can start decoding at any keyframe.
+ *
+ * A log is little endian and starts with a header of 24 bytes: the
+ * magic number, the format version, the number of robots, the frame
+ * rate and the keyframe interval. The frames follow, then the offset
+ * of every keyframe as a long, and a trailer of 16 bytes with the
+ * offset of that index, the number of frames and the magic number.
+ */
+class ReplayRecorder {
+
+    /** The first four bytes of every log, "RRPL", also its last four. */
+    final static int MAGIC = 0x5252504C;
+
+    /** The version of the log format. */
+    final static int VERSION = 1;
+
+    /** The size of the header in bytes. */
+    final static int HEADER_SIZE = 24;
+
+    /** The size of the trailer in bytes. */
+    final static int TRAILER_SIZE = 16;
+
+    /** The number of frames per second of race time. */
+    final static int FRAME_RATE = 60;
+
+    /** The number of frames from one keyframe to the next. */
+    final static int KEYFRAME_INTERVAL = 60;
+
+    /** The camera values: mode, center x, y and z, theta, phi and distance. */
+    final static int CAMERA_VALUES = 7;
+
+    /** The values of every robot: lane, progress, position, direction and gait phase. */
+    final static int ROBOT_VALUES = 9;
+
+    /** The number of quantization steps per unit of every camera value. */
+    private final static double[] CAMERA_SCALES = {1, 1e4, 1e4, 1e4, 1e5, 1e5, 1e4};
+
+    /** The number of quantization steps per unit of every robot value. */
+    private final static double[] ROBOT_SCALES = {1e5, 1e9, 1e4, 1e4, 1e4, 1e5, 1e5, 1e5, 1e5};
+
+    /** The log being written. */
+    private final OutputStream output;
+
+    /** The number of robots recorded. */
+    private final int robotCount;
+
+    /** The number of bytes written so far. */
+    private long offset = 0;
+
+    /** The number of frames written so far. */
+    private int frameCount = 0;
+
+    /** The offset of every keyframe written so far. */
+    private long[] keyframes = new long[16];
+
+    /** The values recorded by the current and by the previous call. */
+    private final double[] values, lastValues;
+
+    /** The time of the previous call, NaN before the first one. */
+    private double lastTime = Double.NaN;
+
+    /** The values of the frame being written. */
+    private final double[] frameValues;
+
+    /** The quantized values of the previous two frames. */
+    private final long[] previous, beforePrevious;
+
+    /** The encoded current frame, at most ten bytes per value. */
+    private final byte[] encoded;
+
+    /** Whether the log has been closed. */
+    private boolean closed = false;
+
+    /**
+     * Creates a log for a race of robotCount robots.
+     */
+    public ReplayRecorder(File file, int robotCount) throws IOException {
+        this.robotCount = robotCount;
+        int valueCount = valueCount(robotCount);
+        values = new double[valueCount];
+        lastValues = new double[valueCount];
+        frameValues = new double[valueCount];
+        previous = new long[valueCount];
+        beforePrevious = new long[valueCount];
+        encoded = new byte[10 * valueCount];
+
+        output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(robotCount)
+              .putInt(FRAME_RATE).putInt(KEYFRAME_INTERVAL);
+        write(header.array(), HEADER_SIZE);
+    }
+
+    /**
+     * Records the state at the given race time: the lanes and progress
+     * of the robots from the snapshot interpolated at alpha, the robots
+     * themselves and the camera. Writes one frame for every sample time
+     * passed since the previous call, interpolated between the two
+     * calls, so frames are never missing and hold the exact state.
+     */
+    public synchronized void record(double time, RaceSnapshot snapshot, double alpha,
+                                    Robot[] robots, GlobalState gs) throws IOException {
+        if (closed) {
+            return;
+        }
+
+        values[0] = gs.camMode;
+        values[1] = gs.cnt.x();
+        values[2] = gs.cnt.y();
+        values[3] = gs.cnt.z();
+        values[4] = gs.theta;
+        values[5] = gs.phi;
+        values[6] = gs.vDist;
+        for (int i = 0; i < robotCount; i++) {
+            Robot robot = robots[i];
+            int v = CAMERA_VALUES + i * ROBOT_VALUES;
+            values[v] = snapshot.getLane(i, alpha);
+            values[v + 1] = snapshot.getProgress(i, alpha);
+            values[v + 2] = robot.position.x;
+            values[v + 3] = robot.position.y;
+            values[v + 4] = robot.position.z;
+            values[v + 5] = robot.direction.x;
+            values[v + 6] = robot.direction.y;
+            values[v + 7] = robot.direction.z;
+            values[v + 8] = robot.phase;
+        }
+
+        while ((double) frameCount / FRAME_RATE <= time) {
+            double frameTime = (double) frameCount / FRAME_RATE;
+            if (Double.isNaN(lastTime) || frameTime >= time) {
+                System.arraycopy(values, 0, frameValues, 0, values.length);
+            } else {
+                double f = (frameTime - lastTime) / (time - lastTime);
+                for (int v = 0; v < values.length; v++) {
+                    frameValues[v] = lastValues[v] + f * (values[v] - lastValues[v]);
+                }
+                frameValues[0] = f < 0.5 ? lastValues[0] : values[0];
+            }
+            writeFrame();
+        }
+
+        System.arraycopy(values, 0, lastValues, 0, values.length);
+        lastTime = time;
+    }
+
+    /**
+     * Writes the index and the trailer, and closes the log.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            int keyframeCount = (frameCount + KEYFRAME_INTERVAL - 1) / KEYFRAME_INTERVAL;
+            long indexOffset = offset;
+            ByteBuffer index = ByteBuffer.allocate(8 * keyframeCount + TRAILER_SIZE)
+                                         .order(ByteOrder.LITTLE_ENDIAN);
+            for (int k = 0; k < keyframeCount; k++) {
+                index.putLong(keyframes[k]);
+            }
+            index.putLong(indexOffset).putInt(frameCount).putInt(MAGIC);
+            write(index.array(), index.capacity());
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Encodes the frame values as the next frame.
+     */
+    private void writeFrame() throws IOException {
+        boolean keyframe = 0 == frameCount % KEYFRAME_INTERVAL;
+        if (keyframe) {
+            int k = frameCount / KEYFRAME_INTERVAL;
+            if (k == keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes, 2 * k);
+            }
+            keyframes[k] = offset;
+        }
+
+        int length = 0;
+        for (int v = 0; v < values.length; v++) {
+            long value = Math.round(frameValues[v] * scale(v));
+            long residual;
+            if (keyframe) {
+                residual = value;
+                beforePrevious[v] = value;
+            } else {
+                residual = value - (2 * previous[v] - beforePrevious[v]);
+                beforePrevious[v] = previous[v];
+            }
+            previous[v] = value;
+
+            // Zigzag, so small negative residuals take few bytes too.
+            long bits = (residual << 1) ^ (residual >> 63);
+            while ((bits & ~0x7FL) != 0) {
+                encoded[length++] = (byte) ((bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            encoded[length++] = (byte) bits;
+        }
+
+        write(encoded, length);
+        frameCount++;
+    }
+
+    /**
+     * Writes the first length bytes of data to the log.
+     */
+    private void write(byte[] data, int length) throws IOException {
+        output.write(data, 0, length);
+        offset += length;
+    }
+
+    /**
+     * Returns the number of values in a frame of a race of robotCount robots.
+     */
+    static int valueCount(int robotCount) {
+        return CAMERA_VALUES + robotCount * ROBOT_VALUES;
+    }
+
+    /**
+     * Returns the number of quantization steps per unit of a value.
+     */
+    static double scale(int value) {
+        if (value < CAMERA_VALUES) {
+            return CAMERA_SCALES[value];
+        }
+        return ROBOT_SCALES[(value - CAMERA_VALUES) % ROBOT_VALUES];
+    }
+}
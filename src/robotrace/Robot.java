@@ -1,19 +1,18 @@
 package robotrace;
 
-import com.jogamp.opengl.util.gl2.GLUT;
-import javax.media.opengl.GL2;
-import javax.media.opengl.glu.GLU;
-
 /**
 * Represents a Robot, to be implemented according to the Assignments.
 */
 class Robot {
     
     /** The position of the robot. */
-    public Vector position = new Vector(0, 0, 0);
+    public final MutableVec3 position = new MutableVec3(0, 0, 0);
     
     /** The direction in which the robot is running. */
-    public Vector direction = new Vector(1, 0, 0);
+    public final MutableVec3 direction = new MutableVec3(1, 0, 0);
+
+    /** The phase of the gait of the robot, in cycles. */
+    public double phase = 0;
 
     /** The material from which this robot is built. */
     private final Material material;
@@ -29,22 +28,9 @@ class Robot {
     }
 
     /**
-     * Draws this robot (as a {@code stickfigure} if specified).
+     * Returns the material from which this robot is built.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut, boolean stickFigure, float tAnim) {
-        // code goes here ...
-        
-        gl.glLineWidth(1f);
-        gl.glColor3f(0f, 0f, 0f);
-
-        glut.glutWireCube(1f);
-        
-        gl.glPushMatrix();
-        
-        gl.glTranslatef(0f,0f,1f);
-        
-        glut.glutWireCube(.5f);
-        
-        gl.glPopMatrix();
+    public Material getMaterial() {
+        return material;
     }
 }
@@ -0,0 +1,79 @@
+package robotrace;
+
+import java.util.Arrays;
+
+/**
+ * The level of detail at which every robot is drawn in one view.
+ *
+ * The level follows from the height of the bounding sphere of the robot
+ * on the screen, in pixels, under the perspective of the view: robots
+ * large on the screen are drawn with all their body parts, smaller ones
+ * as a single simplified body, and the smallest as a billboard facing
+ * the eye. A robot only changes to a coarser level once it is clearly
+ * smaller than the threshold between the levels, and back only once it
+ * is clearly larger, so robots near a threshold do not pop back and
+ * forth.
+ */
+class RobotLod {
+
+    /** The levels of detail. */
+    final static int FULL = 0, BODY = 1, BILLBOARD = 2;
+
+    /** The number of levels of detail. */
+    final static int LEVELS = 3;
+
+    /** The height on the screen, in pixels, below which a robot is drawn one level coarser. */
+    private final static double[] THRESHOLDS = {64, 16};
+
+    /** The relative margin around every threshold before the level changes. */
+    private final static double HYSTERESIS = 0.2;
+
+    /** The eye of the view the levels were chosen for. */
+    final MutableVec3 eye = new MutableVec3();
+
+    /** The level of every robot. */
+    private int[] levels = new int[0];
+
+    /**
+     * Chooses the level of every robot, as seen from the given eye with
+     * the given perspective projection in a viewport of the given height.
+     */
+    public void update(Robot[] robots, MutableVec3 eye, Matrix4 projection, int viewportHeight) {
+        if (levels.length != robots.length) {
+            // New robots start coarse, and move to their level below at once.
+            levels = new int[robots.length];
+            Arrays.fill(levels, BILLBOARD);
+        }
+        this.eye.set(eye);
+
+        // The height in pixels of a unit length at unit distance.
+        double scale = projection.m[5] * viewportHeight / 2.0;
+
+        for (int r = 0; r < robots.length; r++) {
+            MutableVec3 position = robots[r].position;
+            double dx = position.x - eye.x;
+            double dy = position.y - eye.y;
+            double dz = position.z + RobotRenderer.BOUNDS_HEIGHT - eye.z;
+            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double pixels = distance > RobotRenderer.BOUNDS_RADIUS
+                          ? 2 * RobotRenderer.BOUNDS_RADIUS * scale / distance
+                          : Double.POSITIVE_INFINITY;
+
+            int level = levels[r];
+            while (level > FULL && pixels > THRESHOLDS[level - 1] * (1 + HYSTERESIS)) {
+                level--;
+            }
+            while (level < BILLBOARD && pixels < THRESHOLDS[level] * (1 - HYSTERESIS)) {
+                level++;
+            }
+            levels[r] = level;
+        }
+    }
+
+    /**
+     * Returns the level of robot r.
+     */
+    public int getLevel(int r) {
+        return levels[r];
+    }
+}
@@ -1,9 +1,24 @@
 package robotrace;
 
+import com.jogamp.opengl.util.gl2.GLUT;
 import javax.media.opengl.GL;
 import static javax.media.opengl.GL2.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import static javax.media.opengl.GL.GL_LINES;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import javax.media.opengl.glu.GLU;
 
 /**
  * Handles all of the RobotRace graphics functionality,
@@ -57,20 +72,115 @@ import static javax.media.opengl.GL.GL_LINES;
  * primitives of the object yourself (as seen
  * above) or add additional textured primitives
  * to the GLUT object.
+ * 
+ * Headless mode:
+ * Run with "--headless [frames] [output] [width] [height]"
+ * to render into an offscreen buffer as fast as possible,
+ * without a window or frame cap. The time of every phase
+ * of every frame is written to output.csv, and summary
+ * statistics to output.json.
  */
 public class RobotRace extends Base {
-    
-    /** Array of the four robots. */
+
+    /** The seed from which the speed profiles of the robots are derived. */
+    private final static long RACE_SEED = 2015;
+
+    /** The materials of the robots, the first four robots get one each. */
+    private final static Material[] ROBOT_MATERIALS = {
+        Material.GOLD, Material.SILVER, Material.WOOD, Material.ORANGE
+    };
+
+    /** Array of the robots, four unless the robotrace.robots property says otherwise. */
     private final Robot[] robots;
     
-    /** Instance of the camera. */
-    private final Camera camera;
+    /** The views of the window, each with its own camera, set by the robotrace.views property. */
+    private final List<View> views;
     
-    /** Instance of the race track. */
-    private final RaceTrack[] raceTracks;
+    /** The control points of every race track, null for the test track. */
+    private final Vector[][] trackPoints;
+
+    /** The number of the custom track, which may be loaded from a file. */
+    private final static int CUSTOM_TRACK = 4;
+
+    /** The track file set by the robotrace.track property, null if none. */
+    private final static String TRACK_FILE = System.getProperty("robotrace.track");
+
+    /** The race tracks, built in the background when first selected. */
+    private final List<Future<RaceTrack>> raceTracks = new ArrayList<Future<RaceTrack>>();
+
+    /** The race track that is shown, until the selected one is built. */
+    private RaceTrack shownTrack = null;
     
     /** Instance of the terrain. */
     private final Terrain terrain;
+
+    /** The version of the terrain in the static shadow map. */
+    private int terrainVersion = -1;
+
+    /** The race simulation on the current track, null until the first frame. */
+    private RaceSimulation simulation = null;
+
+    /** Shadows the material that is bound in OpenGL. */
+    private final MaterialCache materials = new MaterialCache();
+
+    /** Caches the tessellated primitives of the axis frame and the scene. */
+    private final Primitives primitives = new Primitives();
+
+    /** The unit shapes of the axis frame. */
+    private final Mesh originMesh = primitives.get(Primitives.Shape.CUBE, 1, 1);
+    private final Mesh shaftMesh = primitives.get(Primitives.Shape.CYLINDER, 15, 1);
+    private final Mesh coneMesh = primitives.get(Primitives.Shape.CONE, 35, 1);
+    private final Mesh focusMesh = primitives.get(Primitives.Shape.SPHERE, 10, 10);
+
+    /** The unit shape of the example cylinder. */
+    private final Mesh cylinderMesh = primitives.get(Primitives.Shape.CYLINDER, 50, 10);
+
+    /** Loads the textures in the background. */
+    private final TextureManager textures = new TextureManager(
+            new File(System.getProperty("robotrace.textureCache",
+                     System.getProperty("java.io.tmpdir") + "/robotrace-textures")));
+
+    /** Records the race to the file set by the robotrace.record property, null if none. */
+    private ReplayRecorder recorder = null;
+
+    /** Plays back the race in the file set by the robotrace.replay property, null if none. */
+    private ReplayPlayer player = null;
+
+    /** The race time at which playback starts, in seconds. */
+    private final static double REPLAY_START =
+            Double.parseDouble(System.getProperty("robotrace.replayStart", "0"));
+
+    /** The speed of playback, negative to play backwards. */
+    private final static double REPLAY_SPEED =
+            Double.parseDouble(System.getProperty("robotrace.replaySpeed", "1"));
+
+    /** The metrics of the race and the rendering. */
+    private final RaceMetrics metrics = new RaceMetrics();
+
+    /** Compiles the GLSL programs, each only once. */
+    private final ShaderManager shaders = new ShaderManager();
+
+    /** Lights the scene, with the light attached to the camera and the sun. */
+    private final Lighting lighting = new Lighting();
+
+    /** The direction towards the sun, which casts the shadows. */
+    private final static float[] SUN_DIRECTION = {0.4f, 0.3f, 1f, 0f};
+
+    /** The light of the sun. */
+    private final int sun;
+
+    /** The shadows of the sun. */
+    private final ShadowMap shadowMap = new ShadowMap();
+
+    /** The transformation from eye coordinates to the shadow map of the current view. */
+    private final Matrix4 eyeToShadow = new Matrix4();
+
+    /** Draws all robots with shared meshes. */
+    private final RobotRenderer robotRenderer = new RobotRenderer(materials);
+
+    /** Times the phases of every frame, disabled unless running headless. */
+    private FrameProfiler profiler = new FrameProfiler(0, false);
+
     
     /**
      * Constructs this robot race by initializing robots,
@@ -78,62 +188,137 @@ public class RobotRace extends Base {
      */
     public RobotRace() {
         
-        // Create a new array of four robots
-        robots = new Robot[4];
-        
-        // Initialize robot 0
-        robots[0] = new Robot(Material.GOLD
-            /* add other parameters that characterize this robot */);
-        
-        // Initialize robot 1
-        robots[1] = new Robot(Material.SILVER
-            /* add other parameters that characterize this robot */);
-        
-        // Initialize robot 2
-        robots[2] = new Robot(Material.WOOD
-            /* add other parameters that characterize this robot */);
-
-        // Initialize robot 3
-        robots[3] = new Robot(Material.ORANGE
-            /* add other parameters that characterize this robot */);
+        // Create the field of robots, cycling through the robot materials.
+        robots = new Robot[Integer.getInteger("robotrace.robots", ROBOT_MATERIALS.length)];
+        for (int i = 0; i < robots.length; i++) {
+            robots[i] = new Robot(ROBOT_MATERIALS[i % ROBOT_MATERIALS.length]
+                /* add other parameters that characterize this robot */);
+        }
         
-        // Initialize the camera
-        camera = new Camera();
+        // Initialize the views, by default one with the camera mode of the menu.
+        views = View.parse(System.getProperty("robotrace.views", "current"));
         
         // Initialize the race tracks
-        raceTracks = new RaceTrack[5];
+        trackPoints = new Vector[5][];
         
         // Test track
-        raceTracks[0] = new RaceTrack();
+        trackPoints[0] = null;
         
         // O-track
-        raceTracks[1] = new RaceTrack(new Vector[] {
+        trackPoints[1] = new Vector[] {
             /* add control points like:
             new Vector(10, 0, 1), new Vector(10, 5, 1), new Vector(5, 10, 1),
             new Vector(..., ..., ...), ...
             */
-        });
+        };
         
         // L-track
-        raceTracks[2] = new RaceTrack(new Vector[] { 
+        trackPoints[2] = new Vector[] { 
             /* add control points */
-        });
+        };
         
         // C-track
-        raceTracks[3] = new RaceTrack(new Vector[] { 
+        trackPoints[3] = new Vector[] { 
             /* add control points */
-        });
+        };
         
         // Custom track
-        raceTracks[4] = new RaceTrack(new Vector[] { 
+        trackPoints[4] = new Vector[] { 
            /* add control points */
-        });
+        };
+
+        // Start building the first track in the background.
+        for (int i = 0; i < trackPoints.length; i++) {
+            raceTracks.add(null);
+        }
+        buildTrack(gs.trackNr);
         
-        // Initialize the terrain
+        // Initialize the terrain, which the cameras stay above.
         terrain = new Terrain();
+        for (View v : views) {
+            v.camera.setTerrain(terrain);
+        }
         
         // Set the initial start location of the camera.
         gs.cnt = Vector.O;
+
+        // A white light at the camera, which is the origin of eye coordinates.
+        lighting.addLight(new float[] {0f, 0f, 0f, 1f}, true,
+                          new float[] {0.1f, 0.1f, 0.1f, 1f},
+                          new float[] {1f, 1f, 1f, 1f},
+                          new float[] {1f, 1f, 1f, 1f});
+
+        // A warm, dimmer sun, fixed in the world.
+        sun = lighting.addLight(SUN_DIRECTION, false,
+                                new float[] {0f, 0f, 0f, 1f},
+                                new float[] {0.5f, 0.5f, 0.45f, 1f},
+                                new float[] {0.3f, 0.3f, 0.3f, 1f});
+
+        openReplay();
+        openMetrics();
+    }
+
+    /**
+     * Opens the replay to play back or the log to record into, as set
+     * by the robotrace.replay and robotrace.record properties.
+     */
+    private void openReplay() {
+        String replay = System.getProperty("robotrace.replay");
+        String record = System.getProperty("robotrace.record");
+        try {
+            if (null != replay) {
+                player = new ReplayPlayer(new File(replay));
+            } else if (null != record) {
+                recorder = new ReplayRecorder(new File(record), robots.length);
+
+                // Complete the log when the window is closed.
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeRecorder();
+                    }
+                }));
+            }
+        } catch (IOException ex) {
+            System.err.println("Replay not available: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Exports the metrics to the JSON file set by the robotrace.metrics
+     * property, every robotrace.metricsPeriod milliseconds, and over JMX
+     * if the robotrace.jmx property is true.
+     */
+    private void openMetrics() {
+        String file = System.getProperty("robotrace.metrics");
+        if (null != file) {
+            long period = Long.parseLong(System.getProperty("robotrace.metricsPeriod", "1000"));
+            metrics.addExporter(new JsonMetricsExporter(new File(file), period));
+        }
+        if (Boolean.getBoolean("robotrace.jmx")) {
+            metrics.addExporter(new JmxMetricsExporter());
+        }
+
+        // Export the final values when the window is closed.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                metrics.close();
+            }
+        }));
+    }
+
+    /**
+     * Completes the log being recorded, if any.
+     */
+    private void closeRecorder() {
+        if (null != recorder) {
+            try {
+                recorder.close();
+            } catch (IOException ex) {
+                System.err.println("Recording failed: " + ex.getMessage());
+            }
+        }
     }
     
     /*
@@ -150,28 +335,33 @@ public class RobotRace extends Base {
         // Enable depth testing.
         gl.glEnable(GL_DEPTH_TEST);
         gl.glDepthFunc(GL_LESS);
-		
-	// Normalize normals.
-        gl.glEnable(GL_NORMALIZE);
         
         // Enable textures. 
         gl.glEnable(GL_TEXTURE_2D);
         gl.glHint(GL_PERSPECTIVE_CORRECTION_HINT, GL_NICEST);
         gl.glBindTexture(GL_TEXTURE_2D, 0);
 		
-        // Try to load four textures, add more if you like.
-        track = loadTexture("track.jpg");
-        brick = loadTexture("brick.jpg");
-        head  = loadTexture("head.jpg");
-        torso = loadTexture("torso.jpg");
-        
-        gl.glShadeModel(GL_SMOOTH);
-        gl.glEnable(GL_LIGHTING);
-        gl.glEnable(GL_LIGHT0);
-        
-        float whiteColor[] = { 1.0f, 1.0f, 1.0f, 1.0f };
-        gl.glLightfv(GL_LIGHT0, GL_DIFFUSE, whiteColor, 0);
-        gl.glLightfv(GL_LIGHT0, GL_AMBIENT, new float[]{0.1f, 0.1f, 0.1f, 1f}, 0);
+        // Load four textures in the background, add more if you like.
+        // Placeholders are shown until they are uploaded.
+        textures.reset();
+        textures.request("track.jpg");
+        textures.request("brick.jpg");
+        textures.request("head.jpg");
+        textures.request("torso.jpg");
+        refreshTextures();
+        
+        // The context is new, so no shader or material exists in it yet.
+        shaders.reset();
+        materials.invalidate();
+
+        // Light the scene per pixel with shaders, or else with the fixed pipeline.
+        lighting.initialize(gl, shaders, materials);
+
+        // Use instancing to draw the robots, if available.
+        robotRenderer.initialize(gl, shaders, lighting);
+
+        // Cast the shadows of the sun, if the lighting is shaded.
+        shadowMap.initialize(gl, lighting);
     }
     
     /**
@@ -179,34 +369,28 @@ public class RobotRace extends Base {
      */
     @Override
     public void setView() {
-        // Select part of window.
-        gl.glViewport(0, 0, gs.w, gs.h);
-        
-        // Set projection matrix.
-        gl.glMatrixMode(GL_PROJECTION);
-        gl.glLoadIdentity();
-
-        // Set the perspective.
-        // Modify this to meet the requirements in the assignment.
-        double aspectRatio = gs.w / gs.h;
-        
-        double xFOV = 2 * Math.atan((gs.vWidth / 2) / gs.vDist); // Calculate FOV.
-        xFOV = xFOV * 180 / Math.PI; // Convert FOV from radians to degrees.
-        
-        double yFOV = xFOV / aspectRatio; // Convert xFOV to yFOV y using the aspect ratio of the screen.
-        glu.gluPerspective(yFOV, aspectRatio, 0.1 * gs.vDist, 10 * gs.vDist);
-        
-        // Set camera.
-        gl.glMatrixMode(GL_MODELVIEW);
-        gl.glLoadIdentity();
-               
-        // Update the view according to the camera mode and robot of interest.
-        // For camera modes 1 to 4, determine which robot to focus on.
-        camera.update(gs, robots[0]);
-        glu.gluLookAt(camera.eye.x(),    camera.eye.y(),    camera.eye.z(),
-                      camera.center.x(), camera.center.y(), camera.center.z(),
-                      camera.up.x(),     camera.up.y(),     camera.up.z()
-        );
+        metrics.beginFrame();
+        profiler.start(FrameProfiler.Phase.SET_VIEW);
+
+        // A replay drives the camera state, and the robots it focuses on.
+        if (null != player) {
+            player.apply(REPLAY_START + REPLAY_SPEED * gs.tAnim, robots, gs);
+        }
+
+        // Update every view according to its camera mode and robot of interest.
+        // For camera modes 1 to 4, the standings determine which robot to focus on.
+        RaceSnapshot snapshot = null == simulation || null != player
+                              ? null : simulation.getSnapshot();
+        for (int i = 0; i < views.size(); i++) {
+            View v = views.get(i);
+            v.layout(i, views.size(), gs.w, gs.h);
+            v.update(gs, robots, snapshot);
+        }
+
+        // Select the first view, as the only one by default.
+        views.get(0).apply(gl);
+
+        profiler.stop(FrameProfiler.Phase.SET_VIEW);
     }
     
     /**
@@ -214,6 +398,34 @@ public class RobotRace extends Base {
      */
     @Override
     public void drawScene() {
+        // Upload the textures that finished loading.
+        if (textures.update(gl)) {
+            refreshTextures();
+        }
+
+        // Place the robots on the selected track, unless a replay places them.
+        RaceTrack raceTrack = selectTrack(gs.trackNr);
+        terrain.setTrack(raceTrack);
+        if (null == player) {
+            placeRobots(raceTrack);
+        }
+
+        // Pose the robots once, for the shadows and all views, and choose their detail in every view.
+        robotRenderer.prepare(robots);
+        for (View v : views) {
+            v.chooseLevels(robots);
+        }
+
+        // Stream the terrain, and render its shadows again when tiles near the track arrived.
+        terrain.update(gl);
+        if (terrain.getVersion() != terrainVersion) {
+            terrainVersion = terrain.getVersion();
+            shadowMap.invalidate();
+        }
+
+        // Render the shadows, before the frame buffer is cleared.
+        drawShadows(raceTrack);
+
         // Background color.
         gl.glClearColor(0f, 0f, 0f, 0f);
         
@@ -227,34 +439,55 @@ public class RobotRace extends Base {
         gl.glColor3f(0f, 0f, 0f);
         
         gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+
+        // Only the camera and culling are repeated for every view.
+        for (View v : views) {
+            drawView(raceTrack, v);
+        }
+        
+        // Leave the fixed pipeline current for the library.
+        ShaderProgram.useNone(gl);
+    }
+
+    /**
+     * Draws the scene into the viewport of the given view, as seen by
+     * its camera.
+     */
+    private void drawView(RaceTrack raceTrack, View v) {
+        v.apply(gl);
+
+        // Pass the lights of this view once, for all programs.
+        if (shadowMap.isAvailable()) {
+            lighting.setShadow(sun, shadowMap.getEyeToShadow(v.view, eyeToShadow));
+        }
+        lighting.update(gl, v.view);
+        lighting.use(gl);
         
         // Draw the axis frame.
         if (gs.showAxes) {
             drawAxisFrame();
         }
         
-        // Get the position and direction of the first robot.
-        robots[0].position = raceTracks[gs.trackNr].getLanePoint(0, 0);
-        robots[0].direction = raceTracks[gs.trackNr].getLaneTangent(0, 0);
-        
-        // Draw the first robot.
-        robots[0].draw(gl, glu, glut, false, gs.tAnim);
-        
-        // Draw the race track.
-        raceTracks[gs.trackNr].draw(gl, glu, glut);
-        
-        // Draw the terrain.
-        terrain.draw(gl, glu, glut);
-        
-        float cameraLightPos[] = {
-            (float) camera.eye.x(), // Get x coordinate of the camera.
-            (float) camera.eye.y(), // Get y coordinate of the camera.
-            (float) camera.eye.z(), // Get z coordinate of the camera.
-            1.0f                    // It's a local position.
-        };
-        float pinkColor[] = {1.0f, 0.5f, 0.5f, 1.0f};
-        
-        gl.glLightfv(GL_LIGHT0, GL_POSITION, cameraLightPos, 0);        
+        profiler.start(FrameProfiler.Phase.ROBOTS);
+
+        // Draw the robots, batched by material.
+        robotRenderer.draw(gl, robots, v.frustum, gs.showStick, v.lod);
+
+        profiler.stop(FrameProfiler.Phase.ROBOTS);
+        
+        // Draw the race track, its textures provide the color.
+        profiler.start(FrameProfiler.Phase.TRACK);
+        setMaterial(Material.TRACK);
+        lighting.setTextured(gl, true);
+        raceTrack.draw(gl, glu, glut, v.frustum);
+        lighting.setTextured(gl, false);
+        profiler.stop(FrameProfiler.Phase.TRACK);
+        
+        // Draw the terrain, which replaces the flat floor.
+        profiler.start(FrameProfiler.Phase.TERRAIN);
+        setMaterial(Material.TERRAIN);
+        terrain.draw(gl, glu, glut, v.camera, v.frustum);
+        profiler.stop(FrameProfiler.Phase.TERRAIN);
         
         gl.glLineWidth(1f);
         gl.glColor3f(0f, 0f, 0f);
@@ -271,20 +504,96 @@ public class RobotRace extends Base {
         gl.glScalef(1f, 1f, 2f);
 
         // Translated, rotated, scaled box.
-        setMaterial(pinkColor, 0f, "plastic");
-        glut.glutSolidCylinder(1f, 1f, 50, 10);
+        setMaterial(Material.PINK);
+        cylinderMesh.draw(gl);
         
         gl.glPopMatrix();
-        
-        // Create the floor.
-        setMaterial(new float[]{0.2f, .2f, .2f, 1f}, 10f, "plastic");
-        gl.glBegin(GL_POLYGON);
-            gl.glNormal3f(0f, 0f, 1f);
-            gl.glVertex3f(100f, 100f, 0f);
-            gl.glVertex3f(100f, -100f, 0f);
-            gl.glVertex3f(-100f, -100f, 0f);
-            gl.glVertex3f(-100f, 100f, 0f);
-        gl.glEnd();
+    }
+    
+    /**
+     * Renders the shadows of the sun and binds them for all views. The
+     * shadows of the track and terrain are rendered once per track,
+     * those of the robots every frame.
+     */
+    private void drawShadows(RaceTrack raceTrack) {
+        if (!shadowMap.isAvailable()) {
+            lighting.setShadow(-1, null);
+            return;
+        }
+        profiler.start(FrameProfiler.Phase.SHADOWS);
+
+        if (shadowMap.beginStatic(gl, raceTrack, lighting.getPosition(sun))) {
+            raceTrack.draw(gl, glu, glut, shadowMap.getFrustum());
+            terrain.draw(gl, glu, glut, views.get(0).camera, shadowMap.getFrustum());
+            shadowMap.end(gl);
+        }
+
+        // The robots cast their shadows at the detail of the first view.
+        shadowMap.beginDynamic(gl, robots);
+        robotRenderer.draw(gl, robots, shadowMap.getFrustum(), gs.showStick, views.get(0).lod);
+        shadowMap.end(gl);
+
+        shadowMap.bind(gl);
+
+        profiler.stop(FrameProfiler.Phase.SHADOWS);
+    }
+
+    /**
+     * Points the shared textures at the loaded textures or placeholders.
+     */
+    private void refreshTextures() {
+        track = textures.get(gl, "track.jpg");
+        brick = textures.get(gl, "brick.jpg");
+        head  = textures.get(gl, "head.jpg");
+        torso = textures.get(gl, "torso.jpg");
+    }
+
+    /**
+     * Returns the race track to show when the given track is selected.
+     * A track that is selected for the first time is built in the
+     * background, and the previously shown track is returned until it
+     * is done, so switching tracks never stalls the animation.
+     */
+    private RaceTrack selectTrack(int trackNr) {
+        Future<RaceTrack> future = buildTrack(trackNr);
+
+        // Only the very first track is waited for, there is nothing else to show.
+        if (future.isDone() || null == shownTrack) {
+            try {
+                shownTrack = future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Building race track " + trackNr
+                                                + " failed", ex.getCause());
+            }
+        }
+        return shownTrack;
+    }
+    
+    /**
+     * Returns the future race track with the given number, and starts
+     * building it in the background if that has not been done yet. The
+     * custom track is loaded from the file named by the robotrace.track
+     * property, if it is set.
+     */
+    private Future<RaceTrack> buildTrack(int trackNr) {
+        Future<RaceTrack> future = raceTracks.get(trackNr);
+        if (null == future) {
+            final Vector[] controlPoints = trackPoints[trackNr];
+            final boolean fromFile = CUSTOM_TRACK == trackNr && null != TRACK_FILE;
+            future = Parallel.submit(new Callable<RaceTrack>() {
+                @Override
+                public RaceTrack call() throws IOException {
+                    if (fromFile) {
+                        return TrackFile.load(new File(TRACK_FILE));
+                    }
+                    return new RaceTrack(controlPoints);
+                }
+            });
+            raceTracks.set(trackNr, future);
+        }
+        return future;
     }
     
     /**
@@ -292,45 +601,37 @@ public class RobotRace extends Base {
      * and origin (yellow).
      */
     public void drawAxisFrame() {
-        // Define all the colors.
-        float yellow[] = {1.0f, 1.0f, 0.0f, 1.0f};
-        float red[] = {1.0f, 0.0f, 0.0f, 1.0f};
-        float green[] = {0.0f, 1.0f, 0.0f, 1.0f};
-        float blue[] = {0.0f, 0.0f, 1.0f, 1.0f};
-        
-        // Define shininess axis frame.
-        float shininess = 10f;
-        
-        // Define material axis frame.
-        String materialType = "metal";
-        
         // Create the yellow box in the center.
-        setMaterial(yellow, shininess, materialType);
-        glut.glutSolidCube(.12f);
+        setMaterial(Material.AXIS_ORIGIN);
+        gl.glPushMatrix();
+        gl.glScalef(.12f, .12f, .12f);
+        originMesh.draw(gl);
+        gl.glPopMatrix();
         
         // Create the red arrow.
         gl.glPushMatrix();
         gl.glRotatef(90f, 0f, 1f, 0f); // Rotate to get the global x axis alligned with the local z axis.
-        setMaterial(red, shininess, materialType);
+        setMaterial(Material.AXIS_X);
         createArrow(1f);
         gl.glPopMatrix();
         
         // Create the green arrow.
         gl.glPushMatrix();
-        setMaterial(green, shininess, materialType);
+        setMaterial(Material.AXIS_Y);
         gl.glRotatef(270f, 1f, 0f, 0f); // Rotate to get the global y axis alligned with the local z axis.
         createArrow(1f);
         gl.glPopMatrix();
         
         // Create the blue arrow.
-        setMaterial(blue, 10f, materialType);
+        setMaterial(Material.AXIS_Z);
         createArrow(1f);
         
         // Creates a little sphere where the camera focusses.
         gl.glPushMatrix();
-        setMaterial(.3f, .3f, .3f, 1f, shininess, materialType);
+        setMaterial(Material.FOCUS);
         gl.glTranslated(gs.cnt.x(),gs.cnt.y(),gs.cnt.z());
-        glut.glutSolidSphere(.05f,10,10);
+        gl.glScalef(.05f, .05f, .05f);
+        focusMesh.draw(gl);
         gl.glPopMatrix();
     }
 
@@ -339,87 +640,187 @@ public class RobotRace extends Base {
     * @param lengt - Length of the arrow.
     */
     public void createArrow(float length) {
-        int coneSides = 35;
+        float shaftRadius = length * .02f;
         float coneRadius = length * .05f;
         
+        // Draw the shaft of the arrow.
         gl.glPushMatrix();
-        
-            // Draw the shaft of the arrow.
-        glut.glutSolidCylinder(.02f * length, .9f * length, 15, 1);
+        gl.glScalef(shaftRadius, shaftRadius, .9f * length);
+        shaftMesh.draw(gl);
+        gl.glPopMatrix();
        
-            // Draw the cone on top.
-        // Move local axis to the position of the base and center of the cone.
+        // Draw the cone on top, its base closes the arrow.
+        gl.glPushMatrix();
         gl.glTranslatef(0f, 0f, .9f * length);
-        
-        // Draws the base of the cone (a circle).
-        gl.glBegin(GL_POLYGON);
-            double stepSize = 2 * Math.PI / coneSides;
-            for(int i = 0; i < coneSides; i++) {
-                gl.glNormal3f(0f, 0f, -1f); // Sets normal of the base of the cone.
-                gl.glVertex3d(coneRadius * Math.cos(i * stepSize), coneRadius * Math.sin(i * stepSize), 0f);
-            }
-        gl.glEnd();
-        
-        //Draws the cone itself.
-        glut.glutSolidCone(coneRadius,.1f * length, coneSides, 1);
-        
+        gl.glScalef(coneRadius, coneRadius, .1f * length);
+        coneMesh.draw(gl);
         gl.glPopMatrix();
     }
     
     /*
-    * @description               Sets the lights properties according to the given settings.
-    * @param float r             Amount of red in the color of the object.
-    * @param float g             Amount of green in the color of the object.
-    * @param float b             Amount of blue in the color of the object.
-    * @param float a             Opacity of the object.
-    * @param float shininess     Shininess of the object
-    * @param String materialType Type of the material, contains two types: plastic and metal.
+    * @description               Binds the given material, skipping all OpenGL calls
+    *                            when it is already bound.
+    * @param Material material   The material of the object.
     * @return                    Void
     */
-    public void setMaterial(float r, float g, float b, float a, float shininess, String materialType) {
-        float ambientDecrease = 2f;
-        float diffuseDecrease = 10f;
-        
-        float[] ambientColor = {r / ambientDecrease, g / ambientDecrease, b / ambientDecrease, a};
-        float[] diffuseColor = {r / diffuseDecrease, g / diffuseDecrease, b / diffuseDecrease, a};
-        float[] specularColor;
-        
-        switch(materialType.toLowerCase()) {
-            case "metal":
-                specularColor = diffuseColor;
-                break;
-            case "plastic":
-                float white = (r + g + b) / (3 * diffuseDecrease); // Dividing by three might be more accurate, but gives ugly results.
-                specularColor = new float[]{white, white, white, 1.0f};
-                break;
-            default:
-                specularColor = new float[]{0f, 0f, 0f, 0f};
-        }
-        
-        //specularColor = new float[]{.1f, .1f, .1f, 1.0f};
-        
-        gl.glMaterialfv(GL_FRONT, GL_DIFFUSE, diffuseColor, 0);
-        gl.glMaterialfv(GL_FRONT, GL_AMBIENT, ambientColor, 0);
-        gl.glMaterialfv(GL_FRONT, GL_SPECULAR, specularColor, 0);
-        gl.glMaterialf(GL_FRONT, GL_SHININESS, shininess);
-    }
-    
-    // Wrapper of setMaterial.
-    public void setMaterial(float[] rgba, float shininess, String material) {
-        setMaterial(rgba[0], rgba[1], rgba[2], rgba[3], shininess, material);
+    public void setMaterial(Material material) {
+        profiler.start(FrameProfiler.Phase.MATERIALS);
+        materials.apply(gl, material);
+        profiler.stop(FrameProfiler.Phase.MATERIALS);
     }
     
-    // Wrapper of setMaterial.
-    public void setMaterial(float r, float g, float b, float shininess, String material) {
-        setMaterial(r, g, b, 1.0f, shininess, material);
+    /**
+     * Places the robots on the race track by interpolating the latest
+     * tick of the simulation, and records them if requested. Starts a
+     * new race whenever another track is selected and built.
+     */
+    private void placeRobots(RaceTrack raceTrack) {
+        if (null == simulation || simulation.getTrack() != raceTrack) {
+            if (null != simulation) {
+                simulation.stop();
+            }
+            simulation = new RaceSimulation(raceTrack, robots.length, RACE_SEED);
+            simulation.start(metrics);
+            metrics.setRace(simulation);
+            for (View v : views) {
+                v.camera.setTrack(raceTrack);
+            }
+        }
+
+        RaceSnapshot snapshot = simulation.getSnapshot();
+        double alpha = simulation.getAlpha(snapshot);
+        for (int i = 0; i < robots.length; i++) {
+            double lane = snapshot.getLane(i, alpha);
+            double t = snapshot.getProgress(i, alpha);
+
+            MutableVec3 position = raceTrack.getTrackPoint(lane, t, robots[i].position);
+            raceTrack.getLaneTangent((int) Math.round(lane), t, robots[i].direction);
+
+            // Where the track dips below the ground, the robots run on the ground that covers it.
+            position.z = Math.max(position.z, terrain.heightAt((float) position.x,
+                                                               (float) position.y));
+            robots[i].phase = Skeleton.phase(i, gs.tAnim);
+        }
+
+        if (null != recorder) {
+            try {
+                recorder.record(gs.tAnim, snapshot, alpha, robots, gs);
+            } catch (IOException ex) {
+                System.err.println("Recording failed: " + ex.getMessage());
+                closeRecorder();
+                recorder = null;
+            }
+        }
     }
-    
+
     /**
      * Main program execution body, delegates to an instance of
      * the RobotRace implementation.
      */
-    public static void main(String args[]) {
+    public static void main(String args[]) throws IOException {
         RobotRace robotRace = new RobotRace();
-        robotRace.run();
-    } 
+        
+        if (args.length > 0 && "--headless".equals(args[0])) {
+            int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            String output = args.length > 2 ? args[2] : "frames";
+            int width = args.length > 3 ? Integer.parseInt(args[3]) : 1280;
+            int height = args.length > 4 ? Integer.parseInt(args[4]) : 720;
+            robotRace.runHeadless(frames, output, width, height);
+        } else {
+            robotRace.run();
+        }
+    }
+    
+    /**
+     * Renders the given number of frames into an offscreen buffer as
+     * fast as possible, and writes the timings of every frame to
+     * output.csv and output.json. Every phase waits for the GPU, so
+     * its time includes the rendering it caused.
+     */
+    public void runHeadless(int frames, String output, int width, int height)
+            throws IOException {
+        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+        capabilities.setDepthBits(24);
+        
+        // OpenGL utility functions.
+        glu = new GLU();
+        glut = new GLUT();
+        
+        gs.w = width;
+        gs.h = height;
+        profiler = new FrameProfiler(frames, true);
+        
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, capabilities, null, width, height);
+        drawable.addGLEventListener(new OffscreenDelegate());
+        
+        for (int i = 0; i < frames; i++) {
+            drawable.display();
+        }
+        drawable.destroy();
+        
+        if (null != simulation) {
+            simulation.stop();
+        }
+        closeRecorder();
+        metrics.close();
+        
+        profiler.writeCsv(new File(output + ".csv"));
+        profiler.writeJson(new File(output + ".json"));
+        System.out.println("Rendered " + frames + " frames to " + output + ".csv and " + output + ".json");
+    }
+    
+    /**
+     * Delegates the OpenGL events of the offscreen buffer in headless
+     * mode, like the window does otherwise, and times every frame.
+     */
+    private final class OffscreenDelegate implements GLEventListener {
+        
+        /** Start time of animation. */
+        private long startTime;
+
+        @Override
+        public void init(GLAutoDrawable drawable) {
+            gl = drawable.getGL().getGL2();
+            startTime = System.currentTimeMillis();
+            initialize();
+        }
+
+        @Override
+        public void display(GLAutoDrawable drawable) {
+            gl = drawable.getGL().getGL2();
+            gs.tAnim = (float) (System.currentTimeMillis() - startTime) / 1000f;
+            
+            profiler.beginFrame(gl);
+            setView();
+            
+            // Bind the null texture, as the window does.
+            gl.glBindTexture(GL_TEXTURE_2D, 0);
+            
+            drawScene();
+            
+            // Count and report OpenGL errors.
+            int errors = 0;
+            int errorCode = gl.glGetError();
+            while (errorCode != GL.GL_NO_ERROR) {
+                System.err.println(errorCode + " " + glu.gluErrorString(errorCode));
+                errors++;
+                errorCode = gl.glGetError();
+            }
+            profiler.endFrame(errors);
+        }
+
+        @Override
+        public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+            gl = drawable.getGL().getGL2();
+            gs.w = width;
+            gs.h = height;
+        }
+
+        @Override
+        public void dispose(GLAutoDrawable drawable) {
+        }
+    }
 }
@@ -0,0 +1,448 @@
+package robotrace;
+
+import com.jogamp.common.nio.Buffers;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL3ES3;
+import javax.media.opengl.GLException;
+
+/**
+ * Draws any number of robots from a single set of body part meshes.
+ *
+ * Every bone of the {@link Skeleton} is built into a solid and a stick
+ * figure mesh once, and both are posed with the same bone matrices.
+ * Each frame the robots are grouped by material, and all robots of one
+ * material are drawn with one instanced draw call per body part. The
+ * model matrices of the instances are streamed into a vertex buffer and
+ * read as a per-instance vertex attribute, so the number of draw calls
+ * does not grow with the number of robots. When the OpenGL
+ * implementation lacks instancing, the same meshes are drawn robot by
+ * robot instead. Robots whose bounding sphere lies outside the view
+ * frustum are skipped before any of this work.
+ *
+ * Robots that are small on the screen are drawn at a coarser level of
+ * detail, chosen per view by a {@link RobotLod}: as a single box for the
+ * whole body, or as a billboard that turns around the vertical axis to
+ * face the eye. The robots are grouped by level as well as material, so
+ * every level costs one instanced draw call per mesh.
+ *
+ * The robots are posed once per frame by {@link #prepare}, after which
+ * they may be drawn from any number of views and light sources.
+ */
+class RobotRenderer {
+
+    /** The number of body parts, one per bone of the skeleton. */
+    private final static int PARTS = Skeleton.BONES;
+
+    /** The size and center of the simplified body, around all body parts. */
+    private final static float[] BODY_SIZE = {0.25f, 0.5f, 1.8f};
+    private final static float[] BODY_CENTER = {0f, 0f, 0.9f};
+
+    /** The first of the four locations of the instance matrix attribute, one per column. */
+    private final static int INSTANCE_ATTRIBUTE = 12;
+
+    /** The number of bytes of one instance matrix. */
+    private final static int MATRIX_BYTES = 16 * Buffers.SIZEOF_FLOAT;
+
+    /** The center of the bounding sphere of a robot, above its position. */
+    final static double BOUNDS_HEIGHT = 0.9;
+
+    /** The radius of the bounding sphere of a robot, swinging limbs included. */
+    final static double BOUNDS_RADIUS = 1.0;
+
+    /** The vertex shader, which places every instance for the lighting fragment shader. */
+    private final static String VERTEX_SHADER =
+          "#version 120\n"
+        + "attribute mat4 instance;\n"
+        + "varying vec3 eyePosition;\n"
+        + "varying vec3 eyeNormal;\n"
+        + "varying vec2 texCoord;\n"
+        + "void main() {\n"
+        + "    mat4 model = instance;\n"
+        + "    vec4 position = gl_ModelViewMatrix * (model * gl_Vertex);\n"
+        + "    eyePosition = position.xyz;\n"
+        + "    eyeNormal = gl_NormalMatrix\n"
+        + "            * (mat3(model[0].xyz, model[1].xyz, model[2].xyz) * gl_Normal);\n"
+        + "    texCoord = gl_MultiTexCoord0.xy;\n"
+        + "    gl_Position = gl_ProjectionMatrix * position;\n"
+        + "}\n";
+
+    /** All materials, indexed by ordinal. */
+    private final static Material[] MATERIALS = Material.values();
+
+    /** The solid mesh of every part. */
+    private final Mesh[] solids = new Mesh[PARTS];
+
+    /** The stick figure mesh of every part. */
+    private final Mesh[] sticks = new Mesh[PARTS];
+
+    /** The simplified body, and its stick figure, a single line. */
+    private final Mesh body, bodyStick;
+
+    /** The billboard, a vertical rectangle facing the x-axis. */
+    private final Mesh billboard;
+
+    /** Binds the materials of the robots. */
+    private final MaterialCache materials;
+
+    /** The instancing program, null if instancing is not available. */
+    private ShaderProgram program = null;
+
+    /** The lighting of the scene, whose program is restored after drawing. */
+    private Lighting lighting;
+
+    /** The vertex buffer the instance matrices are streamed into, 0 until created. */
+    private int instanceBuffer = 0;
+
+    /** The number of matrices the instance buffer holds. */
+    private int instanceCapacity = 0;
+
+    /** The offset in bytes of the next free matrix in the instance buffer. */
+    private long instanceOffset;
+
+    /** The matrices of one draw call, on their way to the instance buffer. */
+    private FloatBuffer instanceData = Buffers.newDirectFloatBuffer(0);
+
+    /** The model matrix of every part of every robot in the current frame. */
+    private float[] partMatrices = new float[0];
+
+    /** The model matrix of every robot as a whole, without its gait. */
+    private float[] bodyMatrices = new float[0];
+
+    /** The model matrix of the billboard of every robot, facing the eye of the current view. */
+    private float[] billboardMatrices = new float[0];
+
+    /** Whether every robot is visible in the current frame. */
+    private boolean[] visible = new boolean[0];
+
+    /** The indices of the visible robots, grouped by level of detail and material. */
+    private int[] order = new int[0];
+
+    /** The number of robots of every level and material. */
+    private final int[] counts = new int[RobotLod.LEVELS * MATERIALS.length];
+
+    /** The next free position of every level and material in the grouped order. */
+    private final int[] next = new int[RobotLod.LEVELS * MATERIALS.length];
+
+    /**
+     * Builds the body part meshes, which are drawn with the given materials.
+     */
+    public RobotRenderer(MaterialCache materials) {
+        this.materials = materials;
+
+        for (int p = 0; p < PARTS; p++) {
+            solids[p] = Primitives.createBox(Skeleton.SIZES[p], Skeleton.CENTERS[p]);
+
+            // The stick runs through the center of the box, joint first.
+            sticks[p] = new Mesh(GL_LINES, 2);
+            float[] c = Skeleton.CENTERS[p];
+            sticks[p].vertex(0, 0, 0, 0, 0, 1, 0, 0);
+            sticks[p].vertex(2 * c[0], 2 * c[1], 2 * c[2], 0, 0, 1, 0, 0);
+        }
+
+        body = Primitives.createBox(BODY_SIZE, BODY_CENTER);
+        bodyStick = new Mesh(GL_LINES, 2);
+        bodyStick.vertex(0, 0, 0, 0, 0, 1, 0, 0);
+        bodyStick.vertex(0, 0, BODY_SIZE[2], 0, 0, 1, 0, 0);
+
+        // Two triangles, counterclockwise as seen from the positive x-axis.
+        float w = BODY_SIZE[1] / 2;
+        float h = BODY_SIZE[2];
+        billboard = new Mesh(GL_TRIANGLES, 6);
+        billboard.vertex(0, -w, 0, 1, 0, 0, 0, 0);
+        billboard.vertex(0, w, 0, 1, 0, 0, 1, 0);
+        billboard.vertex(0, w, h, 1, 0, 0, 1, 1);
+        billboard.vertex(0, -w, 0, 1, 0, 0, 0, 0);
+        billboard.vertex(0, w, h, 1, 0, 0, 1, 1);
+        billboard.vertex(0, -w, h, 1, 0, 0, 0, 1);
+    }
+
+    /**
+     * Prepares instanced drawing if the OpenGL implementation supports
+     * it, lit by the given lighting. Must be called from the OpenGL
+     * thread after the lighting is initialized.
+     */
+    public void initialize(GL2 gl, ShaderManager shaders, Lighting lighting) {
+        this.lighting = lighting;
+        program = null;
+
+        // Any buffer of an earlier context is gone with it.
+        instanceBuffer = 0;
+        instanceCapacity = 0;
+
+        if (!lighting.isShaded() || !(gl instanceof GL3ES3)
+                || !gl.isFunctionAvailable("glDrawArraysInstanced")
+                || !gl.isFunctionAvailable("glVertexAttribDivisor")) {
+            System.err.println("Instancing not available, drawing robots one by one");
+            return;
+        }
+
+        try {
+            shaders.bindAttribute("instance", INSTANCE_ATTRIBUTE);
+            program = shaders.get(gl, VERTEX_SHADER, Lighting.FRAGMENT_SHADER);
+            lighting.bindSamplers(gl, program);
+
+            int[] names = new int[1];
+            gl.glGenBuffers(1, names, 0);
+            instanceBuffer = names[0];
+        } catch (GLException ex) {
+            System.err.println("Instancing not available: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Poses the robots for the current frame, each in the phase of its
+     * gait.
+     */
+    public void prepare(Robot[] robots) {
+        computeMatrices(robots);
+    }
+
+    /**
+     * Draws the robots in the frustum as posed by the last call to
+     * {@link #prepare}, as stick figures if specified, at the levels of
+     * detail chosen by lod, or all in full detail if it is null.
+     */
+    public void draw(GL2 gl, Robot[] robots, Frustum frustum, boolean stickFigure, RobotLod lod) {
+        cull(robots, frustum);
+        group(robots, lod);
+        if (null != lod) {
+            computeBillboards(robots, lod);
+        }
+
+        Mesh[] meshes = stickFigure ? sticks : solids;
+        if (null != program) {
+            program.use(gl);
+            beginInstances(gl, robots.length * PARTS);
+        }
+
+        int first = 0;
+        for (int level = 0; level < RobotLod.LEVELS; level++) {
+            for (int m = 0; m < MATERIALS.length; m++) {
+                int count = counts[level * MATERIALS.length + m];
+                if (count > 0) {
+                    materials.apply(gl, MATERIALS[m]);
+                    if (RobotLod.FULL == level) {
+                        for (int p = 0; p < PARTS; p++) {
+                            drawPart(gl, meshes[p], partMatrices, PARTS, p, first, count);
+                        }
+                    } else if (stickFigure) {
+                        drawPart(gl, bodyStick, bodyMatrices, 1, 0, first, count);
+                    } else if (RobotLod.BODY == level) {
+                        drawPart(gl, body, bodyMatrices, 1, 0, first, count);
+                    } else {
+                        drawPart(gl, billboard, billboardMatrices, 1, 0, first, count);
+                    }
+                }
+                first += count;
+            }
+        }
+
+        if (null != program) {
+            endInstances(gl);
+            lighting.use(gl);
+        }
+    }
+
+    /**
+     * Makes room for the given number of instance matrices in a fresh
+     * instance buffer, and enables the instance matrix attribute, which
+     * advances once per instance.
+     */
+    private void beginInstances(GL2 gl, int matrices) {
+        if (instanceData.capacity() < 16 * matrices) {
+            instanceData = Buffers.newDirectFloatBuffer(16 * matrices);
+        }
+        instanceCapacity = Math.max(instanceCapacity, matrices);
+
+        // Orphan the storage of the last frame, so drawing it does not stall the upload.
+        gl.glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        gl.glBufferData(GL_ARRAY_BUFFER, (long) instanceCapacity * MATRIX_BYTES,
+                        null, GL_STREAM_DRAW);
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+        instanceOffset = 0;
+
+        GL3ES3 gl3 = (GL3ES3) gl;
+        for (int c = 0; c < 4; c++) {
+            gl.glEnableVertexAttribArray(INSTANCE_ATTRIBUTE + c);
+            gl3.glVertexAttribDivisor(INSTANCE_ATTRIBUTE + c, 1);
+        }
+    }
+
+    /**
+     * Disables the instance matrix attribute enabled by {@link #beginInstances}.
+     */
+    private void endInstances(GL2 gl) {
+        GL3ES3 gl3 = (GL3ES3) gl;
+        for (int c = 0; c < 4; c++) {
+            gl3.glVertexAttribDivisor(INSTANCE_ATTRIBUTE + c, 0);
+            gl.glDisableVertexAttribArray(INSTANCE_ATTRIBUTE + c);
+        }
+    }
+
+    /**
+     * Draws part p of count robots from the given position in the grouped
+     * order, whose model matrices are stored parts per robot in matrices.
+     */
+    private void drawPart(GL2 gl, Mesh mesh, float[] matrices, int parts, int p,
+                          int first, int count) {
+        if (null != program) {
+            drawInstanced(gl, mesh, matrices, parts, p, first, count);
+        } else {
+            drawOneByOne(gl, mesh, matrices, parts, p, first, count);
+        }
+    }
+
+    /**
+     * Draws a part of count robots from the given position in the
+     * grouped order with a single instanced draw call, after appending
+     * their matrices to the instance buffer.
+     */
+    private void drawInstanced(GL2 gl, Mesh mesh, float[] matrices, int parts, int p,
+                               int first, int count) {
+        instanceData.clear();
+        for (int k = 0; k < count; k++) {
+            int robot = order[first + k];
+            instanceData.put(matrices, (robot * parts + p) * 16, 16);
+        }
+        instanceData.flip();
+
+        gl.glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        gl.glBufferSubData(GL_ARRAY_BUFFER, instanceOffset, (long) count * MATRIX_BYTES,
+                           instanceData);
+        for (int c = 0; c < 4; c++) {
+            gl.glVertexAttribPointer(INSTANCE_ATTRIBUTE + c, 4, GL_FLOAT, false, MATRIX_BYTES,
+                                     instanceOffset + c * 4 * Buffers.SIZEOF_FLOAT);
+        }
+        gl.glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        mesh.drawInstanced(gl, count);
+        instanceOffset += (long) count * MATRIX_BYTES;
+    }
+
+    /**
+     * Draws a part of count robots from the given position in the
+     * grouped order, one draw call per robot.
+     */
+    private void drawOneByOne(GL2 gl, Mesh mesh, float[] matrices, int parts, int p,
+                              int first, int count) {
+        for (int k = 0; k < count; k++) {
+            int robot = order[first + k];
+            gl.glPushMatrix();
+            gl.glMultMatrixf(matrices, (robot * parts + p) * 16);
+            mesh.draw(gl);
+            gl.glPopMatrix();
+        }
+    }
+
+    /**
+     * Determines which robots may be visible in the frustum.
+     */
+    private void cull(Robot[] robots, Frustum frustum) {
+        if (visible.length != robots.length) {
+            visible = new boolean[robots.length];
+        }
+
+        for (int r = 0; r < robots.length; r++) {
+            MutableVec3 position = robots[r].position;
+            visible[r] = frustum.intersectsSphere(position.x, position.y,
+                                                  position.z + BOUNDS_HEIGHT,
+                                                  BOUNDS_RADIUS);
+        }
+    }
+
+    /**
+     * Computes the model matrix of every part of every robot, by posing
+     * the skeleton in the phase of the gait of the robot, and of every
+     * robot as a whole.
+     */
+    private void computeMatrices(Robot[] robots) {
+        if (partMatrices.length != robots.length * PARTS * 16) {
+            partMatrices = new float[robots.length * PARTS * 16];
+            bodyMatrices = new float[robots.length * 16];
+            billboardMatrices = new float[robots.length * 16];
+        }
+
+        for (int r = 0; r < robots.length; r++) {
+            Robot robot = robots[r];
+            Skeleton.pose(robot.position, robot.direction, robot.phase,
+                          partMatrices, r * PARTS * 16);
+            place(robot.position, robot.direction.x, robot.direction.y, bodyMatrices, r * 16);
+        }
+    }
+
+    /**
+     * Computes the model matrix of the billboard of every visible robot
+     * drawn as one, turned towards the eye the levels were chosen for.
+     */
+    private void computeBillboards(Robot[] robots, RobotLod lod) {
+        for (int r = 0; r < robots.length; r++) {
+            if (visible[r] && RobotLod.BILLBOARD == lod.getLevel(r)) {
+                MutableVec3 position = robots[r].position;
+                place(position, lod.eye.x - position.x, lod.eye.y - position.y,
+                      billboardMatrices, r * 16);
+            }
+        }
+    }
+
+    /**
+     * Stores the model matrix that moves the origin to the given position
+     * and turns the x-axis around the z-axis towards (dx, dy) in out from
+     * the given offset on.
+     */
+    private static void place(MutableVec3 position, double dx, double dy, float[] out, int offset) {
+        double length = Math.sqrt(dx * dx + dy * dy);
+        float c = length > 0 ? (float) (dx / length) : 1f;
+        float s = length > 0 ? (float) (dy / length) : 0f;
+
+        Arrays.fill(out, offset, offset + 16, 0f);
+        out[offset] = c;
+        out[offset + 1] = s;
+        out[offset + 4] = -s;
+        out[offset + 5] = c;
+        out[offset + 10] = 1f;
+        out[offset + 12] = (float) position.x;
+        out[offset + 13] = (float) position.y;
+        out[offset + 14] = (float) position.z;
+        out[offset + 15] = 1f;
+    }
+
+    /**
+     * Sorts the indices of the visible robots by level of detail and
+     * material into order, with a counting sort.
+     */
+    private void group(Robot[] robots, RobotLod lod) {
+        if (order.length != robots.length) {
+            order = new int[robots.length];
+        }
+
+        Arrays.fill(counts, 0);
+        for (int r = 0; r < robots.length; r++) {
+            if (visible[r]) {
+                counts[groupOf(robots, r, lod)]++;
+            }
+        }
+
+        int start = 0;
+        for (int g = 0; g < counts.length; g++) {
+            next[g] = start;
+            start += counts[g];
+        }
+
+        for (int r = 0; r < robots.length; r++) {
+            if (visible[r]) {
+                order[next[groupOf(robots, r, lod)]++] = r;
+            }
+        }
+    }
+
+    /**
+     * Returns the group of robot r, by its level of detail and material.
+     */
+    private static int groupOf(Robot[] robots, int r, RobotLod lod) {
+        int level = null == lod ? RobotLod.FULL : lod.getLevel(r);
+        return level * MATERIALS.length + robots[r].getMaterial().ordinal();
+    }
+}
@@ -0,0 +1,102 @@
+package robotrace;
+
+import java.util.HashMap;
+import java.util.Map;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * Compiles and links the GLSL programs of the scene, each only once.
+ *
+ * Compiled shaders are cached by their source, so a stage shared by
+ * several programs, like the lighting fragment shader, is compiled
+ * once. Linked programs are cached by the sources of both stages.
+ * After linking, the uniform blocks of a program are bound to the
+ * binding points their names were registered with, so the buffers
+ * bound there are shared by all programs. Vertex attributes registered
+ * by name are bound to their locations before linking.
+ */
+class ShaderManager {
+
+    /** The compiled shaders, by type and source. */
+    private final Map<String, Integer> shaders = new HashMap<String, Integer>();
+
+    /** The linked programs, by the sources of their stages. */
+    private final Map<String, ShaderProgram> programs = new HashMap<String, ShaderProgram>();
+
+    /** The binding point of every uniform block, by block name. */
+    private final Map<String, Integer> blockBindings = new HashMap<String, Integer>();
+
+    /** The location of every vertex attribute, by attribute name. */
+    private final Map<String, Integer> attributeLocations = new HashMap<String, Integer>();
+
+    /**
+     * Binds the uniform block with the given name to the given binding
+     * point in all programs linked from now on.
+     */
+    public void bindBlock(String name, int binding) {
+        blockBindings.put(name, binding);
+    }
+
+    /**
+     * Binds the vertex attribute with the given name to the given
+     * location in all programs linked from now on.
+     */
+    public void bindAttribute(String name, int location) {
+        attributeLocations.put(name, location);
+    }
+
+    /**
+     * Returns the program made from the given shader sources, compiling
+     * and linking it if that has not been done yet. Throws a GLException
+     * with the info log if compiling or linking fails.
+     */
+    public ShaderProgram get(GL2 gl, String vertexSource, String fragmentSource) {
+        String key = vertexSource + '\0' + fragmentSource;
+        ShaderProgram program = programs.get(key);
+        if (null == program) {
+            program = new ShaderProgram(gl, compile(gl, GL_VERTEX_SHADER, vertexSource),
+                                            compile(gl, GL_FRAGMENT_SHADER, fragmentSource),
+                                            attributeLocations);
+            for (Map.Entry<String, Integer> block : blockBindings.entrySet()) {
+                int index = gl.glGetUniformBlockIndex(program.getName(), block.getKey());
+                if (GL_INVALID_INDEX != index) {
+                    gl.glUniformBlockBinding(program.getName(), index, block.getValue());
+                }
+            }
+            programs.put(key, program);
+        }
+        return program;
+    }
+
+    /**
+     * Returns the shader compiled from the given source, compiling it if
+     * that has not been done yet.
+     */
+    private int compile(GL2 gl, int type, String source) {
+        String key = type + ":" + source;
+        Integer shader = shaders.get(key);
+        if (null == shader) {
+            shader = ShaderProgram.compile(gl, type, source);
+            shaders.put(key, shader);
+        }
+        return shader;
+    }
+
+    /**
+     * Forgets all shaders and programs without releasing them, because
+     * the context that held them is gone.
+     */
+    public void reset() {
+        shaders.clear();
+        programs.clear();
+    }
+
+    /**
+     * Returns whether the OpenGL implementation supports GLSL programs
+     * with uniform buffers.
+     */
+    static boolean isSupported(GL2 gl) {
+        return gl.hasGLSL() && gl.isFunctionAvailable("glGetUniformBlockIndex");
+    }
+}
@@ -0,0 +1,111 @@
+package robotrace;
+
+import java.util.Map;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLException;
+
+/**
+ * A GLSL program made from one vertex and one fragment shader.
+ */
+class ShaderProgram {
+
+    /** The name of the program object. */
+    private final int program;
+
+    /**
+     * Links the given compiled shaders, which remain owned by the caller,
+     * with the named vertex attributes at the given locations. Throws a
+     * GLException with the info log if linking fails.
+     */
+    public ShaderProgram(GL2 gl, int vertexShader, int fragmentShader,
+                         Map<String, Integer> attributes) {
+        program = link(gl, vertexShader, fragmentShader, attributes);
+    }
+
+    /**
+     * Makes this program current.
+     */
+    public void use(GL2 gl) {
+        gl.glUseProgram(program);
+    }
+
+    /**
+     * Returns to the fixed function pipeline.
+     */
+    public static void useNone(GL2 gl) {
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Returns the location of a uniform, or -1 if it is not used.
+     */
+    public int getUniformLocation(GL2 gl, String name) {
+        return gl.glGetUniformLocation(program, name);
+    }
+
+    /**
+     * Returns the name of the program object.
+     */
+    public int getName() {
+        return program;
+    }
+
+    /**
+     * Links a program from the given shaders, with the named vertex
+     * attributes at the given locations, or throws a GLException with
+     * the info log.
+     */
+    private static int link(GL2 gl, int vertexShader, int fragmentShader,
+                            Map<String, Integer> attributes) {
+        int program = gl.glCreateProgram();
+        gl.glAttachShader(program, vertexShader);
+        gl.glAttachShader(program, fragmentShader);
+        for (Map.Entry<String, Integer> attribute : attributes.entrySet()) {
+            gl.glBindAttribLocation(program, attribute.getValue(), attribute.getKey());
+        }
+        gl.glLinkProgram(program);
+
+        int[] status = new int[1];
+        gl.glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+        if (GL_TRUE != status[0]) {
+            String log = programLog(gl, program);
+            gl.glDeleteProgram(program);
+            throw new GLException("Linking failed: " + log);
+        }
+        return program;
+    }
+
+    /**
+     * Compiles a shader of the given type, or throws a GLException
+     * with the info log.
+     */
+    static int compile(GL2 gl, int type, String source) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, 1, new String[] {source}, null, 0);
+        gl.glCompileShader(shader);
+
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL_COMPILE_STATUS, status, 0);
+        if (GL_TRUE != status[0]) {
+            int[] length = new int[1];
+            gl.glGetShaderiv(shader, GL_INFO_LOG_LENGTH, length, 0);
+            byte[] log = new byte[Math.max(1, length[0])];
+            gl.glGetShaderInfoLog(shader, log.length, null, 0, log, 0);
+            gl.glDeleteShader(shader);
+            throw new GLException("Compiling failed: " + new String(log).trim());
+        }
+        return shader;
+    }
+
+    /**
+     * Returns the info log of a program.
+     */
+    private static String programLog(GL2 gl, int program) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(program, GL_INFO_LOG_LENGTH, length, 0);
+        byte[] log = new byte[Math.max(1, length[0])];
+        gl.glGetProgramInfoLog(program, log.length, null, 0, log, 0);
+        return new String(log).trim();
+    }
+}
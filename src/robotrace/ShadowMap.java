@@ -0,0 +1,318 @@
+package robotrace;
+
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * Renders the shadows of a directional light into depth textures.
+ *
+ * The light looks down on the whole track with a parallel projection.
+ * The static geometry, the track and the terrain, does not move, so its
+ * depth is rendered into the static shadow map only when the track
+ * changes. Every frame the robots are added to a copy of it, the
+ * dynamic shadow map that the scene samples: the regions the robots
+ * covered in the previous frame are restored from the static map by
+ * blitting, and the robots are drawn on top. A robot covers only a few
+ * texels of the map, so a frame costs a few small copies and the robot
+ * draw calls, instead of drawing the whole scene from the light.
+ */
+class ShadowMap {
+
+    /** The width and height of the shadow maps, in texels. */
+    private final static int SIZE = 2048;
+
+    /** The space around the track that the shadow maps cover too. */
+    private final static double MARGIN = 10;
+
+    /** The number of regions beyond which the whole map is restored instead. */
+    private final static int MAX_REGIONS = 256;
+
+    /** The texels around the region of a robot, for the depth comparison filter. */
+    private final static int REGION_PADDING = 2;
+
+    /** The polygon offset of the depth passes, against self shadowing. */
+    private final static float OFFSET_FACTOR = 2f, OFFSET_UNITS = 4f;
+
+    /** The indices of the static and the dynamic shadow map. */
+    private final static int STATIC = 0, DYNAMIC = 1;
+
+    /** Maps clip coordinates into texture coordinates and depths. */
+    private final static Matrix4 BIAS = new Matrix4().translate(0.5, 0.5, 0.5)
+                                                     .scale(0.5, 0.5, 0.5);
+
+    /** The depth textures and the frame buffers that render into them. */
+    private final int[] textures = new int[2];
+    private final int[] framebuffers = new int[2];
+
+    /** Whether shadow maps are supported in the current context. */
+    private boolean available = false;
+
+    /** The track the static shadow map was rendered for, null if none. */
+    private RaceTrack track = null;
+
+    /** The projection and viewing matrices of the light. */
+    private final Matrix4 lightProjection = new Matrix4();
+    private final Matrix4 lightView = new Matrix4();
+
+    /** The transformation from world coordinates to shadow map coordinates. */
+    private final Matrix4 worldToShadow = new Matrix4();
+
+    /** The volume seen by the light, to cull the geometry of the passes. */
+    private final Frustum frustum = new Frustum();
+
+    /** The number of texels per unit of length. */
+    private double texelsPerUnit;
+
+    /** The regions covered by robots in the last frame, as x0, y0, x1, y1. */
+    private final int[] regions = new int[4 * MAX_REGIONS];
+
+    /** The number of regions, more than MAX_REGIONS if not all fit. */
+    private int regionCount = 0;
+
+    /** Whether the whole dynamic map must be restored. */
+    private boolean restoreAll = true;
+
+    /** Scratch space. */
+    private final float[] bounds = new float[6];
+    private final MutableVec3 eye = new MutableVec3();
+    private final MutableVec3 center = new MutableVec3();
+    private final MutableVec3 up = new MutableVec3();
+    private final MutableVec3 point = new MutableVec3();
+
+    /**
+     * Creates the shadow maps in a new context, if the given lighting is
+     * shaded and frame buffers can be blitted. Returns whether shadows
+     * are available.
+     */
+    public boolean initialize(GL2 gl, Lighting lighting) {
+        available = false;
+        track = null;
+        if (!lighting.isShaded() || !gl.isFunctionAvailable("glBlitFramebuffer")) {
+            System.err.println("Shadow maps not available");
+            return false;
+        }
+
+        gl.glGenTextures(2, textures, 0);
+        gl.glGenFramebuffers(2, framebuffers, 0);
+        float[] border = {1f, 1f, 1f, 1f};
+        boolean complete = true;
+        for (int i = 0; i < 2; i++) {
+            gl.glBindTexture(GL_TEXTURE_2D, textures[i]);
+            gl.glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT24, SIZE, SIZE, 0,
+                            GL_DEPTH_COMPONENT, GL_UNSIGNED_INT, null);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+
+            // Beyond the map, at the greatest depth, everything is lit.
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+            gl.glTexParameterfv(GL_TEXTURE_2D, GL_TEXTURE_BORDER_COLOR, border, 0);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_MODE, GL_COMPARE_R_TO_TEXTURE);
+            gl.glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_COMPARE_FUNC, GL_LEQUAL);
+
+            gl.glBindFramebuffer(GL_FRAMEBUFFER, framebuffers[i]);
+            gl.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT,
+                                      GL_TEXTURE_2D, textures[i], 0);
+            gl.glDrawBuffer(GL_NONE);
+            gl.glReadBuffer(GL_NONE);
+            complete &= GL_FRAMEBUFFER_COMPLETE == gl.glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        }
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
+        bindDefaultFramebuffer(gl);
+
+        if (!complete) {
+            System.err.println("Shadow map frame buffers incomplete");
+        }
+        available = complete;
+        return available;
+    }
+
+    /**
+     * Returns whether shadows are available.
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Returns the volume seen by the light, in which the geometry of the
+     * passes is drawn.
+     */
+    public Frustum getFrustum() {
+        return frustum;
+    }
+
+    /**
+     * Starts rendering the static shadow map of the given track, lit by
+     * a directional light from the given homogeneous direction, unless
+     * it is rendered already. Returns whether the track and terrain must
+     * be drawn, followed by {@link #end}.
+     */
+    public boolean beginStatic(GL2 gl, RaceTrack track, float[] lightDirection) {
+        if (!available || track == this.track) {
+            return false;
+        }
+        this.track = track;
+        aim(track, lightDirection);
+
+        begin(gl, framebuffers[STATIC]);
+        gl.glClear(GL_DEPTH_BUFFER_BIT);
+
+        // Every robot region must be restored from the new map.
+        restoreAll = true;
+        return true;
+    }
+
+    /**
+     * Makes the next {@link #beginStatic} render the static shadow map
+     * again, after the static geometry changed.
+     */
+    public void invalidate() {
+        track = null;
+    }
+
+    /**
+     * Starts adding the given robots to the dynamic shadow map, after
+     * restoring the regions that robots covered in the last frame. The
+     * robots must be drawn next, followed by {@link #end}.
+     */
+    public void beginDynamic(GL2 gl, Robot[] robots) {
+        gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, framebuffers[STATIC]);
+        gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, framebuffers[DYNAMIC]);
+        if (restoreAll || regionCount > MAX_REGIONS) {
+            gl.glBlitFramebuffer(0, 0, SIZE, SIZE, 0, 0, SIZE, SIZE,
+                                 GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+            restoreAll = false;
+        } else {
+            for (int r = 0; r < 4 * regionCount; r += 4) {
+                gl.glBlitFramebuffer(regions[r], regions[r + 1], regions[r + 2], regions[r + 3],
+                                     regions[r], regions[r + 1], regions[r + 2], regions[r + 3],
+                                     GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+            }
+        }
+
+        findRegions(robots);
+        begin(gl, framebuffers[DYNAMIC]);
+    }
+
+    /**
+     * Ends a pass, restoring the frame buffer, viewport and matrices.
+     */
+    public void end(GL2 gl) {
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPopMatrix();
+        gl.glPopAttrib();
+        bindDefaultFramebuffer(gl);
+    }
+
+    /**
+     * Binds the dynamic shadow map to the shadow texture unit.
+     */
+    public void bind(GL2 gl) {
+        gl.glActiveTexture(GL_TEXTURE0 + Lighting.SHADOW_UNIT);
+        gl.glBindTexture(GL_TEXTURE_2D, textures[DYNAMIC]);
+        gl.glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * Computes the transformation from the eye coordinates of the given
+     * viewing matrix to shadow map coordinates into out, and returns it.
+     */
+    public Matrix4 getEyeToShadow(Matrix4 view, Matrix4 out) {
+        return out.invertRigid(view).multiply(worldToShadow, out);
+    }
+
+    /**
+     * Points the light at the track, with a parallel projection that
+     * covers the track and its surroundings.
+     */
+    private void aim(RaceTrack track, float[] lightDirection) {
+        track.getBounds(bounds);
+        center.set((bounds[0] + bounds[3]) / 2, (bounds[1] + bounds[4]) / 2,
+                   (bounds[2] + bounds[5]) / 2);
+        double dx = bounds[3] - bounds[0];
+        double dy = bounds[4] - bounds[1];
+        double dz = bounds[5] - bounds[2];
+        double radius = Math.sqrt(dx * dx + dy * dy + dz * dz) / 2 + MARGIN;
+
+        point.set(lightDirection[0], lightDirection[1], lightDirection[2]).normalize();
+        eye.set(center).scaleAdd(2 * radius, point);
+        if (Math.abs(point.y) > 0.99) {
+            up.set(1, 0, 0);
+        } else {
+            up.set(0, 1, 0);
+        }
+
+        lightView.lookAt(eye, center, up);
+        lightProjection.ortho(-radius, radius, -radius, radius, radius, 3 * radius);
+        worldToShadow.multiply(BIAS, lightProjection).multiply(worldToShadow, lightView);
+        frustum.set(lightProjection, lightView);
+        texelsPerUnit = SIZE / (2 * radius);
+    }
+
+    /**
+     * Records the texels that the bounding sphere of every robot covers.
+     */
+    private void findRegions(Robot[] robots) {
+        regionCount = 0;
+        int radius = (int) Math.ceil(RobotRenderer.BOUNDS_RADIUS * texelsPerUnit) + REGION_PADDING;
+        for (Robot robot : robots) {
+            point.set(robot.position.x, robot.position.y,
+                      robot.position.z + RobotRenderer.BOUNDS_HEIGHT);
+            worldToShadow.transformPoint(point, point);
+            int x = (int) (point.x * SIZE);
+            int y = (int) (point.y * SIZE);
+            int x0 = Math.max(0, x - radius);
+            int y0 = Math.max(0, y - radius);
+            int x1 = Math.min(SIZE, x + radius);
+            int y1 = Math.min(SIZE, y + radius);
+            if (x0 >= x1 || y0 >= y1) {
+                continue;
+            }
+
+            // Once too many, the whole map is restored and the regions are not needed.
+            if (regionCount < MAX_REGIONS) {
+                int r = 4 * regionCount;
+                regions[r] = x0;
+                regions[r + 1] = y0;
+                regions[r + 2] = x1;
+                regions[r + 3] = y1;
+            }
+            regionCount++;
+        }
+    }
+
+    /**
+     * Starts a depth pass from the light into the given frame buffer.
+     */
+    private void begin(GL2 gl, int framebuffer) {
+        gl.glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+        gl.glPushAttrib(GL_VIEWPORT_BIT | GL_COLOR_BUFFER_BIT | GL_POLYGON_BIT);
+        gl.glViewport(0, 0, SIZE, SIZE);
+        gl.glColorMask(false, false, false, false);
+        gl.glEnable(GL_POLYGON_OFFSET_FILL);
+        gl.glPolygonOffset(OFFSET_FACTOR, OFFSET_UNITS);
+
+        // The dynamic map must not be sampled while it is drawn into.
+        gl.glActiveTexture(GL_TEXTURE0 + Lighting.SHADOW_UNIT);
+        gl.glBindTexture(GL_TEXTURE_2D, 0);
+        gl.glActiveTexture(GL_TEXTURE0);
+
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glLoadMatrixf(lightProjection.m, 0);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glPushMatrix();
+        gl.glLoadMatrixf(lightView.m, 0);
+    }
+
+    /**
+     * Binds the frame buffers of the drawable again.
+     */
+    private static void bindDefaultFramebuffer(GL2 gl) {
+        gl.glBindFramebuffer(GL_DRAW_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+        gl.glBindFramebuffer(GL_READ_FRAMEBUFFER, gl.getDefaultReadFramebuffer());
+    }
+}
@@ -0,0 +1,149 @@
+package robotrace;
+
+/**
+ * The skeleton of a robot and its walking gait.
+ *
+ * The skeleton is a hierarchy of bones: the torso and the legs hang
+ * from the robot position, and the head and the arms from the torso.
+ * Every bone rotates around its joint. The gait cycle is sampled once
+ * into a table of the model matrix of every bone, in robot coordinates,
+ * at POSES evenly spaced phases. Posing a robot interpolates between
+ * two entries of the table and places the result at the position and
+ * heading of the robot, without any trigonometry.
+ */
+class Skeleton {
+
+    /** The bones. */
+    final static int TORSO = 0, HEAD = 1, LEFT_ARM = 2, RIGHT_ARM = 3,
+                     LEFT_LEG = 4, RIGHT_LEG = 5;
+
+    /** The number of bones. */
+    final static int BONES = 6;
+
+    /** The parent of every bone, -1 for the robot position. */
+    private final static int[] PARENTS = {-1, TORSO, TORSO, TORSO, -1, -1};
+
+    /** The joint of every bone, relative to the joint of its parent. */
+    private final static float[][] JOINTS = {
+        {0f, 0f, 0.8f},         // torso
+        {0f, 0f, 0.7f},         // head
+        {0f, 0.3f, 0.65f},      // left arm
+        {0f, -0.3f, 0.65f},     // right arm
+        {0f, 0.12f, 0.8f},      // left leg
+        {0f, -0.12f, 0.8f},     // right leg
+    };
+
+    /** The size of the box of every bone. */
+    final static float[][] SIZES = {
+        {0.25f, 0.45f, 0.7f},
+        {0.25f, 0.25f, 0.25f},
+        {0.1f, 0.1f, 0.6f},
+        {0.1f, 0.1f, 0.6f},
+        {0.12f, 0.12f, 0.8f},
+        {0.12f, 0.12f, 0.8f},
+    };
+
+    /** The center of the box of every bone, relative to its joint. */
+    final static float[][] CENTERS = {
+        {0f, 0f, 0.35f},
+        {0f, 0f, 0.155f},
+        {0f, 0f, -0.3f},
+        {0f, 0f, -0.3f},
+        {0f, 0f, -0.4f},
+        {0f, 0f, -0.4f},
+    };
+
+    /** The direction in which every bone swings while walking. */
+    private final static float[] SWINGS = {0f, 0f, -1f, 1f, 1f, -1f};
+
+    /** The largest swing of the limbs, in radians. */
+    private final static double SWING_AMPLITUDE = 0.6;
+
+    /** The number of steps per second. */
+    private final static double STEP_RATE = 1.5;
+
+    /** How far the torso rises at every step. */
+    private final static double BOB_HEIGHT = 0.03;
+
+    /** The number of poses sampled from one gait cycle. */
+    private final static int POSES = 64;
+
+    /** The model matrix of every bone in every pose, in robot coordinates. */
+    private final static float[] POSE_TABLE = createPoseTable();
+
+    /**
+     * Returns the phase of the gait of a robot at the given time, in
+     * cycles. The phases are spread, so the robots do not walk in step.
+     */
+    static double phase(int robot, double time) {
+        return STEP_RATE * time + 0.37 * robot;
+    }
+
+    /**
+     * Computes the model matrices of all bones of a robot at the given
+     * position and direction, in the given phase of its gait, into out
+     * from the given offset on.
+     */
+    static void pose(MutableVec3 position, MutableVec3 direction, double phase,
+                     float[] out, int offset) {
+        double f = (phase - Math.floor(phase)) * POSES;
+        int first = Math.min((int) f, POSES - 1);
+        int second = (first + 1) % POSES;
+        float weight = (float) (f - first);
+
+        // The heading rotates around the z axis, towards the direction.
+        double length = Math.sqrt(direction.x * direction.x + direction.y * direction.y);
+        float c = length > 0 ? (float) (direction.x / length) : 1f;
+        float s = length > 0 ? (float) (direction.y / length) : 0f;
+        float px = (float) position.x;
+        float py = (float) position.y;
+        float pz = (float) position.z;
+
+        int a = first * BONES * 16;
+        int b = second * BONES * 16;
+        for (int i = 0; i < BONES * 16; i += 4) {
+            float x = POSE_TABLE[a + i] + weight * (POSE_TABLE[b + i] - POSE_TABLE[a + i]);
+            float y = POSE_TABLE[a + i + 1] + weight * (POSE_TABLE[b + i + 1] - POSE_TABLE[a + i + 1]);
+            float z = POSE_TABLE[a + i + 2] + weight * (POSE_TABLE[b + i + 2] - POSE_TABLE[a + i + 2]);
+            float w = POSE_TABLE[a + i + 3];
+
+            out[offset + i] = c * x - s * y + px * w;
+            out[offset + i + 1] = s * x + c * y + py * w;
+            out[offset + i + 2] = z + pz * w;
+            out[offset + i + 3] = w;
+        }
+    }
+
+    /**
+     * Samples the gait cycle, walking the hierarchy from the parents to
+     * their children in every pose.
+     */
+    private static float[] createPoseTable() {
+        float[] table = new float[POSES * BONES * 16];
+        Matrix4[] bones = new Matrix4[BONES];
+        for (int j = 0; j < BONES; j++) {
+            bones[j] = new Matrix4();
+        }
+
+        for (int k = 0; k < POSES; k++) {
+            double angle = 2 * Math.PI * k / POSES;
+            double swing = SWING_AMPLITUDE * Math.sin(angle);
+
+            // The torso is highest when the legs pass each other, twice per cycle.
+            double bob = BOB_HEIGHT * 0.5 * (1 + Math.cos(2 * angle));
+
+            for (int j = 0; j < BONES; j++) {
+                if (PARENTS[j] < 0) {
+                    bones[j].identity();
+                } else {
+                    bones[j].set(bones[PARENTS[j]]);
+                }
+                float[] joint = JOINTS[j];
+                bones[j].translate(joint[0], joint[1], joint[2] + (TORSO == j ? bob : 0))
+                        .rotate(SWINGS[j] * swing, 0, 1, 0);
+                System.arraycopy(bones[j].m, 0, table, (k * BONES + j) * 16, 16);
+            }
+        }
+        return table;
+    }
+}
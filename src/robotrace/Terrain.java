@@ -1,32 +1,382 @@
 package robotrace;
 
 import com.jogamp.opengl.util.gl2.GLUT;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
 
 /**
  * Implementation of the terrain.
+ *
+ * The terrain has no edges: it is generated in square tiles around the
+ * eyes of the cameras as they move. The height function is a sum of
+ * octaves of gradient noise, flattened along the corridor of the current
+ * race track so the track lies on level ground. Tiles are generated on
+ * the shared fork/join pool, with a bound on the number in flight, and
+ * kept in a cache with a memory budget from which the least recently
+ * used tiles are evicted once it is exceeded. Only tiles that are no
+ * longer around any eye are evicted. Uploading the meshes into vertex
+ * buffer objects happens on the OpenGL thread, and is limited to a fixed
+ * number of vertices per frame; a tile that does not fit waits for a
+ * later frame, drawn at a coarser level that is uploaded already if
+ * there is one. The level of detail of every tile is chosen by its
+ * distance to the eye, and tiles outside the view frustum are not drawn.
  */
 class Terrain {
 
+    /** The height of the hills. */
+    private final static double HILL_HEIGHT = 12;
+
+    /** The size of the largest hills. */
+    private final static double HILL_SIZE = 96;
+
+    /** The number of octaves of noise, each half the size and height of the previous. */
+    private final static int OCTAVES = 5;
+
+    /** The distance from the edges of the track within which the terrain is flat. */
+    private final static float SHOULDER = 2f;
+
+    /** The distance over which the terrain rises from flat to the full hills. */
+    private final static float FALLOFF = 24f;
+
+    /** The distance from the edges of the track beyond which it has no effect. */
+    final static float FLATTEN_REACH = SHOULDER + FALLOFF;
+
+    /** The number of tiles around the eye, in every direction, that are generated and drawn. */
+    private final static int STREAM_RADIUS = 8;
+
+    /** The distance up to which tiles are drawn at full detail. */
+    private final static float LOD_DISTANCE = 64f;
+
+    /** The largest number of bytes the cached tiles may take. */
+    private final static long MEMORY_BUDGET = 48L << 20;
+
+    /** The largest number of cached tiles. */
+    private final static int MAX_TILES = 1024;
+
+    /** The largest number of tiles and levels being built in the background at once. */
+    private final static int MAX_PENDING = 2 * Runtime.getRuntime().availableProcessors();
+
+    /** The largest number of vertices uploaded per frame. */
+    private final static int UPLOAD_BUDGET = 32768;
+
+    /** The resident tiles, from the least to the most recently used. */
+    private final TileCache cache = new TileCache(MAX_TILES);
+
+    /** The number of tiles and levels being built in the background. */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** The track that is flattened, null if none. */
+    private RaceTrack track = null;
+
+    /** The corridor of that track, null if none, which heightAt may read from any thread. */
+    private volatile TrackCorridor corridor = null;
+
+    /** Whether all tiles must be evicted, because the track changed. */
+    private boolean flush = false;
+
+    /** The number of the current frame. */
+    private int frame = 0;
+
+    /** The number of vertices that may still be uploaded in the current frame. */
+    private int uploadBudget = UPLOAD_BUDGET;
+
+    /** The number of times a tile near the track became ready. */
+    private int version = 0;
+
+    /**
+     * Flattens the terrain along the given track from now on. Tiles
+     * generated for another track are evicted at the next update.
+     */
+    public void setTrack(RaceTrack track) {
+        if (track != this.track) {
+            this.track = track;
+            corridor = null == track ? null : new TrackCorridor(track, FLATTEN_REACH);
+            flush = true;
+        }
+    }
+
     /**
-     * Can be used to set up a display list.
+     * Starts a new frame, which must happen once before the terrain is
+     * drawn in it. Evicts tiles that were not around the eye of any view
+     * in the last frame while the cache exceeds its budget, or holds so
+     * many tiles that the requests of the next frame might not fit.
      */
-    public Terrain() {
-        // code goes here ...
+    public void update(GL2 gl) {
+        long bytes = 0;
+        for (TerrainTile tile = cache.getEldest(); null != tile; ) {
+            TerrainTile next = tile.newer;
+            if (flush) {
+                cache.remove(tile);
+                tile.dispose(gl);
+            } else {
+                bytes += tile.getBytes();
+                if (!tile.noticed && tile.isReady()) {
+                    tile.noticed = true;
+                    if (null != corridor && corridor.isNear(tile.bounds[0], tile.bounds[1],
+                            tile.bounds[3], tile.bounds[4], FLATTEN_REACH)) {
+                        version++;
+                    }
+                }
+            }
+            tile = next;
+        }
+        flush = false;
+
+        // The tiles used in the last frame are the most recent ones, so stop at the first.
+        for (TerrainTile tile = cache.getEldest();
+                null != tile && tile.frame != frame
+                && (bytes > MEMORY_BUDGET || cache.size() > MAX_TILES - MAX_PENDING); ) {
+            TerrainTile next = tile.newer;
+            bytes -= tile.getBytes();
+            cache.remove(tile);
+            tile.dispose(gl);
+            tile = next;
+        }
+
+        frame++;
+        uploadBudget = UPLOAD_BUDGET;
     }
 
     /**
-     * Draws the terrain.
+     * Returns a number that changes whenever tiles near the track became
+     * ready, so static shadows of the terrain must be rendered again.
      */
-    public void draw(GL2 gl, GLU glu, GLUT glut) {
-        // code goes here ...
+    public int getVersion() {
+        return version;
     }
 
     /**
-     * Computes the elevation of the terrain at (x, y).
+     * Draws the tiles around the eye of the camera that lie in the
+     * frustum, nearest first, selecting the level of detail of every
+     * tile by its distance to the eye. Starts generating the tiles
+     * around the eye that are missing.
+     */
+    public void draw(GL2 gl, GLU glu, GLUT glut, Camera camera, Frustum frustum) {
+        int ci = (int) Math.floor(camera.eye.x / TerrainTile.SIZE);
+        int cj = (int) Math.floor(camera.eye.y / TerrainTile.SIZE);
+        double radius = (STREAM_RADIUS + 0.5) * TerrainTile.SIZE;
+
+        // Visit the rings of tiles around the tile below the eye.
+        for (int ring = 0; ring <= STREAM_RADIUS; ring++) {
+            for (int dj = -ring; dj <= ring; dj++) {
+                int step = ring == Math.abs(dj) ? 1 : 2 * ring;
+                for (int di = -ring; di <= ring; di += step) {
+                    double dx = (ci + di + 0.5) * TerrainTile.SIZE - camera.eye.x;
+                    double dy = (cj + dj + 0.5) * TerrainTile.SIZE - camera.eye.y;
+                    if (dx * dx + dy * dy <= radius * radius) {
+                        drawTile(gl, ci + di, cj + dj, camera, frustum);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the tile at column ti and row tj if it is ready, or starts
+     * generating it if it is missing.
+     */
+    private void drawTile(GL2 gl, int ti, int tj, Camera camera, Frustum frustum) {
+        TerrainTile tile = cache.get(TileCache.key(ti, tj));
+        if (null == tile) {
+            request(ti, tj);
+            return;
+        }
+        tile.frame = frame;
+
+        float[] b = tile.bounds;
+        if (!tile.isReady() || !frustum.intersectsBox(b[0], b[1], b[2], b[3], b[4], b[5])) {
+            return;
+        }
+
+        double dx = camera.eye.x - (b[0] + b[3]) / 2;
+        double dy = camera.eye.y - (b[1] + b[4]) / 2;
+        double dz = camera.eye.z - (b[2] + b[5]) / 2;
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        int level = 0;
+        while (level < TerrainTile.LOD_LEVELS - 1
+                && distance > LOD_DISTANCE * (1 << level)) {
+            level++;
+        }
+
+        Mesh mesh = findMesh(tile, level);
+        if (null != mesh) {
+            mesh.draw(gl);
+        }
+    }
+
+    /**
+     * Adds the tile at column ti and row tj to the cache and generates
+     * it in the background, unless too many builds are in flight.
+     */
+    private void request(int ti, int tj) {
+        if (pending.get() >= MAX_PENDING || cache.size() >= MAX_TILES) {
+            return;
+        }
+
+        final TerrainTile tile = new TerrainTile(ti, tj, corridor);
+        tile.frame = frame;
+        cache.put(tile);
+
+        pending.incrementAndGet();
+        Parallel.submit(new Callable<TerrainTile>() {
+            @Override
+            public TerrainTile call() {
+                try {
+                    tile.generate();
+                } finally {
+                    pending.decrementAndGet();
+                }
+                return tile;
+            }
+        });
+    }
+
+    /**
+     * Returns the mesh of a tile at the given level if it is built and
+     * fits in the upload budget. Otherwise starts building it in the
+     * background if needed, and returns the closest level that is built
+     * and fits, preferring finer levels, or null if none does.
+     */
+    private Mesh findMesh(final TerrainTile tile, final int level) {
+        Mesh mesh = tile.getMesh(level);
+        if (null == mesh && !tile.requested[level] && pending.get() < MAX_PENDING) {
+            tile.requested[level] = true;
+            pending.incrementAndGet();
+            Parallel.submit(new Callable<TerrainTile>() {
+                @Override
+                public TerrainTile call() {
+                    try {
+                        tile.buildMesh(level);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                    return tile;
+                }
+            });
+        }
+        if (null != mesh && reserveUpload(mesh)) {
+            return mesh;
+        }
+
+        for (int other = level - 1; other >= 0; other--) {
+            mesh = tile.getMesh(other);
+            if (null != mesh && reserveUpload(mesh)) {
+                return mesh;
+            }
+        }
+        for (int other = level + 1; other < TerrainTile.LOD_LEVELS; other++) {
+            mesh = tile.getMesh(other);
+            if (null != mesh && reserveUpload(mesh)) {
+                return mesh;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the mesh is uploaded, or can be uploaded within
+     * the budget of the current frame, which it then takes from.
+     */
+    private boolean reserveUpload(Mesh mesh) {
+        if (mesh.isUploaded()) {
+            return true;
+        }
+        if (mesh.getVertexCount() > uploadBudget) {
+            return false;
+        }
+        uploadBudget -= mesh.getVertexCount();
+        return true;
+    }
+
+    /**
+     * Computes the elevation of the terrain at (x, y) from the height
+     * function, in constant time. The drawn tiles interpolate the same
+     * function between their samples. Only the corridor of the track is
+     * read, which never changes once built, so this may be called from
+     * any thread.
      */
     public float heightAt(float x, float y) {
-        return 0; // <- code goes here
+        TrackCorridor corridor = this.corridor;
+        return height(x, y, null == corridor ? Float.POSITIVE_INFINITY : corridor.distance(x, y));
+    }
+
+    /**
+     * The height function that is sampled into the tiles, at a point at
+     * the given distance from the edges of the track. The hills are
+     * flattened near the track, and are flat on it.
+     */
+    static float height(float x, float y, float trackDistance) {
+        double s = Math.max(0, Math.min(1, (trackDistance - SHOULDER) / FALLOFF));
+        if (0 == s) {
+            return 0;
+        }
+
+        double hills = 0;
+        double amplitude = 1;
+        double frequency = 1 / HILL_SIZE;
+        for (int octave = 0; octave < OCTAVES; octave++) {
+            // Shift every octave, so their lattices do not line up at the origin.
+            hills += amplitude * noise(x * frequency + 17.3 * octave, y * frequency - 31.7 * octave);
+            amplitude /= 2;
+            frequency *= 2;
+        }
+
+        return (float) (s * s * (3 - 2 * s) * HILL_HEIGHT * hills);
+    }
+
+    /**
+     * Gradient noise at (x, y), between about -1 and 1, which is 0 at
+     * whole coordinates and varies smoothly between them.
+     */
+    private static double noise(double x, double y) {
+        int i = (int) Math.floor(x);
+        int j = (int) Math.floor(y);
+        double fx = x - i;
+        double fy = y - j;
+
+        double g00 = gradient(i, j, fx, fy);
+        double g10 = gradient(i + 1, j, fx - 1, fy);
+        double g01 = gradient(i, j + 1, fx, fy - 1);
+        double g11 = gradient(i + 1, j + 1, fx - 1, fy - 1);
+
+        double u = fade(fx);
+        double v = fade(fy);
+        double bottom = g00 + u * (g10 - g00);
+        double top = g01 + u * (g11 - g01);
+        return bottom + v * (top - bottom);
+    }
+
+    /**
+     * Returns the dot product of the pseudo random gradient at lattice
+     * point (i, j) with the offset (dx, dy) from it.
+     */
+    private static double gradient(int i, int j, double dx, double dy) {
+        int hash = i * 0x27d4eb2d ^ j * 0x165667b1;
+        hash ^= hash >>> 15;
+        hash *= 0x2c1b3c6d;
+        hash ^= hash >>> 12;
+
+        // One of eight directions, the diagonals scaled to unit length.
+        switch (hash & 7) {
+            case 0:  return dx;
+            case 1:  return -dx;
+            case 2:  return dy;
+            case 3:  return -dy;
+            case 4:  return 0.7071 * (dx + dy);
+            case 5:  return 0.7071 * (dx - dy);
+            case 6:  return 0.7071 * (-dx + dy);
+            default: return 0.7071 * (-dx - dy);
+        }
+    }
+
+    /**
+     * The quintic fade curve, with zero first and second derivatives at
+     * 0 and 1.
+     */
+    private static double fade(double t) {
+        return t * t * t * (t * (t * 6 - 15) + 10);
     }
 }
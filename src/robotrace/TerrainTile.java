@@ -0,0 +1,261 @@
+package robotrace;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * One square tile of the terrain.
+ *
+ * A tile samples the height function on a regular grid, with a border of
+ * extra samples around it so the normals along its edges match those of
+ * its neighbours. It can be drawn at several levels of detail, where
+ * level L only uses every 2^L-th sample. The samples and the coarsest
+ * level are generated together in the background, and finer levels are
+ * built later when they are needed. Skirts along the borders hide the
+ * cracks between neighbouring tiles of different levels.
+ */
+class TerrainTile {
+
+    /** The distance between two neighbouring samples. */
+    final static float CELL_SIZE = 1f;
+
+    /** The number of cells along one side of a tile. */
+    final static int CELLS = 32;
+
+    /** The length of one side of a tile. */
+    final static float SIZE = CELLS * CELL_SIZE;
+
+    /** The number of levels of detail. */
+    final static int LOD_LEVELS = 4;
+
+    /** How far the skirts along the borders reach down. */
+    private final static float SKIRT_DEPTH = 2f;
+
+    /** The number of extra samples around the tile, enough for the normals of the coarsest level. */
+    private final static int BORDER = 1 << (LOD_LEVELS - 1);
+
+    /** The number of samples along one side, the border included. */
+    private final static int SAMPLES = CELLS + 1 + 2 * BORDER;
+
+    /** The column and row of the tile, the tile at column 0 and row 0 starting at the origin. */
+    final int ti, tj;
+
+    /** The key of the tile in the cache. */
+    final long key;
+
+    /** The corridor of the track to flatten, null if there is none. */
+    private final TrackCorridor corridor;
+
+    /** The sampled heights, row by row along the x-axis, border included. */
+    private final float[] heights = new float[SAMPLES * SAMPLES];
+
+    /** The box around the tile and its skirts, as minX, minY, minZ, maxX, maxY, maxZ. */
+    final float[] bounds = new float[6];
+
+    /** The mesh of every level, null until built. */
+    private final AtomicReferenceArray<Mesh> meshes = new AtomicReferenceArray<Mesh>(LOD_LEVELS);
+
+    /** Whether the mesh of every level has been asked for, on the OpenGL thread. */
+    final boolean[] requested = new boolean[LOD_LEVELS];
+
+    /** Whether the samples and the coarsest level have been generated. */
+    private volatile boolean ready = false;
+
+    /** Whether the terrain has noticed that this tile is ready. */
+    boolean noticed = false;
+
+    /** The last frame in which this tile was around the eye of a view. */
+    int frame;
+
+    /** The neighbours of this tile in the use order of the cache. */
+    TerrainTile older, newer;
+
+    /**
+     * Constructs the tile at column ti and row tj, which flattens the
+     * terrain along the given corridor.
+     */
+    public TerrainTile(int ti, int tj, TrackCorridor corridor) {
+        this.ti = ti;
+        this.tj = tj;
+        this.key = TileCache.key(ti, tj);
+        this.corridor = corridor;
+
+        // The coarsest level is built by generate.
+        requested[LOD_LEVELS - 1] = true;
+    }
+
+    /**
+     * Samples the height function and builds the coarsest level, after
+     * which the tile is ready to be drawn.
+     */
+    public void generate() {
+        float x0 = ti * SIZE - BORDER * CELL_SIZE;
+        float y0 = tj * SIZE - BORDER * CELL_SIZE;
+        float x1 = x0 + (SAMPLES - 1) * CELL_SIZE;
+        float y1 = y0 + (SAMPLES - 1) * CELL_SIZE;
+
+        // Only the segments of the track near the tile can flatten it.
+        int[] near = null;
+        int nearCount = 0;
+        if (null != corridor && corridor.isNear(x0, y0, x1, y1, Terrain.FLATTEN_REACH)) {
+            near = new int[corridor.getSegmentCount()];
+            nearCount = corridor.findNear(x0, y0, x1, y1, Terrain.FLATTEN_REACH, near);
+        }
+
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        for (int j = 0; j < SAMPLES; j++) {
+            for (int i = 0; i < SAMPLES; i++) {
+                float x = x0 + i * CELL_SIZE;
+                float y = y0 + j * CELL_SIZE;
+                float distance = 0 == nearCount ? Float.POSITIVE_INFINITY
+                               : corridor.distance(x, y, near, nearCount);
+                float height = Terrain.height(x, y, distance);
+                heights[j * SAMPLES + i] = height;
+
+                if (i >= BORDER && i <= BORDER + CELLS && j >= BORDER && j <= BORDER + CELLS) {
+                    minZ = Math.min(minZ, height);
+                    maxZ = Math.max(maxZ, height);
+                }
+            }
+        }
+
+        bounds[0] = ti * SIZE;
+        bounds[1] = tj * SIZE;
+        bounds[2] = minZ - SKIRT_DEPTH;
+        bounds[3] = (ti + 1) * SIZE;
+        bounds[4] = (tj + 1) * SIZE;
+        bounds[5] = maxZ;
+
+        meshes.set(LOD_LEVELS - 1, build(LOD_LEVELS - 1));
+        ready = true;
+    }
+
+    /**
+     * Returns whether the samples and the coarsest level are generated.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns the mesh of the given level, null if it is not built yet.
+     */
+    public Mesh getMesh(int level) {
+        return meshes.get(level);
+    }
+
+    /**
+     * Builds the mesh of the given level, once the tile is ready.
+     */
+    public void buildMesh(int level) {
+        meshes.set(level, build(level));
+    }
+
+    /**
+     * Returns the number of bytes the tile takes, counting its meshes
+     * both in main memory and on the GPU.
+     */
+    public long getBytes() {
+        long bytes = 4L * heights.length;
+        for (int level = 0; level < LOD_LEVELS; level++) {
+            Mesh mesh = meshes.get(level);
+            if (null != mesh) {
+                bytes += 2L * 4 * Mesh.FLOATS_PER_VERTEX * mesh.getVertexCount();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases the vertex buffer objects of the meshes.
+     */
+    public void dispose(GL2 gl) {
+        for (int level = 0; level < LOD_LEVELS; level++) {
+            Mesh mesh = meshes.get(level);
+            if (null != mesh) {
+                mesh.dispose(gl);
+            }
+        }
+    }
+
+    /**
+     * Returns the sample at column i and row j of the tile, where the
+     * border lies outside 0 to CELLS.
+     */
+    private float sample(int i, int j) {
+        return heights[(j + BORDER) * SAMPLES + i + BORDER];
+    }
+
+    /**
+     * Builds the mesh of the given level of detail, as a list of
+     * triangles followed by the skirts along its four borders.
+     */
+    private Mesh build(int level) {
+        int step = 1 << level;
+        int cells = CELLS / step;
+
+        Mesh mesh = new Mesh(GL_TRIANGLES, 6 * cells * cells + 4 * 6 * cells);
+
+        for (int j = 0; j < cells; j++) {
+            for (int i = 0; i < cells; i++) {
+                int ia = i * step;
+                int ja = j * step;
+                int ib = ia + step;
+                int jb = ja + step;
+
+                addVertex(mesh, ia, ja, step, 0);
+                addVertex(mesh, ib, ja, step, 0);
+                addVertex(mesh, ib, jb, step, 0);
+
+                addVertex(mesh, ia, ja, step, 0);
+                addVertex(mesh, ib, jb, step, 0);
+                addVertex(mesh, ia, jb, step, 0);
+            }
+        }
+
+        for (int k = 0; k < cells; k++) {
+            int a = k * step;
+            int b = a + step;
+
+            addSkirt(mesh, a, 0, b, 0, step);
+            addSkirt(mesh, CELLS, a, CELLS, b, step);
+            addSkirt(mesh, b, CELLS, a, CELLS, step);
+            addSkirt(mesh, 0, b, 0, a, step);
+        }
+
+        return mesh;
+    }
+
+    /**
+     * Adds the two triangles of a skirt below the border from sample
+     * (ia, ja) to sample (ib, jb).
+     */
+    private void addSkirt(Mesh mesh, int ia, int ja, int ib, int jb, int step) {
+        addVertex(mesh, ia, ja, step, 0);
+        addVertex(mesh, ib, jb, step, SKIRT_DEPTH);
+        addVertex(mesh, ib, jb, step, 0);
+
+        addVertex(mesh, ia, ja, step, 0);
+        addVertex(mesh, ia, ja, step, SKIRT_DEPTH);
+        addVertex(mesh, ib, jb, step, SKIRT_DEPTH);
+    }
+
+    /**
+     * Adds the sample (i, j), lowered by drop, to the mesh. The normal
+     * is estimated by central differences at the given step.
+     */
+    private void addVertex(Mesh mesh, int i, int j, int step, float drop) {
+        float x = ti * SIZE + i * CELL_SIZE;
+        float y = tj * SIZE + j * CELL_SIZE;
+
+        double dx = (sample(i + step, j) - sample(i - step, j)) / (2 * step * CELL_SIZE);
+        double dy = (sample(i, j + step) - sample(i, j - step)) / (2 * step * CELL_SIZE);
+        double length = Math.sqrt(dx * dx + dy * dy + 1);
+
+        mesh.vertex(x, y, sample(i, j) - drop,
+                    -dx / length, -dy / length, 1 / length,
+                    x / 4, y / 4);
+    }
+}
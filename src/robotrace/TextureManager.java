@@ -0,0 +1,469 @@
+package robotrace;
+
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * Loads textures in the background and uploads them a few at a time.
+ *
+ * Requested images are decoded on the shared fork/join pool into a full
+ * chain of mipmap levels. The decoded levels are cached on disk, keyed
+ * by a hash of the image file, so a later start reads them back without
+ * decoding the image at all. A cache file whose sizes do not match the
+ * header of the image is ignored. The OpenGL thread uploads decoded textures
+ * within a byte budget per frame. Until a texture is uploaded, or when
+ * its image cannot be found, a small checkerboard placeholder is used.
+ */
+class TextureManager {
+
+    /** The largest number of bytes uploaded per frame, at least one texture is. */
+    private final static int UPLOAD_BUDGET = 1 << 20;
+
+    /** Identifies a cache file, followed by the format version. */
+    private final static int CACHE_MAGIC = 0x52545843;
+    private final static int CACHE_VERSION = 1;
+
+    /** The directories searched for images, in order. */
+    private final static String[] SEARCH_PATH = {"", "src/"};
+
+    /** The directory holding the cached mipmap chains. */
+    private final File cacheDirectory;
+
+    /** The names that have been requested since the last reset. */
+    private final Set<String> requested = new HashSet<String>();
+
+    /** The decoded textures that wait for their upload. */
+    private final ConcurrentLinkedQueue<Decoded> decoded = new ConcurrentLinkedQueue<Decoded>();
+
+    /** The uploaded textures, by name. */
+    private final Map<String, Texture> textures = new HashMap<String, Texture>();
+
+    /** The texture used for every texture that is not uploaded. */
+    private Texture placeholder = null;
+
+    /**
+     * Constructs a texture manager that caches in the given directory.
+     */
+    public TextureManager(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Starts loading the image with the given name in the background,
+     * unless it is already loading or loaded.
+     */
+    public void request(final String name) {
+        if (!requested.add(name)) {
+            return;
+        }
+
+        Parallel.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                decoded.add(decode(name));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Uploads decoded textures within the budget of one frame. Must be
+     * called from the OpenGL thread. Returns whether any texture changed.
+     */
+    public boolean update(GL2 gl) {
+        boolean changed = false;
+        long uploaded = 0;
+
+        while (uploaded < UPLOAD_BUDGET) {
+            Decoded texture = decoded.poll();
+            if (null == texture) {
+                break;
+            }
+
+            // Missing images keep the placeholder.
+            if (null != texture.levels) {
+                textures.put(texture.name, upload(gl, texture));
+                uploaded += texture.size();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the texture with the given name if it is uploaded, and
+     * the placeholder otherwise. Must be called from the OpenGL thread.
+     */
+    public Texture get(GL2 gl, String name) {
+        Texture texture = textures.get(name);
+        if (null != texture) {
+            return texture;
+        }
+
+        if (null == placeholder) {
+            placeholder = upload(gl, createPlaceholder());
+        }
+        return placeholder;
+    }
+
+    /**
+     * Forgets all textures, for instance because the OpenGL context was
+     * replaced. Requested textures are loaded again, from the disk cache.
+     */
+    public void reset() {
+        requested.clear();
+        decoded.clear();
+        textures.clear();
+        placeholder = null;
+    }
+
+    /**
+     * Uploads the mipmap chain of a decoded texture.
+     */
+    private static Texture upload(GL2 gl, Decoded texture) {
+        // The rows run from top to bottom, like the rows TextureIO reads.
+        TextureData data = new TextureData(gl.getGLProfile(), GL_RGB,
+                texture.width, texture.height, 0, GL_RGB, GL_UNSIGNED_BYTE,
+                false, true, texture.levels, null);
+
+        Texture result = TextureIO.newTexture(data);
+        result.setTexParameteri(gl, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        result.setTexParameteri(gl, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        result.setTexParameteri(gl, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        result.setTexParameteri(gl, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        return result;
+    }
+
+    /**
+     * Finds, decodes and caches an image. Returns a texture without
+     * levels if the image cannot be loaded.
+     */
+    private Decoded decode(String name) {
+        File file = find(name);
+        if (null == file) {
+            System.err.println("Texture " + name + " not found, using a placeholder");
+            return new Decoded(name, 0, 0, null);
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            File cached = new File(cacheDirectory, hash(bytes) + ".mip");
+
+            if (cached.isFile()) {
+                try {
+                    int[] size = readSize(bytes);
+                    return readCache(name, cached, size[0], size[1]);
+                } catch (IOException ex) {
+                    System.err.println("Ignoring damaged texture cache " + cached + ": " + ex);
+                }
+            }
+
+            BufferedImage image = ImageIO.read(file);
+            if (null == image) {
+                throw new IOException("Unsupported image format");
+            }
+
+            Decoded texture = createMipmaps(name, image);
+            writeCache(texture, cached);
+            return texture;
+        } catch (IOException ex) {
+            System.err.println("Texture " + name + " could not be loaded, using a placeholder: " + ex);
+            return new Decoded(name, 0, 0, null);
+        }
+    }
+
+    /**
+     * Returns the first existing file with the given name on the search
+     * path, or null if there is none.
+     */
+    private static File find(String name) {
+        for (String directory : SEARCH_PATH) {
+            File file = new File(directory + name);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Converts an image to RGB bytes and computes its mipmap chain down
+     * to a single texel, averaging blocks of two by two texels.
+     */
+    private static Decoded createMipmaps(String name, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int count = levelCount(width, height);
+        ByteBuffer[] levels = new ByteBuffer[count];
+        levels[0] = ByteBuffer.allocateDirect(3 * width * height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int rgb : row) {
+                levels[0].put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+            }
+        }
+        levels[0].flip();
+
+        int w = width;
+        int h = height;
+        for (int level = 1; level < count; level++) {
+            int nw = Math.max(1, w / 2);
+            int nh = Math.max(1, h / 2);
+            levels[level] = ByteBuffer.allocateDirect(3 * nw * nh);
+
+            for (int y = 0; y < nh; y++) {
+                // Odd sizes repeat the last row or column.
+                int y0 = Math.min(2 * y, h - 1);
+                int y1 = Math.min(2 * y + 1, h - 1);
+                for (int x = 0; x < nw; x++) {
+                    int x0 = Math.min(2 * x, w - 1);
+                    int x1 = Math.min(2 * x + 1, w - 1);
+                    for (int c = 0; c < 3; c++) {
+                        int sum = texel(levels[level - 1], w, x0, y0, c)
+                                + texel(levels[level - 1], w, x1, y0, c)
+                                + texel(levels[level - 1], w, x0, y1, c)
+                                + texel(levels[level - 1], w, x1, y1, c);
+                        levels[level].put((byte) ((sum + 2) / 4));
+                    }
+                }
+            }
+            levels[level].flip();
+            w = nw;
+            h = nh;
+        }
+
+        return new Decoded(name, width, height, levels);
+    }
+
+    /**
+     * Returns the number of levels of the mipmap chain of an image of
+     * the given size, down to a single texel.
+     */
+    private static int levelCount(int width, int height) {
+        int count = 1;
+        while ((width >> count) > 0 || (height >> count) > 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the width and height of an image from its header, without
+     * decoding it.
+     */
+    private static int[] readSize(byte[] bytes) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns channel c of texel (x, y) of a level that is w texels wide.
+     */
+    private static int texel(ByteBuffer level, int w, int x, int y, int c) {
+        return level.get(3 * (y * w + x) + c) & 0xff;
+    }
+
+    /**
+     * Creates a grey checkerboard of eight by eight texels.
+     */
+    private static Decoded createPlaceholder() {
+        BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                image.setRGB(x, y, ((x + y) % 2 == 0) ? 0x909090 : 0x606060);
+            }
+        }
+        return createMipmaps("placeholder", image);
+    }
+
+    /**
+     * Reads the mipmap chain of an image of the given size from the
+     * cache. Throws an IOException if the file does not hold exactly
+     * the levels of an image of that size.
+     */
+    private static Decoded readCache(String name, File file, int width, int height)
+            throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(20);
+            readFully(channel, header);
+
+            if (CACHE_MAGIC != header.getInt() || CACHE_VERSION != header.getInt()) {
+                throw new IOException("Not a texture cache file");
+            }
+            ByteBuffer[] levels = new ByteBuffer[levelCount(width, height)];
+            if (width != header.getInt() || height != header.getInt()
+                    || levels.length != header.getInt()) {
+                throw new IOException("Texture cache file does not match its image");
+            }
+
+            long size = header.capacity();
+            int w = width;
+            int h = height;
+            for (int level = 0; level < levels.length; level++) {
+                size += 3L * w * h;
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+            if (size != channel.size()) {
+                throw new IOException("Texture cache file has the wrong length");
+            }
+
+            w = width;
+            h = height;
+            for (int level = 0; level < levels.length; level++) {
+                levels[level] = ByteBuffer.allocateDirect(3 * w * h);
+                readFully(channel, levels[level]);
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+            return new Decoded(name, width, height, levels);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Fills the buffer from the channel and flips it for reading.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated texture cache file");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Writes a mipmap chain to the cache, through a temporary file so
+     * that a concurrent reader never sees a partial file.
+     */
+    private void writeCache(Decoded texture, File file) {
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            System.err.println("Cannot create texture cache " + cacheDirectory);
+            return;
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                FileChannel channel = output.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(20);
+                header.putInt(CACHE_MAGIC).putInt(CACHE_VERSION)
+                      .putInt(texture.width).putInt(texture.height)
+                      .putInt(texture.levels.length).flip();
+                writeFully(channel, header);
+                for (ByteBuffer level : texture.levels) {
+                    writeFully(channel, level.duplicate());
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+            }
+        } catch (IOException ex) {
+            System.err.println("Cannot write texture cache " + file + ": " + ex);
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Writes all remaining bytes of the buffer to the channel.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of the bytes, in hexadecimal.
+     */
+    private static String hash(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    /**
+     * A decoded texture, with all of its mipmap levels as RGB bytes.
+     */
+    private static class Decoded {
+
+        final String name;
+        final int width;
+        final int height;
+
+        /** The levels from full size down to one texel, null if missing. */
+        final ByteBuffer[] levels;
+
+        Decoded(String name, int width, int height, ByteBuffer[] levels) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.levels = levels;
+        }
+
+        /**
+         * Returns the number of bytes of all levels.
+         */
+        long size() {
+            long size = 0;
+            for (ByteBuffer level : levels) {
+                size += level.limit();
+            }
+            return size;
+        }
+    }
+}
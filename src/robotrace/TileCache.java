@@ -0,0 +1,165 @@
+package robotrace;
+
+/**
+ * The resident tiles of the terrain, by tile coordinates, in the order
+ * in which they were last used.
+ *
+ * The tiles are found through an open addressing hash table keyed by
+ * their packed coordinates, so looking up the tiles around the eye every
+ * frame allocates nothing. The tiles themselves form a doubly linked
+ * list from the least to the most recently used, so the tiles to evict
+ * are at its head. The cache is only used on the OpenGL thread.
+ */
+class TileCache {
+
+    /** The slots of the hash table, null when empty. */
+    private final TerrainTile[] slots;
+
+    /** The index mask of the slots, whose number is a power of two. */
+    private final int mask;
+
+    /** The least and most recently used tile, null when empty. */
+    private TerrainTile eldest = null, newest = null;
+
+    /** The number of tiles in the cache. */
+    private int size = 0;
+
+    /**
+     * Constructs an empty cache for at most capacity tiles.
+     */
+    public TileCache(int capacity) {
+        // Keep the table at most half full, so probe sequences stay short.
+        int length = Integer.highestOneBit(Math.max(1, 2 * capacity - 1)) << 1;
+        slots = new TerrainTile[length];
+        mask = length - 1;
+    }
+
+    /**
+     * Returns the key of the tile at column ti and row tj.
+     */
+    static long key(int ti, int tj) {
+        return ((long) ti << 32) | (tj & 0xffffffffL);
+    }
+
+    /**
+     * Returns the tile with the given key and marks it as the most
+     * recently used, or returns null if it is not in the cache.
+     */
+    public TerrainTile get(long key) {
+        TerrainTile tile = peek(key);
+        if (null != tile && tile != newest) {
+            unlink(tile);
+            link(tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the tile with the given key without marking it as used, or
+     * null if it is not in the cache.
+     */
+    public TerrainTile peek(long key) {
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            TerrainTile tile = slots[slot];
+            if (null == tile || tile.key == key) {
+                return tile;
+            }
+        }
+    }
+
+    /**
+     * Adds a tile whose key is not in the cache yet, as the most recently
+     * used. The cache must not be full.
+     */
+    public void put(TerrainTile tile) {
+        if (2 * (size + 1) > slots.length) {
+            throw new IllegalStateException("Tile cache is full");
+        }
+        int slot = slot(tile.key);
+        while (null != slots[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = tile;
+        link(tile);
+        size++;
+    }
+
+    /**
+     * Removes a tile that is in the cache.
+     */
+    public void remove(TerrainTile tile) {
+        int slot = slot(tile.key);
+        while (slots[slot] != tile) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = null;
+
+        // Move later tiles of the probe sequence into the hole, so no lookup stops early.
+        for (int next = (slot + 1) & mask; null != slots[next]; next = (next + 1) & mask) {
+            int home = slot(slots[next].key);
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                slots[slot] = slots[next];
+                slots[next] = null;
+                slot = next;
+            }
+        }
+
+        unlink(tile);
+        size--;
+    }
+
+    /**
+     * Returns the least recently used tile, null when empty. The tiles
+     * that follow are linked through {@link TerrainTile#newer}.
+     */
+    public TerrainTile getEldest() {
+        return eldest;
+    }
+
+    /**
+     * Returns the number of tiles in the cache.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slot at which the probe sequence of a key starts.
+     */
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 40) & mask;
+    }
+
+    /**
+     * Appends a tile to the list as the most recently used.
+     */
+    private void link(TerrainTile tile) {
+        tile.older = newest;
+        tile.newer = null;
+        if (null == newest) {
+            eldest = tile;
+        } else {
+            newest.newer = tile;
+        }
+        newest = tile;
+    }
+
+    /**
+     * Takes a tile out of the list.
+     */
+    private void unlink(TerrainTile tile) {
+        if (null == tile.older) {
+            eldest = tile.newer;
+        } else {
+            tile.older.newer = tile.newer;
+        }
+        if (null == tile.newer) {
+            newest = tile.older;
+        } else {
+            tile.newer.older = tile.older;
+        }
+        tile.older = null;
+        tile.newer = null;
+    }
+}
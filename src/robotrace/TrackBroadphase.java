@@ -0,0 +1,292 @@
+package robotrace;
+
+/**
+ * Finds the robots near each other along a race track, without testing
+ * every pair.
+ *
+ * The robots are kept sorted by their position along the lap, with the
+ * lane as a secondary key, so the robots within a range of one robot are
+ * its neighbours in the order. The track is closed, so the order is
+ * cyclic: the first robot follows the last one across the finish line,
+ * and a robot lapping another meets it like any other. Robots overtake
+ * each other rarely, so the order of the previous tick is nearly sorted
+ * and an insertion sort restores it in about one comparison per robot.
+ * For contacts between ticks, the intervals swept by the robots are
+ * sorted and swept the same way, and only pairs whose intervals overlap
+ * are tested exactly. The intervals of the robots just past the finish
+ * line are swept a second time, shifted by a lap, to meet the intervals
+ * that reach across it.
+ */
+class TrackBroadphase {
+
+    /** The progress in laps and the lane of every robot, owned by the simulation. */
+    private final double[] progress, lanes;
+
+    /** The length of a lap. */
+    private final double length;
+
+    /** The robots ordered by position and lane. */
+    private final int[] order;
+
+    /** The position of every robot in the order. */
+    private final int[] ranks;
+
+    /** The robots ordered by the start of the interval they swept. */
+    private final int[] sweepOrder;
+
+    /** The start and end of the interval every robot swept, as positions. */
+    private final double[] sweepStarts, sweepEnds;
+
+    /**
+     * The intervals of one sweep in order: the robots in sweep order,
+     * followed by the robots swept a second time, plus the number of robots.
+     */
+    private final int[] entries;
+
+    /** The moments of the tick, from 0 to 1, at which a tested pair may touch. */
+    private double windowStart, windowEnd;
+
+    /** How far the second robot of the tested pair was ahead of the first at the start of the tick. */
+    private double windowAlong;
+
+    /**
+     * Constructs the broadphase over the given progress and lanes, which
+     * the simulation updates in place, on a track of the given length.
+     */
+    public TrackBroadphase(double[] progress, double[] lanes, double length) {
+        this.progress = progress;
+        this.lanes = lanes;
+        this.length = length;
+
+        int count = progress.length;
+        order = new int[count];
+        ranks = new int[count];
+        sweepOrder = new int[count];
+        sweepStarts = new double[count];
+        sweepEnds = new double[count];
+        entries = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            sweepOrder[i] = i;
+        }
+        update();
+    }
+
+    /**
+     * Restores the order after the robots moved.
+     */
+    public void update() {
+        for (int k = 1; k < order.length; k++) {
+            int robot = order[k];
+            int j = k - 1;
+            while (j >= 0 && isBefore(robot, order[j])) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = robot;
+        }
+        for (int k = 0; k < order.length; k++) {
+            ranks[order[k]] = k;
+        }
+    }
+
+    /**
+     * Returns the position of robot i along the lap, from 0 up to the
+     * length of a lap.
+     */
+    public double position(int i) {
+        return (progress[i] - Math.floor(progress[i])) * length;
+    }
+
+    /**
+     * Returns how far robot j is ahead of robot i along the track, the
+     * shorter way around, negative if it is behind.
+     */
+    public double gap(int i, int j) {
+        double gap = position(j) - position(i);
+        return gap - length * Math.floor(gap / length + 0.5);
+    }
+
+    /**
+     * Collects the robots ahead of robot i by less than range into out,
+     * nearest first, and returns their number. Robots level with robot i
+     * are not ahead of it.
+     */
+    public int findAhead(int i, double range, int[] out) {
+        double position = position(i);
+        int found = 0;
+        for (int step = 1; step < order.length; step++) {
+            int j = order[(ranks[i] + step) % order.length];
+            double gap = position(j) - position;
+            if (gap < 0) {
+                gap += length;
+            }
+            if (gap >= range) {
+                break;
+            }
+            if (gap > 0) {
+                out[found++] = j;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Collects the robots other than robot i whose position differs from
+     * that of robot i by less than range either way into out, and
+     * returns their number.
+     */
+    public int findAround(int i, double range, int[] out) {
+        double position = position(i);
+        int n = order.length;
+        int ahead = 1;
+        for (; ahead < n; ahead++) {
+            int j = order[(ranks[i] + ahead) % n];
+            double gap = position(j) - position;
+            if ((gap < 0 ? gap + length : gap) >= range) {
+                break;
+            }
+            out[ahead - 1] = j;
+        }
+        int found = ahead - 1;
+
+        // Walk back, but not onto the robots found ahead.
+        for (int behind = 1; behind < n - ahead + 1; behind++) {
+            int j = order[(ranks[i] - behind + n) % n];
+            double gap = position - position(j);
+            if ((gap < 0 ? gap + length : gap) >= range) {
+                break;
+            }
+            out[found++] = j;
+        }
+        return found;
+    }
+
+    /**
+     * Finds the pairs of robots that came closer than reach along the
+     * track and lanes lanes across it to each other at some moment of the
+     * last tick, moving linearly from the given previous progress and
+     * lanes. Stores the pairs in out, two robots each, the one that was
+     * behind at the start of the tick first, and returns their number.
+     * Stores only the first out.length / 2 pairs if there are more, so a
+     * result above that asks for a larger out and another call.
+     */
+    public int findContacts(double[] previousProgress, double[] previousLanes,
+                            double reach, double lanes, int[] out) {
+        // Sort the swept intervals by their start.
+        int n = progress.length;
+        double maxEnd = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double from = (previousProgress[i] - Math.floor(previousProgress[i])) * length;
+            double moved = (progress[i] - previousProgress[i]) * length;
+            sweepStarts[i] = from + Math.min(0, moved) - reach / 2;
+            sweepEnds[i] = from + Math.max(0, moved) + reach / 2;
+            maxEnd = Math.max(maxEnd, sweepEnds[i]);
+        }
+        for (int k = 1; k < n; k++) {
+            int robot = sweepOrder[k];
+            int j = k - 1;
+            while (j >= 0 && sweepStarts[robot] < sweepStarts[sweepOrder[j]]) {
+                sweepOrder[j + 1] = sweepOrder[j];
+                j--;
+            }
+            sweepOrder[j + 1] = robot;
+        }
+
+        // Sweep the first intervals again a lap later, for those that reach across the finish line.
+        System.arraycopy(sweepOrder, 0, entries, 0, n);
+        int count = n;
+        while (count < 2 * n && sweepStarts[sweepOrder[count - n]] + length < maxEnd) {
+            entries[count] = sweepOrder[count - n] + n;
+            count++;
+        }
+
+        // Test every interval against the later ones that start before its end.
+        int pairs = 0;
+        for (int k = 0; k < count; k++) {
+            int a = entries[k];
+            for (int m = k + 1; m < count && start(entries[m]) < end(a); m++) {
+                int b = entries[m];
+                if (a % n == b % n || (a >= n && b >= n)) {
+                    continue;
+                }
+                double offset = (b >= n ? length : 0) - (a >= n ? length : 0);
+                if (touch(a % n, b % n, offset, previousProgress, previousLanes,
+                          reach, lanes)) {
+                    if (2 * pairs + 1 < out.length) {
+                        boolean aBehind = windowAlong > 0;
+                        out[2 * pairs] = aBehind ? a % n : b % n;
+                        out[2 * pairs + 1] = aBehind ? b % n : a % n;
+                    }
+                    pairs++;
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Returns the start of the interval of a sweep entry.
+     */
+    private double start(int entry) {
+        int n = progress.length;
+        return entry < n ? sweepStarts[entry] : sweepStarts[entry - n] + length;
+    }
+
+    /**
+     * Returns the end of the interval of a sweep entry.
+     */
+    private double end(int entry) {
+        int n = progress.length;
+        return entry < n ? sweepEnds[entry] : sweepEnds[entry - n] + length;
+    }
+
+    /**
+     * Returns whether robot a comes before robot b in the order.
+     */
+    private boolean isBefore(int a, int b) {
+        double pa = position(a);
+        double pb = position(b);
+        return pa < pb || (pa == pb && lanes[a] < lanes[b]);
+    }
+
+    /**
+     * Returns whether robots a and b, moving linearly during the tick,
+     * are closer than reach along and width across the track to each
+     * other at the same moment, where robot b is shifted offset along
+     * the track. Leaves how far b was ahead of a at the start of the
+     * tick in windowAlong.
+     */
+    private boolean touch(int a, int b, double offset, double[] previousProgress,
+                          double[] previousLanes, double reach, double width) {
+        double fromA = (previousProgress[a] - Math.floor(previousProgress[a])) * length;
+        double fromB = (previousProgress[b] - Math.floor(previousProgress[b])) * length + offset;
+        double along0 = fromB - fromA;
+        double along1 = along0 + (progress[b] - previousProgress[b]
+                                  - progress[a] + previousProgress[a]) * length;
+        double across0 = previousLanes[b] - previousLanes[a];
+        double across1 = lanes[b] - lanes[a];
+        windowAlong = along0;
+
+        // Intersect the moments at which either separation is small enough.
+        windowStart = 0;
+        windowEnd = 1;
+        return narrow(along0, along1, reach) && narrow(across0, across1, width);
+    }
+    /**
+     * Narrows the window to the moments at which a separation, changing
+     * linearly from from to to during the tick, is below limit in size.
+     * Returns whether the window is still open.
+     */
+    private boolean narrow(double from, double to, double limit) {
+        double slope = to - from;
+        if (0 == slope) {
+            return Math.abs(from) < limit && windowStart < windowEnd;
+        }
+        double t0 = (-limit - from) / slope;
+        double t1 = (limit - from) / slope;
+        windowStart = Math.max(windowStart, Math.min(t0, t1));
+        windowEnd = Math.min(windowEnd, Math.max(t0, t1));
+        return windowStart < windowEnd;
+    }
+}
@@ -0,0 +1,211 @@
+package robotrace;
+
+import java.util.Arrays;
+
+/**
+ * The ground covered by a race track, as seen by the terrain.
+ *
+ * The center line of the track is kept as a chain of segments in the
+ * ground plane, so the distance from any point to the edge of the track
+ * can be found. The terrain is flattened where this distance is small.
+ * A tile of terrain first collects the few segments near it, and then
+ * only measures the distance to those for each of its samples. Single
+ * points are looked up in a coarse grid over the corridor, whose every
+ * cell lists the segments that come within reach of it, so a lookup
+ * does not depend on the length of the track.
+ */
+class TrackCorridor {
+
+    /** The x and y coordinates of the points of the center line. */
+    private final float[] xs, ys;
+
+    /** Half the width of the track, the distance from the center line to its edges. */
+    private final float halfWidth;
+
+    /** The smallest side of a cell of the grid. */
+    private final static float MIN_CELL_SIZE = 16f;
+
+    /** The largest number of cells along one side of the grid. */
+    private final static int MAX_CELLS = 256;
+
+    /** The box around the center line, as minX, minY, maxX, maxY. */
+    private final float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                                    Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+    /** The corner of the grid and the side of its cells. */
+    private final float gridX, gridY, cellSize;
+
+    /** The number of cells of the grid along the x-axis and the y-axis. */
+    private final int columns, rows;
+
+    /** The segments of cell c, from cellStarts[c] up to cellStarts[c + 1] in cellSegments. */
+    private final int[] cellStarts, cellSegments;
+
+    /**
+     * Constructs the corridor of the given track, whose grid answers
+     * distances up to the given reach from the edges of the track.
+     */
+    public TrackCorridor(RaceTrack track, float reach) {
+        int count = track.getSampleCount();
+        xs = new float[count];
+        ys = new float[count];
+        halfWidth = (float) (track.getLaneCount() * track.getLaneWidth() / 2);
+
+        MutableVec3 point = new MutableVec3();
+        for (int i = 0; i < count; i++) {
+            track.getCenterPoint(i, point);
+            xs[i] = (float) point.x;
+            ys[i] = (float) point.y;
+            bounds[0] = Math.min(bounds[0], xs[i]);
+            bounds[1] = Math.min(bounds[1], ys[i]);
+            bounds[2] = Math.max(bounds[2], xs[i]);
+            bounds[3] = Math.max(bounds[3], ys[i]);
+        }
+
+        float margin = halfWidth + reach;
+        gridX = bounds[0] - margin;
+        gridY = bounds[1] - margin;
+        float width = bounds[2] + margin - gridX;
+        float height = bounds[3] + margin - gridY;
+        cellSize = Math.max(MIN_CELL_SIZE, Math.max(width, height) / MAX_CELLS);
+        columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        // Count the segments of every cell, then store them after each other.
+        cellStarts = new int[columns * rows + 1];
+        for (int i = 0; i < count - 1; i++) {
+            addToCells(i, margin, null);
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        cellSegments = new int[cellStarts[columns * rows]];
+        int[] fill = Arrays.copyOf(cellStarts, columns * rows);
+        for (int i = 0; i < count - 1; i++) {
+            addToCells(i, margin, fill);
+        }
+    }
+
+    /**
+     * Adds segment i to every cell that its box, grown by the given
+     * margin, overlaps. Counts it in the cell starts if fill is null,
+     * and otherwise stores it at the next free position of every cell.
+     */
+    private void addToCells(int i, float margin, int[] fill) {
+        int i0 = column(Math.min(xs[i], xs[i + 1]) - margin);
+        int i1 = column(Math.max(xs[i], xs[i + 1]) + margin);
+        int j0 = row(Math.min(ys[i], ys[i + 1]) - margin);
+        int j1 = row(Math.max(ys[i], ys[i + 1]) + margin);
+
+        for (int j = j0; j <= j1; j++) {
+            for (int c = j * columns + i0; c <= j * columns + i1; c++) {
+                if (null == fill) {
+                    cellStarts[c + 1]++;
+                } else {
+                    cellSegments[fill[c]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the column of the grid at x, clamped to the grid.
+     */
+    private int column(float x) {
+        return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - gridX) / cellSize)));
+    }
+
+    /**
+     * Returns the row of the grid at y, clamped to the grid.
+     */
+    private int row(float y) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - gridY) / cellSize)));
+    }
+
+    /**
+     * Returns the number of segments of the center line.
+     */
+    public int getSegmentCount() {
+        return xs.length - 1;
+    }
+
+    /**
+     * Returns whether the box from (minX, minY) to (maxX, maxY) comes
+     * within reach of the edges of the track.
+     */
+    public boolean isNear(float minX, float minY, float maxX, float maxY, float reach) {
+        float margin = halfWidth + reach;
+        return minX <= bounds[2] + margin && maxX >= bounds[0] - margin
+            && minY <= bounds[3] + margin && maxY >= bounds[1] - margin;
+    }
+
+    /**
+     * Collects the segments that may come within reach of the edges of
+     * the track anywhere in the box from (minX, minY) to (maxX, maxY)
+     * into out, and returns their number.
+     */
+    public int findNear(float minX, float minY, float maxX, float maxY, float reach, int[] out) {
+        float margin = halfWidth + reach;
+        int found = 0;
+        for (int i = 0; i < xs.length - 1; i++) {
+            if (Math.min(xs[i], xs[i + 1]) <= maxX + margin
+                    && Math.max(xs[i], xs[i + 1]) >= minX - margin
+                    && Math.min(ys[i], ys[i + 1]) <= maxY + margin
+                    && Math.max(ys[i], ys[i + 1]) >= minY - margin) {
+                out[found++] = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the distance from (x, y) to the edges of the track, negative
+     * on the track, measuring only the count segments in near. Returns
+     * positive infinity if there are none.
+     */
+    public float distance(float x, float y, int[] near, int count) {
+        float nearest = Float.POSITIVE_INFINITY;
+        for (int k = 0; k < count; k++) {
+            nearest = Math.min(nearest, squaredDistance(x, y, near[k]));
+        }
+        return (float) Math.sqrt(nearest) - halfWidth;
+    }
+
+    /**
+     * Returns the distance from (x, y) to the edges of the track, negative
+     * on the track, measuring only the segments of the grid cell there.
+     * Distances beyond the reach of the grid may come out larger than
+     * they are, up to positive infinity, but never below the reach.
+     */
+    public float distance(float x, float y) {
+        int i = (int) Math.floor((x - gridX) / cellSize);
+        int j = (int) Math.floor((y - gridY) / cellSize);
+        if (i < 0 || i >= columns || j < 0 || j >= rows) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        int cell = j * columns + i;
+        float nearest = Float.POSITIVE_INFINITY;
+        for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+            nearest = Math.min(nearest, squaredDistance(x, y, cellSegments[k]));
+        }
+        return (float) Math.sqrt(nearest) - halfWidth;
+    }
+
+    /**
+     * Returns the squared distance from (x, y) to segment i.
+     */
+    private float squaredDistance(float x, float y, int i) {
+        float dx = xs[i + 1] - xs[i];
+        float dy = ys[i + 1] - ys[i];
+        float px = x - xs[i];
+        float py = y - ys[i];
+
+        float lengthSquared = dx * dx + dy * dy;
+        float s = 0 == lengthSquared ? 0
+                : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+        px -= s * dx;
+        py -= s * dy;
+        return px * px + py * py;
+    }
+}
@@ -0,0 +1,325 @@
+package robotrace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reads and writes race tracks in a compact binary format, and converts
+ * them from and to a text format that is easy to edit by hand.
+ *
+ * A binary track file is little endian and starts with a header of 32
+ * bytes: the magic number, the format version, the flags, the number of
+ * lanes, the lane width as a double, the number of control points and
+ * the number of samples in the arc length table, 0 if there is none.
+ * The only flag marks that the file has an arc length table.
+ * The header is followed by the x, y and z coordinates of the control
+ * points, three per Bezier segment. If the file has an arc length
+ * table, the position of every sample follows, and then the cumulative
+ * arc length of every lane at every sample, all as doubles.
+ *
+ * Binary files are memory mapped, and the track reads its control points
+ * straight from the mapping, so even a track with tens of thousands of
+ * segments loads quickly without copying its coordinates onto the heap.
+ *
+ * The text format has one item per line, and # starts a comment:
+ * {@code lanes <count>}, {@code laneWidth <width>}, and the x, y and z
+ * coordinates of every control point.
+ */
+class TrackFile {
+
+    /** The first four bytes of every binary track file, "RTRK". */
+    private final static int MAGIC = 0x5254524B;
+
+    /** The version of the binary format. */
+    private final static int VERSION = 1;
+
+    /** The flag of files with an arc length table. */
+    private final static int FLAG_TABLE = 1;
+
+    /** The size of the header in bytes, a multiple of 8 so the doubles are aligned. */
+    private final static int HEADER_SIZE = 32;
+
+    /** The tolerance at which tracks without an arc length table are tessellated. */
+    private final static double TOLERANCE = 0.01;
+
+    /**
+     * Loads a track from a file, in the text format if its name ends
+     * with .txt and in the binary format otherwise.
+     */
+    static RaceTrack load(File file) throws IOException {
+        if (file.getName().endsWith(".txt")) {
+            return importText(file);
+        }
+        return read(file);
+    }
+
+    /**
+     * Loads a binary track file.
+     */
+    static RaceTrack read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            // The mapping remains valid after the file is closed.
+            FileChannel channel = input.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.limit() < HEADER_SIZE || MAGIC != buffer.getInt(0)) {
+            throw new IOException(file + " is not a track file");
+        }
+        if (VERSION != buffer.getInt(4)) {
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+
+        int flags = buffer.getInt(8);
+        int laneCount = buffer.getInt(12);
+        double laneWidth = buffer.getDouble(16);
+        int points = buffer.getInt(24);
+        int samples = buffer.getInt(28);
+        boolean withTable = 0 != (flags & FLAG_TABLE);
+        if (0 != (flags & ~FLAG_TABLE) || withTable != (samples > 0)
+                || laneCount < 1 || !isValidWidth(laneWidth)
+                || points < 3 || 0 != points % 3 || samples < 0 || 1 == samples) {
+            throw new IOException(file + " has an invalid header");
+        }
+
+        long pointDoubles = 3L * points;
+        long tableDoubles = (long) samples * (1 + laneCount);
+        if (buffer.limit() != HEADER_SIZE + 8 * (pointDoubles + tableDoubles)) {
+            throw new IOException(file + " is truncated");
+        }
+
+        DoubleBuffer doubles = slice(buffer, HEADER_SIZE).asDoubleBuffer();
+        DoubleBuffer controlPoints = (DoubleBuffer) doubles.duplicate().limit((int) pointDoubles);
+        for (int i = 0; i < controlPoints.limit(); i++) {
+            if (!isFinite(controlPoints.get(i))) {
+                throw new IOException(file + " has a control point that is not finite");
+            }
+        }
+
+        double[] sampleParams = null;
+        double[] laneDistances = null;
+        if (samples > 0) {
+            doubles.position((int) pointDoubles);
+            sampleParams = new double[samples];
+            doubles.get(sampleParams);
+            laneDistances = new double[samples * laneCount];
+            doubles.get(laneDistances);
+
+            // The samples run from the start to the end of the segments, every lane from 0 on.
+            boolean valid = 0 == sampleParams[0] && points / 3 == sampleParams[samples - 1]
+                         && isAscending(sampleParams, 0, samples, true);
+            for (int lane = 0; lane < laneCount; lane++) {
+                valid &= 0 == laneDistances[lane * samples]
+                      && isAscending(laneDistances, lane * samples, (lane + 1) * samples, false);
+            }
+            if (!valid) {
+                throw new IOException(file + " has an invalid arc length table");
+            }
+        }
+
+        return new RaceTrack(controlPoints, laneCount, laneWidth, TOLERANCE,
+                             sampleParams, laneDistances);
+    }
+
+    /**
+     * Writes a track to a binary track file, with its arc length table
+     * if specified, so that loading it skips the tessellation.
+     */
+    static void write(RaceTrack track, File file, boolean withTable) throws IOException {
+        DoubleBuffer controlPoints = track.getControlPoints();
+        if (null == controlPoints) {
+            throw new IOException("The test track has no control points");
+        }
+
+        int points = controlPoints.limit() / 3;
+        double[] sampleParams = withTable ? track.getSampleParams() : new double[0];
+        double[] laneDistances = withTable ? track.getLaneDistances() : new double[0];
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(withTable ? FLAG_TABLE : 0)
+              .putInt(track.getLaneCount()).putDouble(track.getLaneWidth())
+              .putInt(points).putInt(sampleParams.length).flip();
+
+        ByteBuffer body = ByteBuffer.allocate(8 * (3 * points + sampleParams.length
+                                                   + laneDistances.length))
+                                    .order(ByteOrder.LITTLE_ENDIAN);
+        DoubleBuffer doubles = body.asDoubleBuffer();
+        doubles.put(controlPoints);
+        doubles.put(sampleParams);
+        doubles.put(laneDistances);
+
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Loads a track from the text format.
+     */
+    static RaceTrack importText(File file) throws IOException {
+        int laneCount = RaceTrack.DEFAULT_LANES;
+        double laneWidth = RaceTrack.DEFAULT_LANE_WIDTH;
+        double[] coordinates = new double[3 * 64];
+        int count = 0;
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                String[] fields = (comment < 0 ? line : line.substring(0, comment))
+                                  .trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    if ("lanes".equals(fields[0]) && 2 == fields.length) {
+                        laneCount = Integer.parseInt(fields[1]);
+                    } else if ("laneWidth".equals(fields[0]) && 2 == fields.length) {
+                        laneWidth = Double.parseDouble(fields[1]);
+                    } else if (3 == fields.length) {
+                        if (count + 3 > coordinates.length) {
+                            coordinates = Arrays.copyOf(coordinates, 2 * coordinates.length);
+                        }
+                        for (String field : fields) {
+                            double coordinate = Double.parseDouble(field);
+                            if (!isFinite(coordinate)) {
+                                throw new NumberFormatException("not a finite number: " + field);
+                            }
+                            coordinates[count++] = coordinate;
+                        }
+                    } else {
+                        throw new NumberFormatException("expected x y z");
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IOException(file + ":" + lineNumber + ": " + ex.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (laneCount < 1 || !isValidWidth(laneWidth)) {
+            throw new IOException(file + " needs at least one lane of positive width");
+        }
+        if (count < 9 || 0 != count % 9) {
+            throw new IOException(file + " needs three control points per segment,"
+                                  + " and at least one segment");
+        }
+
+        return new RaceTrack(DoubleBuffer.wrap(coordinates, 0, count).slice(),
+                             laneCount, laneWidth, TOLERANCE, null, null);
+    }
+
+    /**
+     * Writes a track in the text format.
+     */
+    static void exportText(RaceTrack track, File file) throws IOException {
+        DoubleBuffer controlPoints = track.getControlPoints();
+        if (null == controlPoints) {
+            throw new IOException("The test track has no control points");
+        }
+
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println("# RobotRace track, x y z of every control point");
+            writer.println("lanes " + track.getLaneCount());
+            writer.println("laneWidth " + track.getLaneWidth());
+            for (int i = 0; i + 2 < controlPoints.limit(); i += 3) {
+                writer.printf(Locale.ROOT, "%s %s %s%n", controlPoints.get(i),
+                              controlPoints.get(i + 1), controlPoints.get(i + 2));
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Writing " + file + " failed");
+        }
+    }
+
+    /**
+     * Returns whether the given lane width is positive and finite.
+     */
+    private static boolean isValidWidth(double laneWidth) {
+        return laneWidth > 0 && isFinite(laneWidth);
+    }
+
+    /**
+     * Returns whether the value is neither infinite nor NaN.
+     */
+    private static boolean isFinite(double value) {
+        return Math.abs(value) <= Double.MAX_VALUE;
+    }
+
+    /**
+     * Returns whether the values from start up to end are finite and
+     * increase, strictly if specified and never decrease otherwise.
+     */
+    private static boolean isAscending(double[] values, int start, int end, boolean strict) {
+        for (int i = start; i < end; i++) {
+            if (!isFinite(values[i])) {
+                return false;
+            }
+            // Written so that NaN fails as well.
+            if (i > start && !(strict ? values[i] > values[i - 1] : values[i] >= values[i - 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a view of the buffer from the given offset on, in the same
+     * byte order.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view.slice().order(buffer.order());
+    }
+
+    /**
+     * Converts between the text and the binary format:
+     * {@code import <text> <binary>} or {@code export <binary> <text>}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (3 == args.length && "import".equals(args[0])) {
+            write(importText(new File(args[1])), new File(args[2]), true);
+        } else if (3 == args.length && "export".equals(args[0])) {
+            exportText(read(new File(args[1])), new File(args[2]));
+        } else {
+            System.err.println("Usage: TrackFile import <text> <binary>");
+            System.err.println("       TrackFile export <binary> <text>");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package robotrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import static javax.media.opengl.GL2.*;
+import javax.media.opengl.GL2;
+
+/**
+ * One viewport of the window, with its own camera.
+ *
+ * Every view follows a robot at a fixed place in the standings in a
+ * fixed camera mode, or the mode chosen in the menu. The views of a
+ * window are laid out in a grid. Only the camera, the transformations
+ * and the frustum are per view; everything else of a frame is prepared
+ * once and shared by all views.
+ */
+class View {
+
+    /** The mode of a view that uses the camera mode chosen in the menu. */
+    final static int CURRENT_MODE = -1;
+
+    /** The names of the camera modes, as in GlobalState.camMode. */
+    private final static String[] MODES =
+        {"default", "helicopter", "motorcycle", "firstperson", "auto"};
+
+    /** The camera of this view. */
+    final Camera camera = new Camera();
+
+    /** The projection and viewing matrices of the current frame. */
+    final Matrix4 projection = new Matrix4();
+    final Matrix4 view = new Matrix4();
+
+    /** The frustum of the current frame, used to cull the scene. */
+    final Frustum frustum = new Frustum();
+
+    /** The level of detail of every robot in this view. */
+    final RobotLod lod = new RobotLod();
+
+    /** The camera mode, or CURRENT_MODE. */
+    private final int mode;
+
+    /** The place in the standings of the robot to follow, from 0 for the leader, negative from the last. */
+    private final int rank;
+
+    /** The viewport in the window, in pixels. */
+    private int x, y, width, height;
+
+    /**
+     * Constructs a view in the given camera mode, following the robot
+     * at the given place in the standings.
+     */
+    public View(int mode, int rank) {
+        this.mode = mode;
+        this.rank = rank;
+    }
+
+    /**
+     * Parses a comma separated list of views, each a camera mode and
+     * optionally the robot to follow, like "helicopter:leader",
+     * "firstperson:last" or "motorcycle:2". The mode is one of default,
+     * helicopter, motorcycle, firstperson, auto or current, and the
+     * robot is leader, last or a place in the standings counted from 1.
+     */
+    static List<View> parse(String spec) {
+        List<View> views = new ArrayList<View>();
+        for (String part : spec.split(",")) {
+            String[] fields = part.trim().split(":");
+            int mode = CURRENT_MODE;
+            for (int m = 0; m < MODES.length; m++) {
+                if (MODES[m].equalsIgnoreCase(fields[0])) {
+                    mode = m;
+                }
+            }
+            if (CURRENT_MODE == mode && !"current".equalsIgnoreCase(fields[0])) {
+                throw new IllegalArgumentException("Unknown camera mode " + fields[0]);
+            }
+
+            int rank = 0;
+            if (fields.length > 1) {
+                if ("last".equalsIgnoreCase(fields[1])) {
+                    rank = -1;
+                } else if (!"leader".equalsIgnoreCase(fields[1])) {
+                    rank = Integer.parseInt(fields[1]) - 1;
+                }
+            }
+            views.add(new View(mode, rank));
+        }
+        return views;
+    }
+
+    /**
+     * Places this view in the grid of count views, in a window of the
+     * given size, filling the rows from the top.
+     */
+    public void layout(int index, int count, int windowWidth, int windowHeight) {
+        int columns = (int) Math.ceil(Math.sqrt(count));
+        int rows = (count + columns - 1) / columns;
+        int column = index % columns;
+        int row = index / columns;
+
+        x = column * windowWidth / columns;
+        width = (column + 1) * windowWidth / columns - x;
+        int top = row * windowHeight / rows;
+        height = (row + 1) * windowHeight / rows - top;
+        y = windowHeight - top - height;
+    }
+
+    /**
+     * Moves the camera for the current frame, and derives the
+     * transformations and frustum of this view from it.
+     */
+    public void update(GlobalState gs, Robot[] robots, RaceSnapshot snapshot) {
+        camera.update(gs, CURRENT_MODE == mode ? gs.camMode : mode, robots, snapshot, rank);
+
+        // The horizontal field of view spans vWidth at distance vDist.
+        double aspectRatio = (double) width / Math.max(1, height);
+        double xFOV = Math.toDegrees(2 * Math.atan((gs.vWidth / 2) / gs.vDist));
+        double yFOV = xFOV / aspectRatio;
+        projection.perspective(yFOV, aspectRatio, 0.1 * gs.vDist, 10 * gs.vDist);
+
+        view.lookAt(camera.eye, camera.center, camera.up);
+        frustum.set(projection, view);
+    }
+
+    /**
+     * Chooses the level of detail of every robot by its size in this
+     * view, once the robots are placed for the current frame.
+     */
+    public void chooseLevels(Robot[] robots) {
+        lod.update(robots, camera.eye, projection, height);
+    }
+
+    /**
+     * Selects the viewport and loads the transformations of this view.
+     */
+    public void apply(GL2 gl) {
+        gl.glViewport(x, y, width, height);
+        gl.glMatrixMode(GL_PROJECTION);
+        gl.glLoadMatrixf(projection.m, 0);
+        gl.glMatrixMode(GL_MODELVIEW);
+        gl.glLoadMatrixf(view.m, 0);
+    }
+}